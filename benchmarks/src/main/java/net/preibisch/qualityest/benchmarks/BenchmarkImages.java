@@ -0,0 +1,29 @@
+package net.preibisch.qualityest.benchmarks;
+
+import java.util.Random;
+
+import autopilot.image.DoubleArrayImage;
+
+/**
+ * Reproducible synthetic test images for the benchmarks
+ */
+public class BenchmarkImages
+{
+	/**
+	 * @param size - width and height
+	 * @param seed - seed for the noise
+	 * @return a smooth pattern with an offset and gaussian noise, similar in range to 16 bit camera data
+	 */
+	public static DoubleArrayImage syntheticImage( final int size, final long seed )
+	{
+		final Random rnd = new Random( seed );
+		final DoubleArrayImage image = new DoubleArrayImage( size, size );
+		final double[] array = image.getArray();
+
+		for ( int y = 0; y < size; ++y )
+			for ( int x = 0; x < size; ++x )
+				array[ y * size + x ] = 1000 + 500 * Math.sin( x / 17.0 ) * Math.cos( y / 23.0 ) + 50 * rnd.nextGaussian();
+
+		return image;
+	}
+}
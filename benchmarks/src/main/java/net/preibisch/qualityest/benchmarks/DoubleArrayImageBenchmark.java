@@ -0,0 +1,147 @@
+package net.preibisch.qualityest.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import autopilot.image.DoubleArrayImage;
+
+/**
+ * Benchmarks of the public transforms, filters and statistics of {@link DoubleArrayImage}. Methods that work in-place
+ * first restore the input from a copy, the "copy" benchmark measures this overhead on its own.
+ *
+ * The concrete benchmarks are {@link DoubleArrayImageSingleThread} and {@link DoubleArrayImageMultiThread}.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx16g" } )
+public abstract class DoubleArrayImageBenchmark
+{
+	@Param( { "256", "512", "1024", "2048", "4096" } )
+	public int size;
+
+	protected DoubleArrayImage source, other, image;
+	protected int lowFreq;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		source = BenchmarkImages.syntheticImage( size, 42 );
+		other = BenchmarkImages.syntheticImage( size, 43 );
+		image = new DoubleArrayImage( size, size );
+		lowFreq = size / 3;
+	}
+
+	protected DoubleArrayImage restore()
+	{
+		image.copyFrom( source );
+		return image;
+	}
+
+	// transforms
+
+	@Benchmark
+	public DoubleArrayImage copy() { return restore(); }
+
+	@Benchmark
+	public DoubleArrayImage dctforward() { restore().dctforward(); return image; }
+
+	@Benchmark
+	public DoubleArrayImage dctinverse() { restore().dctinverse(); return image; }
+
+	@Benchmark
+	public DoubleArrayImage dctlogpower() { restore().dctlogpower(); return image; }
+
+	@Benchmark
+	public DoubleArrayImage dhtforward() { restore().dhtforward(); return image; }
+
+	@Benchmark
+	public DoubleArrayImage dhtinverse() { restore().dhtinverse(); return image; }
+
+	@Benchmark
+	public DoubleArrayImage fftAbsSum() { restore().fftAbsSum(); return image; }
+
+	@Benchmark
+	public DoubleArrayImage fftPower() { restore().fftPower(); return image; }
+
+	@Benchmark
+	public DoubleArrayImage fftLogPower() { restore().fftLogPower(); return image; }
+
+	// filters and normalizations
+
+	@Benchmark
+	public DoubleArrayImage fastInPlaceMedian() { restore().fastInPlaceMedian(); return image; }
+
+	@Benchmark
+	public DoubleArrayImage median3x3() { image.median3x3( source ); return image; }
+
+	@Benchmark
+	public DoubleArrayImage median3x3spokes() { image.median3x3spokes( source ); return image; }
+
+	@Benchmark
+	public DoubleArrayImage despeckle() { image.despeckle( source ); return image; }
+
+	@Benchmark
+	public double normalizeNormL1() { return restore().normalizeNormL1(); }
+
+	@Benchmark
+	public double normalizeNormL2() { return restore().normalizeNormL2(); }
+
+	// statistics (read-only)
+
+	@Benchmark
+	public double sum() { return source.sum(); }
+
+	@Benchmark
+	public double average() { return source.average(); }
+
+	@Benchmark
+	public double variance() { return source.variance(); }
+
+	@Benchmark
+	public double kurthosis() { return source.kurthosis(); }
+
+	@Benchmark
+	public double[] minmax() { return source.minmax(); }
+
+	@Benchmark
+	public double normL1() { return source.normL1(); }
+
+	@Benchmark
+	public double normL2() { return source.normL2(); }
+
+	@Benchmark
+	public double dot() { return source.dot( other ); }
+
+	@Benchmark
+	public double entropyShannon() { return source.entropyShannon( true ); }
+
+	@Benchmark
+	public double entropyShannonFastLog() { return source.entropyShannon( true, true ); }
+
+	@Benchmark
+	public double entropyShannonSubRectangle() { return source.entropyShannonSubRectangle( ( size - lowFreq ) / 2, ( size - lowFreq ) / 2, ( size + lowFreq ) / 2, ( size + lowFreq ) / 2, true ); }
+
+	@Benchmark
+	public double entropyShannonSubTriangle() { return source.entropyShannonSubTriangle( 0, 0, lowFreq, lowFreq, true ); }
+
+	@Benchmark
+	public double entropyBayesSubTriangle() { return source.entropyBayesSubTriangle( 0, 0, lowFreq, lowFreq, true ); }
+
+	@Benchmark
+	public double entropyBayesSubRectangle() { return source.entropyBayesSubRectangle( ( size - lowFreq ) / 2, ( size - lowFreq ) / 2, ( size + lowFreq ) / 2, ( size + lowFreq ) / 2, true ); }
+}
@@ -0,0 +1,9 @@
+package net.preibisch.qualityest.benchmarks;
+
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Every thread works on its own images, this shows how well the kernels scale when slices are processed in parallel.
+ */
+@Threads( Threads.MAX )
+public class DoubleArrayImageMultiThread extends DoubleArrayImageBenchmark {}
@@ -0,0 +1,6 @@
+package net.preibisch.qualityest.benchmarks;
+
+import org.openjdk.jmh.annotations.Threads;
+
+@Threads( 1 )
+public class DoubleArrayImageSingleThread extends DoubleArrayImageBenchmark {}
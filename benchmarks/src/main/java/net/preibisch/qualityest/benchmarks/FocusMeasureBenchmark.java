@@ -0,0 +1,107 @@
+package net.preibisch.qualityest.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import autopilot.image.DoubleArrayImage;
+import autopilot.image.FloatArrayImage;
+import autopilot.measures.FloatFocusMeasureInterface;
+import autopilot.measures.FocusMeasureInterface;
+import autopilot.measures.implementations.spectral.NormDCTEntropyShannon;
+import autopilot.measures.implementations.spectral.NormDCTEntropyShannonMedianFiltered;
+import autopilot.measures.implementations.spectral.NormDFTEntropyShannon;
+
+/**
+ * Benchmarks of all {@link FocusMeasureInterface} implementations and their single precision
+ * versions ({@link FloatFocusMeasureInterface}), including the time to restore the input slice (the
+ * measures work in-place).
+ *
+ * The concrete benchmarks are {@link FocusMeasureSingleThread} and {@link FocusMeasureMultiThread}.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx16g" } )
+public abstract class FocusMeasureBenchmark
+{
+	@Param( { "256", "512", "1024", "2048", "4096" } )
+	public int size;
+
+	protected DoubleArrayImage source, image;
+	protected FloatArrayImage floatSource, floatImage;
+
+	protected final FocusMeasureInterface dctEntropy = new NormDCTEntropyShannon();
+	protected final FocusMeasureInterface medianDctEntropy = new NormDCTEntropyShannonMedianFiltered();
+	protected final FocusMeasureInterface dftEntropy = new NormDFTEntropyShannon();
+
+	protected final FloatFocusMeasureInterface floatDctEntropy = new NormDCTEntropyShannon();
+	protected final FloatFocusMeasureInterface floatMedianDctEntropy = new NormDCTEntropyShannonMedianFiltered();
+	protected final FloatFocusMeasureInterface floatDftEntropy = new NormDFTEntropyShannon();
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		source = BenchmarkImages.syntheticImage( size, 42 );
+		image = new DoubleArrayImage( size, size );
+
+		floatSource = new FloatArrayImage( size, size );
+		floatSource.copyFrom( source );
+		floatImage = new FloatArrayImage( size, size );
+	}
+
+	@Benchmark
+	public double normDCTEntropyShannon()
+	{
+		image.copyFrom( source );
+		return dctEntropy.computeFocusMeasure( image );
+	}
+
+	@Benchmark
+	public double normDCTEntropyShannonMedianFiltered()
+	{
+		image.copyFrom( source );
+		return medianDctEntropy.computeFocusMeasure( image );
+	}
+
+	@Benchmark
+	public double normDFTEntropyShannon()
+	{
+		image.copyFrom( source );
+		return dftEntropy.computeFocusMeasure( image );
+	}
+
+	@Benchmark
+	public double floatNormDCTEntropyShannon()
+	{
+		floatImage.copyFrom( floatSource );
+		return floatDctEntropy.computeFocusMeasure( floatImage );
+	}
+
+	@Benchmark
+	public double floatNormDCTEntropyShannonMedianFiltered()
+	{
+		floatImage.copyFrom( floatSource );
+		return floatMedianDctEntropy.computeFocusMeasure( floatImage );
+	}
+
+	@Benchmark
+	public double floatNormDFTEntropyShannon()
+	{
+		floatImage.copyFrom( floatSource );
+		return floatDftEntropy.computeFocusMeasure( floatImage );
+	}
+}
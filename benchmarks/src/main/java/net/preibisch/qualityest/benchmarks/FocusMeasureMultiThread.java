@@ -0,0 +1,9 @@
+package net.preibisch.qualityest.benchmarks;
+
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Every thread works on its own slice, this is how the measures are used by ParallelSliceEvaluation.
+ */
+@Threads( Threads.MAX )
+public class FocusMeasureMultiThread extends FocusMeasureBenchmark {}
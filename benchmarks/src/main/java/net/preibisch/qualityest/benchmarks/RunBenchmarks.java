@@ -0,0 +1,22 @@
+package net.preibisch.qualityest.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler so that throughput and allocation rate are reported together.
+ * Accepts the usual JMH command line options (e.g. a benchmark regexp, -p size=1024, -rf json).
+ */
+public class RunBenchmarks
+{
+	public static void main( String[] args ) throws Exception
+	{
+		new Runner(
+				new OptionsBuilder()
+					.parent( new CommandLineOptions( args ) )
+					.addProfiler( GCProfiler.class )
+					.build() ).run();
+	}
+}
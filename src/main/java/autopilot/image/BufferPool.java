@@ -0,0 +1,254 @@
+package autopilot.image;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of double[] and float[] arrays keyed by their length, for plane
+ * buffers (width*height) and transform scratch.
+ *
+ * Evaluating a stack needs the same few array sizes over and over, but the
+ * worker threads only live as long as one stack, so the arrays are pooled
+ * globally: acquire() hands out a pooled array of exactly the requested length
+ * (with undefined contents) or allocates a new one, release() gives it back.
+ * Arrays are only acquired once per plane or once per thread and stack, so the
+ * lock is not contended. The pool retains at most cMaximumRetainedBytes, and
+ * everything is dropped once it was not used for cIdleMillis, so an idle Fiji
+ * session does not keep the memory of the last run.
+ */
+public final class BufferPool
+{
+	/**
+	 * Maximal number of bytes kept in the pool, arrays released beyond it are
+	 * left to the garbage collector.
+	 */
+	public static volatile long cMaximumRetainedBytes = Long.getLong(	"autopilot.bufferpool.maxMB",
+																		512) * 1024 * 1024;
+
+	/**
+	 * Time after which an unused pool is emptied.
+	 */
+	public static volatile long cIdleMillis = 30000;
+
+	private static final HashMap<Integer, ArrayDeque<double[]>> cDoubleArrays = new HashMap<>();
+	private static final HashMap<Integer, ArrayDeque<float[]>> cFloatArrays = new HashMap<>();
+
+	private static long cRetainedBytes = 0;
+	private static long cLastUse = 0;
+	private static long cHits = 0;
+	private static long cMisses = 0;
+
+	private static ScheduledExecutorService cIdleService = null;
+
+	private BufferPool()
+	{
+	}
+
+	/**
+	 * Returns an array of the given length, its contents are undefined.
+	 *
+	 * @param pLength
+	 *            length
+	 * @return pooled or new array
+	 */
+	public static final double[] acquireDoubles(final int pLength)
+	{
+		synchronized (BufferPool.class)
+		{
+			cLastUse = System.currentTimeMillis();
+			final ArrayDeque<double[]> lArrays = cDoubleArrays.get(pLength);
+			if (lArrays != null && !lArrays.isEmpty())
+			{
+				cHits++;
+				cRetainedBytes -= 8L * pLength;
+				return lArrays.pop();
+			}
+			cMisses++;
+		}
+		return new double[pLength];
+	}
+
+	/**
+	 * Returns an array of the given length, its contents are undefined.
+	 *
+	 * @param pLength
+	 *            length
+	 * @return pooled or new array
+	 */
+	public static final float[] acquireFloats(final int pLength)
+	{
+		synchronized (BufferPool.class)
+		{
+			cLastUse = System.currentTimeMillis();
+			final ArrayDeque<float[]> lArrays = cFloatArrays.get(pLength);
+			if (lArrays != null && !lArrays.isEmpty())
+			{
+				cHits++;
+				cRetainedBytes -= 4L * pLength;
+				return lArrays.pop();
+			}
+			cMisses++;
+		}
+		return new float[pLength];
+	}
+
+	/**
+	 * Returns an array to the pool, it must not be used afterwards.
+	 *
+	 * @param pArray
+	 *            array from acquireDoubles() (or any other array)
+	 */
+	public static final void release(final double[] pArray)
+	{
+		if (pArray == null)
+			return;
+
+		synchronized (BufferPool.class)
+		{
+			cLastUse = System.currentTimeMillis();
+			if (cRetainedBytes + 8L * pArray.length > cMaximumRetainedBytes)
+				return;
+			cDoubleArrays.computeIfAbsent(pArray.length, k -> new ArrayDeque<>())
+							.push(pArray);
+			cRetainedBytes += 8L * pArray.length;
+			scheduleIdleRelease();
+		}
+	}
+
+	/**
+	 * Returns an array to the pool, it must not be used afterwards.
+	 *
+	 * @param pArray
+	 *            array from acquireFloats() (or any other array)
+	 */
+	public static final void release(final float[] pArray)
+	{
+		if (pArray == null)
+			return;
+
+		synchronized (BufferPool.class)
+		{
+			cLastUse = System.currentTimeMillis();
+			if (cRetainedBytes + 4L * pArray.length > cMaximumRetainedBytes)
+				return;
+			cFloatArrays.computeIfAbsent(pArray.length, k -> new ArrayDeque<>())
+							.push(pArray);
+			cRetainedBytes += 4L * pArray.length;
+			scheduleIdleRelease();
+		}
+	}
+
+	/**
+	 * Returns an image backed by a pooled array, its contents are undefined.
+	 *
+	 * @param pWidth
+	 *            width
+	 * @param pHeight
+	 *            height
+	 * @return image
+	 */
+	public static final DoubleArrayImage acquireDoubleArrayImage(	final int pWidth,
+																	final int pHeight)
+	{
+		return new DoubleArrayImage(pWidth,
+									pHeight,
+									acquireDoubles(pWidth * pHeight));
+	}
+
+	/**
+	 * Returns an image backed by a pooled array, its contents are undefined.
+	 *
+	 * @param pWidth
+	 *            width
+	 * @param pHeight
+	 *            height
+	 * @return image
+	 */
+	public static final FloatArrayImage acquireFloatArrayImage(	final int pWidth,
+																final int pHeight)
+	{
+		return new FloatArrayImage(	pWidth,
+									pHeight,
+									acquireFloats(pWidth * pHeight));
+	}
+
+	/**
+	 * Returns the array of an image to the pool, the image must not be used
+	 * afterwards.
+	 *
+	 * @param pDoubleArrayImage
+	 *            image, can be null
+	 */
+	public static final void release(final DoubleArrayImage pDoubleArrayImage)
+	{
+		if (pDoubleArrayImage != null)
+			release(pDoubleArrayImage.getArray());
+	}
+
+	/**
+	 * Returns the array of an image to the pool, the image must not be used
+	 * afterwards.
+	 *
+	 * @param pFloatArrayImage
+	 *            image, can be null
+	 */
+	public static final void release(final FloatArrayImage pFloatArrayImage)
+	{
+		if (pFloatArrayImage != null)
+			release(pFloatArrayImage.getArray());
+	}
+
+	/**
+	 * Drops all pooled arrays.
+	 */
+	public static final synchronized void clear()
+	{
+		cDoubleArrays.clear();
+		cFloatArrays.clear();
+		cRetainedBytes = 0;
+	}
+
+	public static final synchronized long getRetainedBytes()
+	{
+		return cRetainedBytes;
+	}
+
+	/**
+	 * @return number of acquires that were served from the pool
+	 */
+	public static final synchronized long getHits()
+	{
+		return cHits;
+	}
+
+	/**
+	 * @return number of acquires that allocated a new array
+	 */
+	public static final synchronized long getMisses()
+	{
+		return cMisses;
+	}
+
+	private static void scheduleIdleRelease()
+	{
+		if (cIdleService != null)
+			return;
+
+		cIdleService = Executors.newSingleThreadScheduledExecutor(r -> {
+			final Thread lThread = new Thread(r, "BufferPool idle release");
+			lThread.setDaemon(true);
+			return lThread;
+		});
+
+		cIdleService.scheduleWithFixedDelay(() -> {
+			synchronized (BufferPool.class)
+			{
+				if (cRetainedBytes > 0 && System.currentTimeMillis() - cLastUse > cIdleMillis)
+					clear();
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
+}
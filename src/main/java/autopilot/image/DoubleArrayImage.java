@@ -7,13 +7,15 @@ import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
 import java.util.Arrays;
 
 import javax.imageio.ImageIO;
 
 import edu.emory.mathcs.jtransforms.dct.DoubleDCT_2D;
 import edu.emory.mathcs.jtransforms.dht.DoubleDHT_2D;
-import edu.emory.mathcs.jtransforms.fft.DoubleFFT_2D;
+import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D;
 
 /**
  * Basic 2D image backed by a single double[] java array.
@@ -23,6 +25,11 @@ import edu.emory.mathcs.jtransforms.fft.DoubleFFT_2D;
 public class DoubleArrayImage
 {
 
+	/**
+	 * Number of values converted per bulk get from a buffer.
+	 */
+	private static final int cBulkChunkLength = 4096;
+
 	protected final int mWidth;
 	protected final int mHeight;
 	protected final double[] array;
@@ -189,17 +196,88 @@ public class DoubleArrayImage
 	public final void load16bitByteBuffer(final ByteBuffer pByteBuffer)
 	{
 		pByteBuffer.rewind();
-		final double[] marray = array;
-		final int lUsableBufferLength = Math.min(	marray.length * 2,
+		final int lUsableBufferLength = Math.min(	array.length * 2,
 													pByteBuffer.limit());
 
-		for (int i = 0, j = 0; i < lUsableBufferLength; i += 2)
+		// little endian, decoded through a bulk short view
+		final ByteBuffer lLittleEndian = pByteBuffer.duplicate()
+													.order(ByteOrder.LITTLE_ENDIAN);
+		lLittleEndian.limit(lUsableBufferLength);
+		load16bitShortBuffer(lLittleEndian.asShortBuffer());
+		pByteBuffer.position(lUsableBufferLength);
+	}
+
+	/**
+	 * Loads unsigned 16 bit values from the current position of a short
+	 * buffer (e.g. a view of a memory mapped file), the byte order is the one
+	 * of the buffer.
+	 * 
+	 * @param pShortBuffer
+	 *            buffer, its position is advanced by the number of values
+	 *            read
+	 */
+	public final void load16bitShortBuffer(final ShortBuffer pShortBuffer)
+	{
+		final double[] marray = array;
+		final int lLength = Math.min(marray.length, pShortBuffer.remaining());
+		final short[] lChunk = new short[Math.min(lLength, cBulkChunkLength)];
+
+		for (int j = 0; j < lLength; j += lChunk.length)
 		{
-			final int a = pByteBuffer.get() & 0xff;
-			final int b = pByteBuffer.get() & 0xff;
-			final int intvalue = b << 8 | a;
-			final double doublevalue = intvalue;
-			marray[j++] = doublevalue;
+			final int lChunkLength = Math.min(lChunk.length, lLength - j);
+			pShortBuffer.get(lChunk, 0, lChunkLength);
+			for (int k = 0; k < lChunkLength; k++)
+			{
+				marray[j + k] = lChunk[k] & 0xffff;
+			}
+		}
+	}
+
+	/**
+	 * Loads unsigned 8 bit values from the current position of a byte buffer.
+	 * 
+	 * @param pByteBuffer
+	 *            buffer, its position is advanced by the number of values
+	 *            read
+	 */
+	public final void load8bitByteBuffer(final ByteBuffer pByteBuffer)
+	{
+		final double[] marray = array;
+		final int lLength = Math.min(marray.length, pByteBuffer.remaining());
+		final byte[] lChunk = new byte[Math.min(lLength, cBulkChunkLength)];
+
+		for (int j = 0; j < lLength; j += lChunk.length)
+		{
+			final int lChunkLength = Math.min(lChunk.length, lLength - j);
+			pByteBuffer.get(lChunk, 0, lChunkLength);
+			for (int k = 0; k < lChunkLength; k++)
+			{
+				marray[j + k] = lChunk[k] & 0xff;
+			}
+		}
+	}
+
+	/**
+	 * Loads 32 bit float values from the current position of a float buffer.
+	 * 
+	 * @param pFloatBuffer
+	 *            buffer, its position is advanced by the number of values
+	 *            read
+	 */
+	public final void loadFloatBuffer(final FloatBuffer pFloatBuffer)
+	{
+		final double[] marray = array;
+		final int lLength = Math.min(marray.length, pFloatBuffer.remaining());
+		final float[] lChunk = new float[Math.min(lLength, cBulkChunkLength)];
+
+		for (int j = 0; j < lLength; j += lChunk.length)
+		{
+			final int lChunkLength = Math.min(lChunk.length, lLength - j);
+			pFloatBuffer.get(lChunk, 0, lChunkLength);
+			for (int k = 0; k < lChunkLength; k++)
+			{
+				marray[j + k] = lChunk[k];
+			}
 		}
 	}
 
@@ -597,6 +675,10 @@ public class DoubleArrayImage
 	{
 		final int length = array.length;
 		final double[] marray = array;
+		if (ReductionKernels.cUseUnrolledKernels)
+		{
+			return ReductionKernels.sum(marray, 0, length) / length;
+		}
 		double average = 0;
 		for (int i = 0; i < length; i++)
 		{
@@ -610,6 +692,13 @@ public class DoubleArrayImage
 	{
 		final int length = array.length;
 		final double[] marray = array;
+		if (ReductionKernels.cUseUnrolledKernels)
+		{
+			return ReductionKernels.sumSquaredDeviations(	marray,
+															lAverage,
+															0,
+															length) / (length - 1);
+		}
 		double variance = 0;
 		for (int i = 0; i < length; i++)
 		{
@@ -755,6 +844,10 @@ public class DoubleArrayImage
 	{
 		final int length = array.length;
 		final double[] marray = array;
+		if (ReductionKernels.cUseUnrolledKernels)
+		{
+			return ReductionKernels.sum(marray, 0, length);
+		}
 		double sum = 0;
 		for (int i = 0; i < length; i++)
 		{
@@ -863,6 +956,10 @@ public class DoubleArrayImage
 	{
 		final int length = array.length;
 		final double[] marray = array;
+		if (ReductionKernels.cUseUnrolledKernels)
+		{
+			return ReductionKernels.sumAbs(marray, 0, length);
+		}
 		double sum = 0;
 		for (int i = 0; i < length; i++)
 		{
@@ -876,6 +973,10 @@ public class DoubleArrayImage
 	{
 		final int length = array.length;
 		final double[] marray = array;
+		if (ReductionKernels.cUseUnrolledKernels)
+		{
+			return Math.sqrt(ReductionKernels.sumSquares(marray, 0, length));
+		}
 		double norm = 0;
 		for (int i = 0; i < length; i++)
 		{
@@ -1501,6 +1602,10 @@ public class DoubleArrayImage
 		final int length = array.length;
 		final double[] marray = array;
 		final double[] oarray = pDoubleArrayImage.array;
+		if (ReductionKernels.cUseUnrolledKernels)
+		{
+			return ReductionKernels.dot(marray, oarray, 0, length);
+		}
 		double dotprod = 0;
 		for (int i = 0; i < length; i++)
 		{
@@ -1534,31 +1639,31 @@ public class DoubleArrayImage
 
 	public final void dhtforward()
 	{
-		final DoubleDHT_2D dht = new DoubleDHT_2D(mHeight, mWidth);
+		final DoubleDHT_2D dht = TransformPlanCache.getDHT2D(mHeight, mWidth);
 		dht.forward(array);
 	}
 
 	public final void dhtinverse()
 	{
-		final DoubleDHT_2D dht = new DoubleDHT_2D(mHeight, mWidth);
+		final DoubleDHT_2D dht = TransformPlanCache.getDHT2D(mHeight, mWidth);
 		dht.inverse(array, true);
 	}
 
 	public final void dctforward()
 	{
-		final DoubleDCT_2D dct = new DoubleDCT_2D(mHeight, mWidth);
+		final DoubleDCT_2D dct = TransformPlanCache.getDCT2D(mHeight, mWidth);
 		dct.forward(array, false);
 	}
 
 	public final void dctinverse()
 	{
-		final DoubleDCT_2D dct = new DoubleDCT_2D(mHeight, mWidth);
+		final DoubleDCT_2D dct = TransformPlanCache.getDCT2D(mHeight, mWidth);
 		dct.inverse(array, false);
 	}
 
 	public final void dctlogpower()
 	{
-		final DoubleDCT_2D dct = new DoubleDCT_2D(mHeight, mWidth);
+		final DoubleDCT_2D dct = TransformPlanCache.getDCT2D(mHeight, mWidth);
 		dct.forward(array, false);
 		final int length = array.length;
 		final double[] marray = array;
@@ -1569,149 +1674,255 @@ public class DoubleArrayImage
 		}
 	}
 
+	private static final int cSpectrumAbs = 0;
+	private static final int cSpectrumPower = 1;
+	private static final int cSpectrumLogPower = 2;
+
+	/**
+	 * Returns the length of the scratch array needed by fftLogPower, fftPower
+	 * and fftAbsSum for an image of the given size.
+	 * 
+	 * @param pWidth
+	 *            width
+	 * @param pHeight
+	 *            height
+	 * @return scratch length
+	 */
+	public static final int getSpectrumScratchLength(	final int pWidth,
+														final int pHeight)
+	{
+		return pHeight * 2 * (pWidth / 2 + 1) + 2 * pHeight;
+	}
+
 	public final void fftLogPower()
 	{
-		final double[] larray = array;
-		final int lWidth = mWidth;
-		final int lHeight = mHeight;
+		fftLogPower(null);
+	}
 
-		final DoubleFFT_2D fft = new DoubleFFT_2D(lHeight, lWidth);
-		final double[] lTempArray = new double[2 * lWidth * lHeight];
+	/**
+	 * Replaces the image by its log power spectrum log(1+|F|^2), DC is moved
+	 * to the center.
+	 * 
+	 * @param pScratch
+	 *            scratch of at least getSpectrumScratchLength() doubles, or
+	 *            null to use a scratch from the {@link BufferPool}
+	 */
+	public final void fftLogPower(final double[] pScratch)
+	{
+		spectrum(pScratch, false, cSpectrumLogPower);
+	}
 
-		for (int r = 0; r < lHeight; r++)
-		{
-			for (int c = 0; c < lWidth; c++)
-			{
-				lTempArray[2 * r * lWidth + 2 * c] = larray[r * lWidth
-															+ c];
-			}
-		}
+	public final void fftPower()
+	{
+		fftPower(null);
+	}
 
-		fft.complexForward(lTempArray);
+	/**
+	 * Replaces the image by its power spectrum |F|^2, DC is moved to the
+	 * center.
+	 * 
+	 * @param pScratch
+	 *            scratch of at least getSpectrumScratchLength() doubles, or
+	 *            null to use a scratch from the {@link BufferPool}
+	 */
+	public final void fftPower(final double[] pScratch)
+	{
+		spectrum(pScratch, false, cSpectrumPower);
+	}
 
-		for (int r = 0; r < lHeight; r++)
+	public final void fftAbsSum()
+	{
+		fftAbsSum(null);
+	}
+
+	/**
+	 * Replaces the image by its amplitude spectrum |F|, DC is moved to the
+	 * center.
+	 * 
+	 * Note: this has always been computed on the pixels laid out as in a
+	 * complex array (every other value zero) and read back as a real image of
+	 * the same size, as NormDFTEntropyShannon relies on it the layout is kept.
+	 * 
+	 * @param pScratch
+	 *            scratch of at least getSpectrumScratchLength() doubles, or
+	 *            null to use a scratch from the {@link BufferPool}
+	 */
+	public final void fftAbsSum(final double[] pScratch)
+	{
+		spectrum(pScratch, true, cSpectrumAbs);
+	}
+
+	/**
+	 * Computes the half spectrum of the real input (rows with a real FFT,
+	 * columns with complex FFTs on the non-redundant half) and writes the full,
+	 * centered amplitude/power/log-power spectrum back into the image using
+	 * the hermitian symmetry F(r,c) = conj(F(-r,-c)).
+	 */
+	private final void spectrum(final double[] pScratch,
+								final boolean pInterleavedInput,
+								final int pMode)
+	{
+		if (pScratch == null)
 		{
-			for (int c = 0; c < lWidth; c++)
+			final double[] lScratch = BufferPool.acquireDoubles(getSpectrumScratchLength(	mWidth,
+																							mHeight));
+			try
 			{
-				final double real = lTempArray[2 * r * lWidth + 2 * c];
-				final double imag = lTempArray[2 * r
-												* lWidth
-												+ 2
-												* c
-												+ 1];
-
-				final int rt = (r + lHeight / 2) % lHeight;
-				final int ct = (c + lWidth / 2) % lWidth;
-
-				larray[rt * lWidth + ct] = Math.log(1 + real
-													* real
-													+ imag
-													* imag);
+				spectrum(lScratch, pInterleavedInput, pMode);
 			}
-			// unpacker.unpack(r, c, lTempArray, mHeight*mWidth/2+mWidth/2);
+			finally
+			{
+				BufferPool.release(lScratch);
+			}
+			return;
 		}
 
-	}
-
-	public final void fftPower()
-	{
 		final double[] larray = array;
 		final int lWidth = mWidth;
 		final int lHeight = mHeight;
+		final int lHalfWidth = lWidth / 2 + 1;
+		final int lStride = 2 * lHalfWidth;
+		final int lColumnOffset = lHeight * lStride;
+		final double[] lScratch = pScratch;
 
-		final DoubleFFT_2D fft = new DoubleFFT_2D(lHeight, lWidth);
-		final double[] lTempArray = new double[2 * lWidth * lHeight];
-
+		// rows: real forward FFT, unpacked to W/2+1 complex values
+		final DoubleFFT_1D lRowFFT = TransformPlanCache.getFFT1D(lWidth);
 		for (int r = 0; r < lHeight; r++)
 		{
-			for (int c = 0; c < lWidth; c++)
+			final int lOffset = r * lStride;
+			final int lRowStart = r * lWidth;
+			if (pInterleavedInput)
 			{
-				lTempArray[2 * r * lWidth + 2 * c] = larray[r * lWidth
-															+ c];
+				for (int c = 0; c < lWidth; c++)
+				{
+					final int k = lRowStart + c;
+					lScratch[lOffset + c] = (k & 1) == 0 ? larray[k >> 1] : 0;
+				}
 			}
-		}
-
-		fft.complexForward(lTempArray);
-
-		for (int r = 0; r < lHeight; r++)
-		{
-			for (int c = 0; c < lWidth; c++)
+			else
 			{
-				final double real = lTempArray[2 * r * lWidth + 2 * c];
-				final double imag = lTempArray[2 * r
-												* lWidth
-												+ 2
-												* c
-												+ 1];
+				System.arraycopy(larray, lRowStart, lScratch, lOffset, lWidth);
+			}
 
-				final int rt = (r + lHeight / 2) % lHeight;
-				final int ct = (c + lWidth / 2) % lWidth;
+			lRowFFT.realForward(lScratch, lOffset);
 
-				larray[rt * lWidth + ct] = (real * real + imag * imag);
+			// the real part of the Nyquist frequency (even width) or the
+			// imaginary part of the last frequency (odd width) is packed at
+			// index 1
+			lScratch[lOffset + lWidth] = lScratch[lOffset + 1];
+			lScratch[lOffset + 1] = 0;
+			if ((lWidth & 1) == 0)
+			{
+				lScratch[lOffset + lWidth + 1] = 0;
 			}
-			// unpacker.unpack(r, c, lTempArray, mHeight*mWidth/2+mWidth/2);
 		}
 
-	}
-
-	public final void fftAbsSum()
-	{
-		final double[] larray = array;
-		final int lWidth = mWidth;
-		final int lHeight = mHeight;
+		// columns: complex forward FFT
+		final DoubleFFT_1D lColumnFFT = TransformPlanCache.getFFT1D(lHeight);
+		for (int c = 0; c < lHalfWidth; c++)
+		{
+			for (int r = 0, i = 2 * c; r < lHeight; r++, i += lStride)
+			{
+				lScratch[lColumnOffset + 2 * r] = lScratch[i];
+				lScratch[lColumnOffset + 2 * r + 1] = lScratch[i + 1];
+			}
 
-		final DoubleFFT_2D fft = new DoubleFFT_2D(lHeight, lWidth);
-		final double[] lTempArray = new double[2 * lWidth * lHeight];
+			lColumnFFT.complexForward(lScratch, lColumnOffset);
 
-		for (int r = 0; r < lHeight; r++)
-		{
-			for (int c = 0; c < lWidth; c++)
+			for (int r = 0, i = 2 * c; r < lHeight; r++, i += lStride)
 			{
-				lTempArray[2 * r * lWidth + 2 * c] = larray[r * lWidth
-															+ c];
+				lScratch[i] = lScratch[lColumnOffset + 2 * r];
+				lScratch[i + 1] = lScratch[lColumnOffset + 2 * r + 1];
 			}
 		}
 
-		fft.realForwardFull(lTempArray);
-
+		// full spectrum with the DC component moved to (H/2, W/2)
+		final int lShiftX = lWidth / 2;
+		final int lShiftY = lHeight / 2;
 		for (int r = 0; r < lHeight; r++)
 		{
+			int rt = r + lShiftY;
+			if (rt >= lHeight)
+			{
+				rt -= lHeight;
+			}
+			final int lOutOffset = rt * lWidth;
+			final int lOffset = r * lStride;
+			final int lMirrorOffset = (r == 0 ? 0 : lHeight - r) * lStride;
+
 			for (int c = 0; c < lWidth; c++)
 			{
-				final double real = lTempArray[2 * r * lWidth + 2 * c];
-				final double imag = lTempArray[2 * r
-												* lWidth
-												+ 2
-												* c
-												+ 1];
-
-				final int rt = (r + lHeight / 2) % lHeight;
-				final int ct = (c + lWidth / 2) % lWidth;
-
-				larray[rt * lWidth + ct] = Math.sqrt(real * real
-														+ imag
-														* imag);
+				final int i = c < lHalfWidth	? lOffset + 2 * c
+												: lMirrorOffset + 2
+													* (lWidth - c);
+				final double real = lScratch[i];
+				final double imag = lScratch[i + 1];
+				final double power = real * real + imag * imag;
+
+				int ct = c + lShiftX;
+				if (ct >= lWidth)
+				{
+					ct -= lWidth;
+				}
+
+				final double value;
+				if (pMode == cSpectrumAbs)
+				{
+					value = Math.sqrt(power);
+				}
+				else if (pMode == cSpectrumPower)
+				{
+					value = power;
+				}
+				else
+				{
+					value = Math.log(1 + power);
+				}
+				larray[lOutOffset + ct] = value;
 			}
-			// unpacker.unpack(r, c, lTempArray, mHeight*mWidth/2+mWidth/2);
 		}
-
 	}
 
 	public final double entropyShannon(final boolean pPerPixel)
+	{
+		return entropyShannon(pPerPixel, false);
+	}
+
+	/**
+	 * @param pPerPixel
+	 *            divide by the number of pixels
+	 * @param pFastLog
+	 *            true to use the table-driven logarithm ({@link FastLog}), the
+	 *            relative error of the entropy is then below 1e-6
+	 * @return Shannon entropy
+	 */
+	public final double entropyShannon(	final boolean pPerPixel,
+										final boolean pFastLog)
 	{
 		final int length = array.length;
 		final double[] marray = array;
 		double entropy = 0;
-		for (int i = 0; i < length; i++)
+		if (pFastLog)
 		{
-			final double value = marray[i];
-			if (value > 0)
-			{
-				entropy += value * Math.log(value);
-			}
-			else if (value < 0)
+			entropy = ReductionKernels.sumXLogXFast(marray, 0, length);
+		}
+		else if (ReductionKernels.cUseUnrolledKernels)
+		{
+			entropy = ReductionKernels.sumXLogX(marray, 0, length);
+		}
+		else
+		{
+			for (int i = 0; i < length; i++)
 			{
-				entropy += -value * Math.log(-value);
+				final double value = marray[i];
+				if (value > 0)
+				{
+					entropy += value * Math.log(value);
+				}
+				else if (value < 0)
+				{
+					entropy += -value * Math.log(-value);
+				}
 			}
 		}
 		entropy = -entropy;
@@ -1729,13 +1940,40 @@ public class DoubleArrayImage
 													final int xh,
 													final int yh,
 													final boolean pPerPixel)
+	{
+		return entropyShannonSubRectangle(xl, yl, xh, yh, pPerPixel, false);
+	}
+
+	/**
+	 * Same as {@link #entropyShannonSubRectangle(int, int, int, int, boolean)},
+	 * with pFastLog true the table-driven logarithm ({@link FastLog}) is used
+	 */
+	public final double entropyShannonSubRectangle(	final int xl,
+													final int yl,
+													final int xh,
+													final int yh,
+													final boolean pPerPixel,
+													final boolean pFastLog)
 	{
 		final double[] marray = array;
+		final boolean lUnrolled = ReductionKernels.cUseUnrolledKernels;
 		double entropy = 0;
 		for (int y = yl; y < yh; y++)
 		{
 			final int yi = y * mWidth;
 
+			if (pFastLog)
+			{
+				entropy += ReductionKernels.sumXLogXFast(marray, yi + xl, yi + xh);
+				continue;
+			}
+
+			if (lUnrolled)
+			{
+				entropy += ReductionKernels.sumXLogX(marray, yi + xl, yi + xh);
+				continue;
+			}
+
 			for (int x = xl; x < xh; x++)
 			{
 				final int i = yi + x;
@@ -1765,15 +2003,43 @@ public class DoubleArrayImage
 													final int xh,
 													final int yh,
 													final boolean pPerPixel)
+	{
+		return entropyShannonSubTriangle(xl, yl, xh, yh, pPerPixel, false);
+	}
+
+	/**
+	 * Same as {@link #entropyShannonSubTriangle(int, int, int, int, boolean)},
+	 * with pFastLog true the table-driven logarithm ({@link FastLog}) is used
+	 */
+	public final double entropyShannonSubTriangle(	final int xl,
+													final int yl,
+													final int xh,
+													final int yh,
+													final boolean pPerPixel,
+													final boolean pFastLog)
 	{
 		final int width = mWidth;
 		final double[] marray = array;
+		final boolean lUnrolled = ReductionKernels.cUseUnrolledKernels;
 		double entropy = 0;
 		for (int y = yl; y < yh; y++)
 		{
 			final int yi = y * width;
 
 			final int xend = xh - y * xh / yh;
+
+			if (pFastLog)
+			{
+				entropy += ReductionKernels.sumXLogXFast(marray, yi + xl, yi + xend);
+				continue;
+			}
+
+			if (lUnrolled)
+			{
+				entropy += ReductionKernels.sumXLogX(marray, yi + xl, yi + xend);
+				continue;
+			}
+
 			for (int x = xl; x < xend; x++)
 			{
 				final int i = yi + x;
@@ -0,0 +1,59 @@
+package autopilot.image;
+
+/**
+ * Table-driven approximation of the natural logarithm for the entropy
+ * kernels.
+ *
+ * x = 2^e * m with m in [1,2[ is split into the exponent and the mantissa,
+ * the upper cTableBits bits of the mantissa select a center c, and
+ * log(x) = e*log(2) + log(c) + log(1+r) with r = (m-c)/c, |r| &lt; 2^-9. The
+ * last term is evaluated with a third order polynomial, the absolute error of
+ * the result is below 1e-11 for all positive normal x.
+ *
+ * Zero, negative, denormal, infinite and NaN inputs are not handled (zero
+ * gives about -709, so 0*log(0) is still 0).
+ */
+public final class FastLog
+{
+	private static final int cTableBits = 8;
+	private static final int cTableSize = 1 << cTableBits;
+	private static final int cMantissaShift = 52 - cTableBits;
+	private static final double cLog2 = Math.log(2);
+
+	private static final double[] cLogCenter = new double[cTableSize];
+	private static final double[] cInverseCenter = new double[cTableSize];
+	private static final double[] cCenter = new double[cTableSize];
+
+	static
+	{
+		for (int j = 0; j < cTableSize; j++)
+		{
+			final double lCenter = 1 + (j + 0.5) / cTableSize;
+			cCenter[j] = lCenter;
+			cInverseCenter[j] = 1 / lCenter;
+			cLogCenter[j] = Math.log(lCenter);
+		}
+	}
+
+	private FastLog()
+	{
+	}
+
+	/**
+	 * @param pValue
+	 *            positive value
+	 * @return approximation of log(pValue), absolute error below 1e-11
+	 */
+	public static final double log(final double pValue)
+	{
+		final long lBits = Double.doubleToRawLongBits(pValue);
+		final int lExponent = (int) (lBits >>> 52) - 1023;
+		final int lIndex = (int) (lBits >>> cMantissaShift) & (cTableSize - 1);
+		final double lMantissa = Double.longBitsToDouble((lBits & 0x000fffffffffffffL) | 0x3ff0000000000000L);
+
+		final double r = (lMantissa - cCenter[lIndex]) * cInverseCenter[lIndex];
+		final double lLog1p = r * (1 - r * (0.5 - r * (1.0 / 3)));
+
+		return lExponent * cLog2 + cLogCenter[lIndex] + lLog1p;
+	}
+}
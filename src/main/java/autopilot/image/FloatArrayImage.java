@@ -0,0 +1,726 @@
+package autopilot.image;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import edu.emory.mathcs.jtransforms.dct.FloatDCT_2D;
+import edu.emory.mathcs.jtransforms.fft.FloatFFT_1D;
+
+/**
+ * Basic 2D image backed by a single float[] java array.
+ *
+ * Single precision counterpart of {@link DoubleArrayImage} for the operations
+ * used by the spectral focus measures. Pixels and transforms are stored as
+ * floats, which halves memory and memory bandwidth, sums (norms, averages,
+ * entropies) are still accumulated in double precision by the same
+ * {@link ReductionKernels} as for DoubleArrayImage. For 16 bit camera data
+ * the resulting focus measures agree with the double precision ones to about
+ * 1e-6 relative error, FloatAccuracyTest checks a bound of 1e-5.
+ */
+public class FloatArrayImage
+{
+
+	/**
+	 * Number of values converted per bulk get from a buffer.
+	 */
+	private static final int cBulkChunkLength = 4096;
+
+	protected final int mWidth;
+	protected final int mHeight;
+	protected final float[] array;
+
+	/**
+	 * Constructs an image of given width and height.
+	 *
+	 * @param pWidth
+	 *            width
+	 * @param pHeight
+	 *            height
+	 */
+	public FloatArrayImage(final int pWidth, final int pHeight)
+	{
+		super();
+		array = new float[pWidth * pHeight];
+		mWidth = pWidth;
+		mHeight = pHeight;
+	}
+
+	/**
+	 * Wraps an existing {@code float[]} array an image of given width and
+	 * height.
+	 *
+	 * @param pWidth
+	 *            width
+	 * @param pHeight
+	 *            height
+	 * @param pArray
+	 *            existing array
+	 */
+	public FloatArrayImage(	final int pWidth,
+							final int pHeight,
+							final float[] pArray)
+	{
+		super();
+		array = pArray;
+		mWidth = pWidth;
+		mHeight = pHeight;
+	}
+
+	/**
+	 * Constructs an image as copy of another existing image.
+	 *
+	 * @param pFloatArrayImage
+	 *            image from which a copy is made
+	 */
+	public FloatArrayImage(final FloatArrayImage pFloatArrayImage)
+	{
+		array = Arrays.copyOf(	pFloatArrayImage.array,
+								pFloatArrayImage.array.length);
+		mWidth = pFloatArrayImage.mWidth;
+		mHeight = pFloatArrayImage.mHeight;
+	}
+
+	/**
+	 * Returns a copy of this image (deep copy)
+	 *
+	 * @return deep copy
+	 */
+	public final FloatArrayImage copy()
+	{
+		return new FloatArrayImage(this);
+	}
+
+	/**
+	 * Copies the contents of a given image into this image. Both images must
+	 * have the same dimensions.
+	 *
+	 * @param pFloatArrayImage
+	 *            image to copy from
+	 * @return true if success, false if failed.
+	 */
+	public boolean copyFrom(final FloatArrayImage pFloatArrayImage)
+	{
+		if (mWidth == pFloatArrayImage.mWidth && mHeight == pFloatArrayImage.mHeight)
+		{
+			System.arraycopy(	pFloatArrayImage.array,
+								0,
+								array,
+								0,
+								mWidth * mHeight);
+			return true;
+		}
+		else
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Copies (and rounds) the contents of a double precision image into this
+	 * image. Both images must have the same dimensions.
+	 *
+	 * @param pDoubleArrayImage
+	 *            image to copy from
+	 * @return true if success, false if failed.
+	 */
+	public boolean copyFrom(final DoubleArrayImage pDoubleArrayImage)
+	{
+		if (mWidth == pDoubleArrayImage.getWidth() && mHeight == pDoubleArrayImage.getHeight())
+		{
+			final double[] oarray = pDoubleArrayImage.getArray();
+			final float[] marray = array;
+			final int length = mWidth * mHeight;
+			for (int i = 0; i < length; i++)
+			{
+				marray[i] = (float) oarray[i];
+			}
+			return true;
+		}
+		else
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Loads unsigned 16 bit values from the current position of a short
+	 * buffer (e.g. a view of a memory mapped file), the byte order is the one
+	 * of the buffer.
+	 *
+	 * @param pShortBuffer
+	 *            buffer, its position is advanced by the number of values
+	 *            read
+	 */
+	public final void load16bitShortBuffer(final ShortBuffer pShortBuffer)
+	{
+		final float[] marray = array;
+		final int lLength = Math.min(marray.length, pShortBuffer.remaining());
+		final short[] lChunk = new short[Math.min(lLength, cBulkChunkLength)];
+
+		for (int j = 0; j < lLength; j += lChunk.length)
+		{
+			final int lChunkLength = Math.min(lChunk.length, lLength - j);
+			pShortBuffer.get(lChunk, 0, lChunkLength);
+			for (int k = 0; k < lChunkLength; k++)
+			{
+				marray[j + k] = lChunk[k] & 0xffff;
+			}
+		}
+	}
+
+	/**
+	 * Loads unsigned 8 bit values from the current position of a byte buffer.
+	 *
+	 * @param pByteBuffer
+	 *            buffer, its position is advanced by the number of values
+	 *            read
+	 */
+	public final void load8bitByteBuffer(final ByteBuffer pByteBuffer)
+	{
+		final float[] marray = array;
+		final int lLength = Math.min(marray.length, pByteBuffer.remaining());
+		final byte[] lChunk = new byte[Math.min(lLength, cBulkChunkLength)];
+
+		for (int j = 0; j < lLength; j += lChunk.length)
+		{
+			final int lChunkLength = Math.min(lChunk.length, lLength - j);
+			pByteBuffer.get(lChunk, 0, lChunkLength);
+			for (int k = 0; k < lChunkLength; k++)
+			{
+				marray[j + k] = lChunk[k] & 0xff;
+			}
+		}
+	}
+
+	/**
+	 * Loads 32 bit float values from the current position of a float buffer.
+	 *
+	 * @param pFloatBuffer
+	 *            buffer, its position is advanced by the number of values
+	 *            read
+	 */
+	public final void loadFloatBuffer(final FloatBuffer pFloatBuffer)
+	{
+		pFloatBuffer.get(array, 0, Math.min(array.length, pFloatBuffer.remaining()));
+	}
+
+	public final float[] getArray()
+	{
+		return array;
+	}
+
+	public final int getWidth()
+	{
+		return mWidth;
+	}
+
+	public final int getHeight()
+	{
+		return mHeight;
+	}
+
+	public final int getLength()
+	{
+		return mWidth * mHeight;
+	}
+
+	public final void set(final float pValue)
+	{
+		Arrays.fill(array, pValue);
+	}
+
+	public final double average()
+	{
+		return sum() / array.length;
+	}
+
+	public final double sum()
+	{
+		final int length = array.length;
+		final float[] marray = array;
+		if (ReductionKernels.cUseUnrolledKernels)
+		{
+			return ReductionKernels.sum(marray, 0, length);
+		}
+		double sum = 0;
+		for (int i = 0; i < length; i++)
+		{
+			sum += marray[i];
+		}
+		return sum;
+	}
+
+	public final double normL1()
+	{
+		final int length = array.length;
+		final float[] marray = array;
+		if (ReductionKernels.cUseUnrolledKernels)
+		{
+			return ReductionKernels.sumAbs(marray, 0, length);
+		}
+		double sum = 0;
+		for (int i = 0; i < length; i++)
+		{
+			sum += Math.abs(marray[i]);
+		}
+		return sum;
+	}
+
+	public final double normL2()
+	{
+		final int length = array.length;
+		final float[] marray = array;
+		if (ReductionKernels.cUseUnrolledKernels)
+		{
+			return Math.sqrt(ReductionKernels.sumSquares(marray, 0, length));
+		}
+		double norm = 0;
+		for (int i = 0; i < length; i++)
+		{
+			final double value = marray[i];
+			norm += value * value;
+		}
+		norm = Math.sqrt(norm);
+		return norm;
+	}
+
+	public final double normalizeNormL1()
+	{
+		final double normL1 = normL1();
+		if (normL1 != 0)
+		{
+			mult(1 / normL1);
+		}
+		return normL1;
+	}
+
+	public final double normalizeNormL2()
+	{
+		final double norm = normL2();
+		if (norm != 0)
+		{
+			mult(1 / norm);
+		}
+		return norm;
+	}
+
+	public final void mult(final double pValue)
+	{
+		final int length = array.length;
+		final float[] marray = array;
+		for (int i = 0; i < length; i++)
+		{
+			marray[i] = (float) (marray[i] * pValue);
+		}
+	}
+
+	private static final float median3(	final float a,
+										final float b,
+										final float c)
+	{
+		if (a < b)
+		{
+			if (b <= c)
+			{
+				return b;
+			}
+			else if (a < c)
+			{
+				return c;
+			}
+			else
+			{
+				return a;
+			}
+		}
+		else if (a == b)
+		{
+			return a;
+		}
+		else
+		{
+			if (a <= c)
+			{
+				return a;
+			}
+			else if (b < c)
+			{
+				return c;
+			}
+			else
+			{
+				return b;
+			}
+		}
+	}
+
+	public final void median3x3(final FloatArrayImage pFloatArrayImage)
+	{
+		final float[] oarray = pFloatArrayImage.array;
+		final int width = mWidth;
+		final int length = array.length;
+		final float[] marray = array;
+		final int begin = width + 1;
+		final int end = length - width - 1;
+		for (int i = begin; i < end; i++)
+		{
+			final float a = oarray[i - width - 1];
+			final float b = oarray[i - width];
+			final float c = oarray[i - width + 1];
+			final float d = oarray[i - 1];
+			final float e = oarray[i];
+			final float f = oarray[i + 1];
+			final float g = oarray[i + width - 1];
+			final float h = oarray[i + width];
+			final float k = oarray[i + width + 1];
+
+			final float row1med = median3(a, e, k);
+			final float row2med = median3(b, f, g);
+			final float row3med = median3(c, d, h);
+
+			final float rowsmed = median3(row1med, row2med, row3med);
+
+			final float col1med = median3(c, e, g);
+			final float col2med = median3(b, d, k);
+			final float col3med = median3(a, f, h);
+
+			final float colsmed = median3(col1med, col2med, col3med);
+
+			marray[i] = 0.5f * (rowsmed + colsmed);
+		}
+	}
+
+	public final void fastInPlaceMedian()
+	{
+		final int width = mWidth;
+		final int length = array.length;
+		final float[] marray = array;
+		final int begin = width + 1;
+		final int end = length - width - 1;
+		for (int i = begin; i < end; i++)
+		{
+			marray[i] = median3(marray[i - 1], marray[i], marray[i + 1]);
+		}
+		for (int i = begin; i < end; i++)
+		{
+			marray[i] = median3(marray[i - width],
+								marray[i],
+								marray[i + width]);
+		}
+	}
+
+	public final void dctforward()
+	{
+		final FloatDCT_2D dct = TransformPlanCache.getFloatDCT2D(mHeight, mWidth);
+		dct.forward(array, false);
+	}
+
+	public final void dctinverse()
+	{
+		final FloatDCT_2D dct = TransformPlanCache.getFloatDCT2D(mHeight, mWidth);
+		dct.inverse(array, false);
+	}
+
+	private static final int cSpectrumAbs = 0;
+	private static final int cSpectrumPower = 1;
+	private static final int cSpectrumLogPower = 2;
+
+	public final void fftLogPower()
+	{
+		spectrum(false, cSpectrumLogPower);
+	}
+
+	public final void fftPower()
+	{
+		spectrum(false, cSpectrumPower);
+	}
+
+	/**
+	 * Replaces the image by its amplitude spectrum |F|, DC is moved to the
+	 * center. Uses the same input layout as
+	 * {@link DoubleArrayImage#fftAbsSum()}.
+	 */
+	public final void fftAbsSum()
+	{
+		spectrum(true, cSpectrumAbs);
+	}
+
+	/**
+	 * Single precision version of the half spectrum computation in
+	 * {@link DoubleArrayImage}.
+	 */
+	private final void spectrum(final boolean pInterleavedInput,
+								final int pMode)
+	{
+		final float[] lScratch = BufferPool.acquireFloats(DoubleArrayImage.getSpectrumScratchLength(	mWidth,
+																									mHeight));
+		try
+		{
+			spectrum(lScratch, pInterleavedInput, pMode);
+		}
+		finally
+		{
+			BufferPool.release(lScratch);
+		}
+	}
+
+	private final void spectrum(final float[] pScratch,
+								final boolean pInterleavedInput,
+								final int pMode)
+	{
+		final float[] lScratch = pScratch;
+		final float[] larray = array;
+		final int lWidth = mWidth;
+		final int lHeight = mHeight;
+		final int lHalfWidth = lWidth / 2 + 1;
+		final int lStride = 2 * lHalfWidth;
+		final int lColumnOffset = lHeight * lStride;
+
+		final FloatFFT_1D lRowFFT = TransformPlanCache.getFloatFFT1D(lWidth);
+		for (int r = 0; r < lHeight; r++)
+		{
+			final int lOffset = r * lStride;
+			final int lRowStart = r * lWidth;
+			if (pInterleavedInput)
+			{
+				for (int c = 0; c < lWidth; c++)
+				{
+					final int k = lRowStart + c;
+					lScratch[lOffset + c] = (k & 1) == 0 ? larray[k >> 1] : 0;
+				}
+			}
+			else
+			{
+				System.arraycopy(larray, lRowStart, lScratch, lOffset, lWidth);
+			}
+
+			lRowFFT.realForward(lScratch, lOffset);
+
+			lScratch[lOffset + lWidth] = lScratch[lOffset + 1];
+			lScratch[lOffset + 1] = 0;
+			if ((lWidth & 1) == 0)
+			{
+				lScratch[lOffset + lWidth + 1] = 0;
+			}
+		}
+
+		final FloatFFT_1D lColumnFFT = TransformPlanCache.getFloatFFT1D(lHeight);
+		for (int c = 0; c < lHalfWidth; c++)
+		{
+			for (int r = 0, i = 2 * c; r < lHeight; r++, i += lStride)
+			{
+				lScratch[lColumnOffset + 2 * r] = lScratch[i];
+				lScratch[lColumnOffset + 2 * r + 1] = lScratch[i + 1];
+			}
+
+			lColumnFFT.complexForward(lScratch, lColumnOffset);
+
+			for (int r = 0, i = 2 * c; r < lHeight; r++, i += lStride)
+			{
+				lScratch[i] = lScratch[lColumnOffset + 2 * r];
+				lScratch[i + 1] = lScratch[lColumnOffset + 2 * r + 1];
+			}
+		}
+
+		final int lShiftX = lWidth / 2;
+		final int lShiftY = lHeight / 2;
+		for (int r = 0; r < lHeight; r++)
+		{
+			int rt = r + lShiftY;
+			if (rt >= lHeight)
+			{
+				rt -= lHeight;
+			}
+			final int lOutOffset = rt * lWidth;
+			final int lOffset = r * lStride;
+			final int lMirrorOffset = (r == 0 ? 0 : lHeight - r) * lStride;
+
+			for (int c = 0; c < lWidth; c++)
+			{
+				final int i = c < lHalfWidth	? lOffset + 2 * c
+												: lMirrorOffset + 2
+													* (lWidth - c);
+				final double real = lScratch[i];
+				final double imag = lScratch[i + 1];
+				final double power = real * real + imag * imag;
+
+				int ct = c + lShiftX;
+				if (ct >= lWidth)
+				{
+					ct -= lWidth;
+				}
+
+				final double value;
+				if (pMode == cSpectrumAbs)
+				{
+					value = Math.sqrt(power);
+				}
+				else if (pMode == cSpectrumPower)
+				{
+					value = power;
+				}
+				else
+				{
+					value = Math.log(1 + power);
+				}
+				larray[lOutOffset + ct] = (float) value;
+			}
+		}
+	}
+
+	public final double entropyShannon(final boolean pPerPixel)
+	{
+		return entropyShannon(pPerPixel, false);
+	}
+
+	/**
+	 * @param pPerPixel
+	 *            divide by the number of pixels
+	 * @param pFastLog
+	 *            true to use the table-driven logarithm ({@link FastLog}), the
+	 *            relative error of the entropy is then below 1e-6
+	 * @return Shannon entropy
+	 */
+	public final double entropyShannon(	final boolean pPerPixel,
+										final boolean pFastLog)
+	{
+		final double entropy = entropyShannonSubRectangle(	0,
+															0,
+															mWidth,
+															mHeight,
+															false,
+															pFastLog);
+		return pPerPixel ? entropy / array.length : entropy;
+	}
+
+	public final double entropyShannonSubRectangle(	final int xl,
+													final int yl,
+													final int xh,
+													final int yh,
+													final boolean pPerPixel)
+	{
+		return entropyShannonSubRectangle(xl, yl, xh, yh, pPerPixel, false);
+	}
+
+	/**
+	 * Same as {@link #entropyShannonSubRectangle(int, int, int, int, boolean)},
+	 * with pFastLog true the table-driven logarithm ({@link FastLog}) is used
+	 */
+	public final double entropyShannonSubRectangle(	final int xl,
+													final int yl,
+													final int xh,
+													final int yh,
+													final boolean pPerPixel,
+													final boolean pFastLog)
+	{
+		final float[] marray = array;
+		final boolean lUnrolled = ReductionKernels.cUseUnrolledKernels;
+		double entropy = 0;
+		for (int y = yl; y < yh; y++)
+		{
+			final int yi = y * mWidth;
+
+			if (pFastLog)
+			{
+				entropy += ReductionKernels.sumXLogXFast(marray, yi + xl, yi + xh);
+				continue;
+			}
+
+			if (lUnrolled)
+			{
+				entropy += ReductionKernels.sumXLogX(marray, yi + xl, yi + xh);
+				continue;
+			}
+
+			for (int x = xl; x < xh; x++)
+			{
+				final double value = Math.abs(marray[yi + x]);
+				if (value > 0)
+				{
+					entropy += value * Math.log(value);
+				}
+			}
+		}
+		entropy = -entropy;
+
+		if (pPerPixel)
+		{
+			entropy = entropy / ((xh - xl) * (yh - yl));
+		}
+
+		return entropy;
+	}
+
+	public final double entropyShannonSubTriangle(	final int xl,
+													final int yl,
+													final int xh,
+													final int yh,
+													final boolean pPerPixel)
+	{
+		return entropyShannonSubTriangle(xl, yl, xh, yh, pPerPixel, false);
+	}
+
+	/**
+	 * Same as {@link #entropyShannonSubTriangle(int, int, int, int, boolean)},
+	 * with pFastLog true the table-driven logarithm ({@link FastLog}) is used
+	 */
+	public final double entropyShannonSubTriangle(	final int xl,
+													final int yl,
+													final int xh,
+													final int yh,
+													final boolean pPerPixel,
+													final boolean pFastLog)
+	{
+		final int width = mWidth;
+		final float[] marray = array;
+		final boolean lUnrolled = ReductionKernels.cUseUnrolledKernels;
+		double entropy = 0;
+		for (int y = yl; y < yh; y++)
+		{
+			final int yi = y * width;
+
+			final int xend = xh - y * xh / yh;
+
+			if (pFastLog)
+			{
+				entropy += ReductionKernels.sumXLogXFast(marray, yi + xl, yi + xend);
+				continue;
+			}
+
+			if (lUnrolled)
+			{
+				entropy += ReductionKernels.sumXLogX(marray, yi + xl, yi + xend);
+				continue;
+			}
+
+			for (int x = xl; x < xend; x++)
+			{
+				final double value = Math.abs(marray[yi + x]);
+				if (value > 0)
+				{
+					entropy += value * Math.log(value);
+				}
+			}
+		}
+		entropy = -entropy;
+
+		if (pPerPixel)
+		{
+			entropy = 2 * entropy / ((xh - xl) * (yh - yl));
+		}
+
+		return entropy;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "FloatArrayImage [mWidth=" + mWidth
+				+ ", mHeight="
+				+ mHeight
+				+ "]";
+	}
+
+}
@@ -0,0 +1,331 @@
+package autopilot.image;
+
+/**
+ * Unrolled, branch-free versions of the reduction loops of
+ * {@link DoubleArrayImage} (sums, norms, dot product, variance and Shannon
+ * entropy) and {@link FloatArrayImage} (sums, norms and Shannon entropy, the
+ * float versions accumulate in double), so both precisions take the same
+ * reduction path.
+ *
+ * Each kernel keeps four independent partial sums, which removes the
+ * loop-carried dependency on a single accumulator and lets the JIT pipeline
+ * (and where possible vectorize) the loop body. The entropy kernel computes
+ * |v|*log(|v|) with a single comparison instead of the sign branches of the
+ * scalar loop; like there, zeros and NaN pixels contribute 0.
+ *
+ * Results differ from the scalar loops only by the order of the additions,
+ * the relative difference is below 1e-11 for images of up to 2^24 pixels
+ * (checked by ReductionKernelsTest).
+ *
+ * The kernels are used when cUseUnrolledKernels is true (default), set the
+ * system property autopilot.scalarkernels=true or the field to false to use
+ * the scalar loops.
+ *
+ * The entropy methods take a pFastLog argument (false by default), with true
+ * they use the sumXLogXFast kernels, which replace Math.log by
+ * {@link FastLog} (the relative error is checked by FastEntropyTest).
+ */
+public final class ReductionKernels
+{
+	public static volatile boolean cUseUnrolledKernels = !Boolean.getBoolean("autopilot.scalarkernels");
+
+	private ReductionKernels()
+	{
+	}
+
+	/**
+	 * Sum of pArray[pFrom..pTo[
+	 */
+	public static final double sum(	final double[] pArray,
+									final int pFrom,
+									final int pTo)
+	{
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = pFrom;
+		for (; i + 3 < pTo; i += 4)
+		{
+			s0 += pArray[i];
+			s1 += pArray[i + 1];
+			s2 += pArray[i + 2];
+			s3 += pArray[i + 3];
+		}
+		for (; i < pTo; i++)
+		{
+			s0 += pArray[i];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Sum of |pArray[i]| for i in [pFrom, pTo[
+	 */
+	public static final double sumAbs(final double[] pArray,
+										final int pFrom,
+										final int pTo)
+	{
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = pFrom;
+		for (; i + 3 < pTo; i += 4)
+		{
+			s0 += Math.abs(pArray[i]);
+			s1 += Math.abs(pArray[i + 1]);
+			s2 += Math.abs(pArray[i + 2]);
+			s3 += Math.abs(pArray[i + 3]);
+		}
+		for (; i < pTo; i++)
+		{
+			s0 += Math.abs(pArray[i]);
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Sum of pArray[i]^2 for i in [pFrom, pTo[
+	 */
+	public static final double sumSquares(final double[] pArray,
+											final int pFrom,
+											final int pTo)
+	{
+		return dot(pArray, pArray, pFrom, pTo);
+	}
+
+	/**
+	 * Sum of pArray1[i]*pArray2[i] for i in [pFrom, pTo[
+	 */
+	public static final double dot(	final double[] pArray1,
+									final double[] pArray2,
+									final int pFrom,
+									final int pTo)
+	{
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = pFrom;
+		for (; i + 3 < pTo; i += 4)
+		{
+			s0 += pArray1[i] * pArray2[i];
+			s1 += pArray1[i + 1] * pArray2[i + 1];
+			s2 += pArray1[i + 2] * pArray2[i + 2];
+			s3 += pArray1[i + 3] * pArray2[i + 3];
+		}
+		for (; i < pTo; i++)
+		{
+			s0 += pArray1[i] * pArray2[i];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Sum of (pArray[i]-pMean)^2 for i in [pFrom, pTo[
+	 */
+	public static final double sumSquaredDeviations(final double[] pArray,
+													final double pMean,
+													final int pFrom,
+													final int pTo)
+	{
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = pFrom;
+		for (; i + 3 < pTo; i += 4)
+		{
+			final double d0 = pArray[i] - pMean;
+			final double d1 = pArray[i + 1] - pMean;
+			final double d2 = pArray[i + 2] - pMean;
+			final double d3 = pArray[i + 3] - pMean;
+			s0 += d0 * d0;
+			s1 += d1 * d1;
+			s2 += d2 * d2;
+			s3 += d3 * d3;
+		}
+		for (; i < pTo; i++)
+		{
+			final double d = pArray[i] - pMean;
+			s0 += d * d;
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Single precision input version of {@link #sum(double[], int, int)},
+	 * accumulates in double
+	 */
+	public static final double sum(	final float[] pArray,
+									final int pFrom,
+									final int pTo)
+	{
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = pFrom;
+		for (; i + 3 < pTo; i += 4)
+		{
+			s0 += pArray[i];
+			s1 += pArray[i + 1];
+			s2 += pArray[i + 2];
+			s3 += pArray[i + 3];
+		}
+		for (; i < pTo; i++)
+		{
+			s0 += pArray[i];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Single precision input version of {@link #sumAbs(double[], int, int)},
+	 * accumulates in double
+	 */
+	public static final double sumAbs(final float[] pArray,
+										final int pFrom,
+										final int pTo)
+	{
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = pFrom;
+		for (; i + 3 < pTo; i += 4)
+		{
+			s0 += Math.abs(pArray[i]);
+			s1 += Math.abs(pArray[i + 1]);
+			s2 += Math.abs(pArray[i + 2]);
+			s3 += Math.abs(pArray[i + 3]);
+		}
+		for (; i < pTo; i++)
+		{
+			s0 += Math.abs(pArray[i]);
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Single precision input version of
+	 * {@link #sumSquares(double[], int, int)}, accumulates in double
+	 */
+	public static final double sumSquares(final float[] pArray,
+											final int pFrom,
+											final int pTo)
+	{
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = pFrom;
+		for (; i + 3 < pTo; i += 4)
+		{
+			final double v0 = pArray[i];
+			final double v1 = pArray[i + 1];
+			final double v2 = pArray[i + 2];
+			final double v3 = pArray[i + 3];
+			s0 += v0 * v0;
+			s1 += v1 * v1;
+			s2 += v2 * v2;
+			s3 += v3 * v3;
+		}
+		for (; i < pTo; i++)
+		{
+			final double v = pArray[i];
+			s0 += v * v;
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Sum of |v|*log(|v|) for v = pArray[i], i in [pFrom, pTo[ (zeros and NaN
+	 * contribute 0)
+	 */
+	public static final double sumXLogX(final double[] pArray,
+										final int pFrom,
+										final int pTo)
+	{
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = pFrom;
+		for (; i + 3 < pTo; i += 4)
+		{
+			s0 += xlogx(pArray[i]);
+			s1 += xlogx(pArray[i + 1]);
+			s2 += xlogx(pArray[i + 2]);
+			s3 += xlogx(pArray[i + 3]);
+		}
+		for (; i < pTo; i++)
+		{
+			s0 += xlogx(pArray[i]);
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Single precision input version of {@link #sumXLogX(double[], int, int)},
+	 * accumulates in double
+	 */
+	public static final double sumXLogX(final float[] pArray,
+										final int pFrom,
+										final int pTo)
+	{
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = pFrom;
+		for (; i + 3 < pTo; i += 4)
+		{
+			s0 += xlogx(pArray[i]);
+			s1 += xlogx(pArray[i + 1]);
+			s2 += xlogx(pArray[i + 2]);
+			s3 += xlogx(pArray[i + 3]);
+		}
+		for (; i < pTo; i++)
+		{
+			s0 += xlogx(pArray[i]);
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Same as {@link #sumXLogX(double[], int, int)} using {@link FastLog},
+	 * the absolute error per value is below 1e-11*|v|
+	 */
+	public static final double sumXLogXFast(final double[] pArray,
+											final int pFrom,
+											final int pTo)
+	{
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = pFrom;
+		for (; i + 3 < pTo; i += 4)
+		{
+			s0 += xlogxFast(pArray[i]);
+			s1 += xlogxFast(pArray[i + 1]);
+			s2 += xlogxFast(pArray[i + 2]);
+			s3 += xlogxFast(pArray[i + 3]);
+		}
+		for (; i < pTo; i++)
+		{
+			s0 += xlogxFast(pArray[i]);
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Single precision input version of
+	 * {@link #sumXLogXFast(double[], int, int)}, accumulates in double
+	 */
+	public static final double sumXLogXFast(final float[] pArray,
+											final int pFrom,
+											final int pTo)
+	{
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = pFrom;
+		for (; i + 3 < pTo; i += 4)
+		{
+			s0 += xlogxFast(pArray[i]);
+			s1 += xlogxFast(pArray[i + 1]);
+			s2 += xlogxFast(pArray[i + 2]);
+			s3 += xlogxFast(pArray[i + 3]);
+		}
+		for (; i < pTo; i++)
+		{
+			s0 += xlogxFast(pArray[i]);
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	private static final double xlogxFast(final double pValue)
+	{
+		final double lAbs = Math.abs(pValue);
+		// same as xlogx, FastLog is not defined for 0 and NaN
+		return lAbs > 0 ? lAbs * FastLog.log(lAbs) : 0;
+	}
+
+	private static final double xlogx(final double pValue)
+	{
+		final double lAbs = Math.abs(pValue);
+		// false for 0 and NaN, which the scalar loops skip as well
+		return lAbs > 0 ? lAbs * Math.log(lAbs) : 0;
+	}
+}
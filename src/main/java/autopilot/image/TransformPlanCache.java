@@ -0,0 +1,226 @@
+package autopilot.image;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.emory.mathcs.jtransforms.dct.DoubleDCT_2D;
+import edu.emory.mathcs.jtransforms.dct.FloatDCT_2D;
+import edu.emory.mathcs.jtransforms.dht.DoubleDHT_2D;
+import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D;
+import edu.emory.mathcs.jtransforms.fft.DoubleFFT_2D;
+import edu.emory.mathcs.jtransforms.fft.FloatFFT_1D;
+
+/**
+ * Cache of JTransforms plans keyed by (transform kind, height, width).
+ *
+ * Constructing a DCT/DHT/FFT object precomputes its twiddle and cosine
+ * tables, which costs about as much as transforming a single slice. Since all
+ * slices of a stack have the same size, a plan only has to be built once per
+ * stack. JTransforms plans keep internal work arrays and must not be used by
+ * two threads at the same time, therefore every thread has its own bounded
+ * cache with least-recently-used eviction.
+ */
+public class TransformPlanCache
+{
+	/**
+	 * Maximal number of plans that a single thread keeps around.
+	 */
+	public static volatile int cMaximumNumberOfPlansPerThread = 8;
+
+	private enum TransformKind
+	{
+		DCT2D, DHT2D, FFT1D, FFT2D, FLOAT_DCT2D, FLOAT_FFT1D
+	}
+
+	private static final class PlanKey
+	{
+		private final TransformKind mKind;
+		private final int mHeight;
+		private final int mWidth;
+
+		private PlanKey(final TransformKind pKind,
+										final int pHeight,
+										final int pWidth)
+		{
+			mKind = pKind;
+			mHeight = pHeight;
+			mWidth = pWidth;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (mKind.hashCode() * 31 + mHeight) * 31 + mWidth;
+		}
+
+		@Override
+		public boolean equals(final Object pObject)
+		{
+			if (!(pObject instanceof PlanKey))
+				return false;
+			final PlanKey lPlanKey = (PlanKey) pObject;
+			return mKind == lPlanKey.mKind && mHeight == lPlanKey.mHeight
+							&& mWidth == lPlanKey.mWidth;
+		}
+	}
+
+	private static final class PlanMap extends LinkedHashMap<PlanKey, Object>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private PlanMap()
+		{
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<PlanKey, Object> pEldest)
+		{
+			return size() > cMaximumNumberOfPlansPerThread;
+		}
+	}
+
+	private static final ThreadLocal<PlanMap> mPlansThreadLocal = ThreadLocal.withInitial(PlanMap::new);
+
+	/**
+	 * Returns a 2D DCT plan for the calling thread.
+	 *
+	 * @param pHeight
+	 *          height (rows)
+	 * @param pWidth
+	 *          width (columns)
+	 * @return DCT plan
+	 */
+	public static final DoubleDCT_2D getDCT2D(final int pHeight,
+																						final int pWidth)
+	{
+		final PlanKey lKey = new PlanKey(TransformKind.DCT2D, pHeight, pWidth);
+		final PlanMap lPlans = mPlansThreadLocal.get();
+		DoubleDCT_2D lPlan = (DoubleDCT_2D) lPlans.get(lKey);
+		if (lPlan == null)
+		{
+			lPlan = new DoubleDCT_2D(pHeight, pWidth);
+			lPlans.put(lKey, lPlan);
+		}
+		return lPlan;
+	}
+
+	/**
+	 * Returns a 2D DHT plan for the calling thread.
+	 *
+	 * @param pHeight
+	 *          height (rows)
+	 * @param pWidth
+	 *          width (columns)
+	 * @return DHT plan
+	 */
+	public static final DoubleDHT_2D getDHT2D(final int pHeight,
+																						final int pWidth)
+	{
+		final PlanKey lKey = new PlanKey(TransformKind.DHT2D, pHeight, pWidth);
+		final PlanMap lPlans = mPlansThreadLocal.get();
+		DoubleDHT_2D lPlan = (DoubleDHT_2D) lPlans.get(lKey);
+		if (lPlan == null)
+		{
+			lPlan = new DoubleDHT_2D(pHeight, pWidth);
+			lPlans.put(lKey, lPlan);
+		}
+		return lPlan;
+	}
+
+	/**
+	 * Returns a 1D FFT plan for the calling thread.
+	 *
+	 * @param pLength
+	 *          length
+	 * @return FFT plan
+	 */
+	public static final DoubleFFT_1D getFFT1D(final int pLength)
+	{
+		final PlanKey lKey = new PlanKey(TransformKind.FFT1D, 1, pLength);
+		final PlanMap lPlans = mPlansThreadLocal.get();
+		DoubleFFT_1D lPlan = (DoubleFFT_1D) lPlans.get(lKey);
+		if (lPlan == null)
+		{
+			lPlan = new DoubleFFT_1D(pLength);
+			lPlans.put(lKey, lPlan);
+		}
+		return lPlan;
+	}
+
+	/**
+	 * Returns a 2D FFT plan for the calling thread.
+	 *
+	 * @param pHeight
+	 *          height (rows)
+	 * @param pWidth
+	 *          width (columns)
+	 * @return FFT plan
+	 */
+	public static final DoubleFFT_2D getFFT2D(final int pHeight,
+																						final int pWidth)
+	{
+		final PlanKey lKey = new PlanKey(TransformKind.FFT2D, pHeight, pWidth);
+		final PlanMap lPlans = mPlansThreadLocal.get();
+		DoubleFFT_2D lPlan = (DoubleFFT_2D) lPlans.get(lKey);
+		if (lPlan == null)
+		{
+			lPlan = new DoubleFFT_2D(pHeight, pWidth);
+			lPlans.put(lKey, lPlan);
+		}
+		return lPlan;
+	}
+
+	/**
+	 * Returns a single precision 2D DCT plan for the calling thread.
+	 *
+	 * @param pHeight
+	 *          height (rows)
+	 * @param pWidth
+	 *          width (columns)
+	 * @return DCT plan
+	 */
+	public static final FloatDCT_2D getFloatDCT2D(final int pHeight,
+																								final int pWidth)
+	{
+		final PlanKey lKey = new PlanKey(	TransformKind.FLOAT_DCT2D,
+																			pHeight,
+																			pWidth);
+		final PlanMap lPlans = mPlansThreadLocal.get();
+		FloatDCT_2D lPlan = (FloatDCT_2D) lPlans.get(lKey);
+		if (lPlan == null)
+		{
+			lPlan = new FloatDCT_2D(pHeight, pWidth);
+			lPlans.put(lKey, lPlan);
+		}
+		return lPlan;
+	}
+
+	/**
+	 * Returns a single precision 1D FFT plan for the calling thread.
+	 *
+	 * @param pLength
+	 *          length
+	 * @return FFT plan
+	 */
+	public static final FloatFFT_1D getFloatFFT1D(final int pLength)
+	{
+		final PlanKey lKey = new PlanKey(TransformKind.FLOAT_FFT1D, 1, pLength);
+		final PlanMap lPlans = mPlansThreadLocal.get();
+		FloatFFT_1D lPlan = (FloatFFT_1D) lPlans.get(lKey);
+		if (lPlan == null)
+		{
+			lPlan = new FloatFFT_1D(pLength);
+			lPlans.put(lKey, lPlan);
+		}
+		return lPlan;
+	}
+
+	/**
+	 * Drops all plans cached by the calling thread.
+	 */
+	public static final void clear()
+	{
+		mPlansThreadLocal.get().clear();
+	}
+}
@@ -0,0 +1,10 @@
+package autopilot.measures;
+
+import autopilot.image.FloatArrayImage;
+
+public interface FloatFocusMeasureInterface
+{
+
+	double computeFocusMeasure(final FloatArrayImage pFloatArrayImage);
+
+}
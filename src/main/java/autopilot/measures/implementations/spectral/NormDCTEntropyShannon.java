@@ -1,6 +1,8 @@
 package autopilot.measures.implementations.spectral;
 
 import autopilot.image.DoubleArrayImage;
+import autopilot.image.FloatArrayImage;
+import autopilot.measures.FloatFocusMeasureInterface;
 import autopilot.measures.FocusMeasureInterface;
 import autopilot.measures.FocusMeasures;
 
@@ -9,18 +11,33 @@ import autopilot.measures.FocusMeasures;
  * 
  * @author royer
  */
-public class NormDCTEntropyShannon implements FocusMeasureInterface
+public class NormDCTEntropyShannon implements FocusMeasureInterface,
+															FloatFocusMeasureInterface
 {
 
 	public double mPSFSupportDiameter = FocusMeasures.cPSFSupportDiameter;
 
+	/**
+	 * true to compute the entropy with the table-driven logarithm
+	 */
+	public boolean mFastEntropy = false;
+
 	/**
 	 * @see autopilot.measures.FocusMeasureInterface#computeFocusMeasure(autopilot.image.DoubleArrayImage)
 	 */
 	@Override
 	public double computeFocusMeasure(final DoubleArrayImage pDoubleArrayImage)
 	{
-		return compute(pDoubleArrayImage, mPSFSupportDiameter);
+		return compute(pDoubleArrayImage, mPSFSupportDiameter, mFastEntropy);
+	}
+
+	/**
+	 * @see autopilot.measures.FloatFocusMeasureInterface#computeFocusMeasure(autopilot.image.FloatArrayImage)
+	 */
+	@Override
+	public double computeFocusMeasure(final FloatArrayImage pFloatArrayImage)
+	{
+		return compute(pFloatArrayImage, mPSFSupportDiameter, mFastEntropy);
 	}
 
 	/**
@@ -37,6 +54,22 @@ public class NormDCTEntropyShannon implements FocusMeasureInterface
 										FocusMeasures.cPSFSupportDiameter);
 	}
 
+	/**
+	 * Same as {@link #compute(DoubleArrayImage, double, boolean)} with the exact
+	 * logarithm.
+	 * 
+	 * @param pDoubleArrayImage
+	 *          image
+	 * @param pPSFSupportDiameter
+	 *          PSF support diameter
+	 * @return focus measure value
+	 */
+	public static final double compute(	final DoubleArrayImage pDoubleArrayImage,
+																			final double pPSFSupportDiameter)
+	{
+		return compute(pDoubleArrayImage, pPSFSupportDiameter, false);
+	}
+
 	/**
 	 * Computes the the Normalized Discrete Cosine Transform Entropy (Shannon)
 	 * focus measure.
@@ -45,10 +78,13 @@ public class NormDCTEntropyShannon implements FocusMeasureInterface
 	 *          image
 	 * @param pPSFSupportDiameter
 	 *          PSF support diameter
+	 * @param pFastEntropy
+	 *          true for the table-driven logarithm
 	 * @return measure
 	 */
 	public static final double compute(	final DoubleArrayImage pDoubleArrayImage,
-																			final double pPSFSupportDiameter)
+																			final double pPSFSupportDiameter,
+																			final boolean pFastEntropy)
 	{
 		pDoubleArrayImage.dctforward();
 		pDoubleArrayImage.normalizeNormL2();
@@ -62,8 +98,55 @@ public class NormDCTEntropyShannon implements FocusMeasureInterface
 																																				0,
 																																				lOTFSupportX,
 																																				lOTFSupportY,
-																																				true);
+																																				true,
+																																				pFastEntropy);
 		return lEntropy;
 	}
 
+	/**
+	 * Same as {@link #compute(FloatArrayImage, double, boolean)} with the exact
+	 * logarithm.
+	 * 
+	 * @param pFloatArrayImage
+	 *          image
+	 * @param pPSFSupportDiameter
+	 *          PSF support diameter
+	 * @return focus measure value
+	 */
+	public static final double compute(	final FloatArrayImage pFloatArrayImage,
+																			final double pPSFSupportDiameter)
+	{
+		return compute(pFloatArrayImage, pPSFSupportDiameter, false);
+	}
+
+	/**
+	 * Single precision version of
+	 * {@link #compute(DoubleArrayImage, double, boolean)}.
+	 * 
+	 * @param pFloatArrayImage
+	 *          image
+	 * @param pPSFSupportDiameter
+	 *          PSF support diameter
+	 * @param pFastEntropy
+	 *          true for the table-driven logarithm
+	 * @return measure
+	 */
+	public static final double compute(	final FloatArrayImage pFloatArrayImage,
+																			final double pPSFSupportDiameter,
+																			final boolean pFastEntropy)
+	{
+		pFloatArrayImage.dctforward();
+		pFloatArrayImage.normalizeNormL2();
+
+		final int lWidth = pFloatArrayImage.getWidth();
+		final int lHeight = pFloatArrayImage.getHeight();
+		final int lOTFSupportX = (int) (lWidth / pPSFSupportDiameter);
+		final int lOTFSupportY = (int) (lHeight / pPSFSupportDiameter);
+		return pFloatArrayImage.entropyShannonSubTriangle(0,
+																											0,
+																											lOTFSupportX,
+																											lOTFSupportY,
+																											true,
+																											pFastEntropy);
+	}
 }
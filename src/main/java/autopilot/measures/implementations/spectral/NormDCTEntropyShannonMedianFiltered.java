@@ -1,6 +1,8 @@
 package autopilot.measures.implementations.spectral;
 
 import autopilot.image.DoubleArrayImage;
+import autopilot.image.FloatArrayImage;
+import autopilot.measures.FloatFocusMeasureInterface;
 import autopilot.measures.FocusMeasureInterface;
 import autopilot.measures.FocusMeasures;
 
@@ -11,11 +13,17 @@ import autopilot.measures.FocusMeasures;
  * @author royer
  */
 public class NormDCTEntropyShannonMedianFiltered implements
-																								FocusMeasureInterface
+																								FocusMeasureInterface,
+															FloatFocusMeasureInterface
 {
 
 	public double mPSFSupportDiameter = FocusMeasures.cPSFSupportDiameter;
 
+	/**
+	 * true to compute the entropy with the table-driven logarithm
+	 */
+	public boolean mFastEntropy = false;
+
 	public static ThreadLocal<DoubleArrayImage> mMedianFilteredImageThreadLocal = new ThreadLocal<DoubleArrayImage>();
 
 	/**
@@ -24,7 +32,32 @@ public class NormDCTEntropyShannonMedianFiltered implements
 	@Override
 	public double computeFocusMeasure(final DoubleArrayImage pDoubleArrayImage)
 	{
-		return compute(pDoubleArrayImage, mPSFSupportDiameter);
+		return compute(pDoubleArrayImage, mPSFSupportDiameter, mFastEntropy);
+	}
+
+	/**
+	 * @see autopilot.measures.FloatFocusMeasureInterface#computeFocusMeasure(autopilot.image.FloatArrayImage)
+	 */
+	@Override
+	public double computeFocusMeasure(final FloatArrayImage pFloatArrayImage)
+	{
+		return compute(pFloatArrayImage, mPSFSupportDiameter, mFastEntropy);
+	}
+
+	/**
+	 * Same as {@link #compute(DoubleArrayImage, double, boolean)} with the exact
+	 * logarithm.
+	 * 
+	 * @param pDoubleArrayImage
+	 *          image
+	 * @param pPSFSupportDiameter
+	 *          PSF support diameter
+	 * @return focus measure value
+	 */
+	public static final double compute(	final DoubleArrayImage pDoubleArrayImage,
+																			final double pPSFSupportDiameter)
+	{
+		return compute(pDoubleArrayImage, pPSFSupportDiameter, false);
 	}
 
 	/**
@@ -35,10 +68,13 @@ public class NormDCTEntropyShannonMedianFiltered implements
 	 *          image
 	 * @param pPSFSupportDiameter
 	 *          PSF support diameter
+	 * @param pFastEntropy
+	 *          true for the table-driven logarithm
 	 * @return focus measure value
 	 */
 	public static final double compute(	final DoubleArrayImage pDoubleArrayImage,
-																			final double pPSFSupportDiameter)
+																			final double pPSFSupportDiameter,
+																			final boolean pFastEntropy)
 	{
 		pDoubleArrayImage.fastInPlaceMedian();
 		pDoubleArrayImage.dctforward();
@@ -52,7 +88,56 @@ public class NormDCTEntropyShannonMedianFiltered implements
 																																				0,
 																																				lLowFreqWidth,
 																																				lLowFreqHeight,
-																																				true);
+																																				true,
+																																				pFastEntropy);
 		return lEntropy;
 	}
+
+	/**
+	 * Same as {@link #compute(FloatArrayImage, double, boolean)} with the exact
+	 * logarithm.
+	 * 
+	 * @param pFloatArrayImage
+	 *          image
+	 * @param pPSFSupportDiameter
+	 *          PSF support diameter
+	 * @return focus measure value
+	 */
+	public static final double compute(	final FloatArrayImage pFloatArrayImage,
+																			final double pPSFSupportDiameter)
+	{
+		return compute(pFloatArrayImage, pPSFSupportDiameter, false);
+	}
+
+	/**
+	 * Single precision version of
+	 * {@link #compute(DoubleArrayImage, double, boolean)}.
+	 * 
+	 * @param pFloatArrayImage
+	 *          image
+	 * @param pPSFSupportDiameter
+	 *          PSF support diameter
+	 * @param pFastEntropy
+	 *          true for the table-driven logarithm
+	 * @return focus measure value
+	 */
+	public static final double compute(	final FloatArrayImage pFloatArrayImage,
+																			final double pPSFSupportDiameter,
+																			final boolean pFastEntropy)
+	{
+		pFloatArrayImage.fastInPlaceMedian();
+		pFloatArrayImage.dctforward();
+		pFloatArrayImage.normalizeNormL2();
+
+		final int lWidth = pFloatArrayImage.getWidth();
+		final int lHeight = pFloatArrayImage.getHeight();
+		final int lLowFreqWidth = (int) (lWidth / pPSFSupportDiameter);
+		final int lLowFreqHeight = (int) (lHeight / pPSFSupportDiameter);
+		return pFloatArrayImage.entropyShannonSubTriangle(0,
+																											0,
+																											lLowFreqWidth,
+																											lLowFreqHeight,
+																											true,
+																											pFastEntropy);
+	}
 }
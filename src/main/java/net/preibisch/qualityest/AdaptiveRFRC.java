@@ -0,0 +1,234 @@
+package net.preibisch.qualityest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import ij.IJ;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Pair;
+import net.imglib2.util.Util;
+import net.preibisch.mvrecon.process.quality.FRCTools;
+
+/**
+ * Relative FRC with adaptive sampling in z. Instead of evaluating every zStepSize-th plane, the FRC is first computed
+ * on a sparse lattice (every initialStep-th of these planes plus the last one). Then, in rounds, a plane in the middle
+ * of two neighboring evaluated planes is added if their medians differ by more than tolerance (relative to the larger
+ * one) or if the curve bends, i.e. the straight lines through the neighboring intervals predict the other end of the
+ * interval off by more than tolerance. Intervals with the largest differences are refined first until nothing changes
+ * anymore or the budget of evaluated planes is used up, the remaining planes are interpolated linearly.
+ *
+ * The number of FRC blocks that are computed therefore grows with the number of changes of the curve and not with
+ * the depth of the stack. Features that are narrower than initialStep * zStepSize planes can be missed.
+ */
+public class AdaptiveRFRC
+{
+	public static int defaultInitialStep = 16;
+
+	final double tolerance;
+	final int maxPlanes, initialStep;
+
+	int evaluatedPlanes = 0;
+
+	/**
+	 * @param tolerance - relative change of the median quality between neighboring evaluated planes that triggers refinement
+	 * @param maxPlanes - maximal number of evaluated planes, 0 = unlimited
+	 * @param initialStep - spacing of the initial lattice in units of zStepSize
+	 */
+	public AdaptiveRFRC( final double tolerance, final int maxPlanes, final int initialStep )
+	{
+		this.tolerance = tolerance;
+		this.maxPlanes = Math.max( 0, maxPlanes );
+		this.initialStep = Math.max( 1, initialStep );
+	}
+
+	public AdaptiveRFRC( final double tolerance, final int maxPlanes )
+	{
+		this( tolerance, maxPlanes, defaultInitialStep );
+	}
+
+	/**
+	 * @param input - the 3d image
+	 * @param zStepSize - step size of the finest lattice in z
+	 * @param fftSize - size of the FRC blocks
+	 * @param rFRCDist - relative FRC distance in z
+	 * @param stats - the statistics of the run
+	 * @return the median quality over all blocks (of the nearest evaluated or interpolated plane) for each plane of the input (index 0 corresponds to input.min( 2 ))
+	 */
+	public < T extends RealType< T > > double[] computeMedians(
+			final RandomAccessibleInterval< T > input,
+			final int zStepSize,
+			final int fftSize,
+			final int rFRCDist,
+			final RunStatistics stats )
+	{
+		final long firstZ = input.min( 2 ) + rFRCDist;
+		final int numSamples = (int)Estimate_Quality.numFRCPlanes( input, zStepSize, rFRCDist );
+
+		if ( numSamples < 1 )
+			throw new IllegalArgumentException( "z-size (" + input.dimension( 2 ) + ") is too small given the relative FRC distance (" + rFRCDist + "), should be at least " + (2 * rFRCDist + 1) );
+
+		long t = stats.start();
+		final ArrayList< Pair< Long, Long > > xyPositions = FRCTools.distributeSquaresXY( input, fftSize, 0.25 );
+		stats.stop( "FRC block placement", t, xyPositions.size() );
+
+		final int numBlocks = xyPositions.size();
+		final long[] x = new long[ numBlocks ];
+		final long[] y = new long[ numBlocks ];
+
+		for ( int b = 0; b < numBlocks; ++b )
+		{
+			x[ b ] = xyPositions.get( b ).getA();
+			y[ b ] = xyPositions.get( b ).getB();
+		}
+
+		final boolean[] evaluated = new boolean[ numSamples ];
+		final double[] sampleMedians = new double[ numSamples ];
+
+		final ArrayList< Integer > next = new ArrayList<>();
+
+		for ( int k = 0; k < numSamples; k += initialStep )
+			next.add( k );
+
+		if ( next.get( next.size() - 1 ) != numSamples - 1 )
+			next.add( numSamples - 1 );
+
+		final int budget = maxPlanes > 0 ? Math.max( maxPlanes, next.size() ) : numSamples;
+		int used = 0;
+
+		while ( next.size() > 0 )
+		{
+			t = stats.start();
+			evaluate( input, x, y, next, numSamples, firstZ, zStepSize, fftSize, evaluated, sampleMedians );
+			stats.stop( "FRC (block extraction + FFT)", t, (long)next.size() * numBlocks );
+			stats.addBytes( "FRC (block extraction + FFT)", (long)next.size() * numBlocks * 2 * 4L * fftSize * fftSize );
+
+			used += next.size();
+
+			next.clear();
+			next.addAll( refinements( evaluated, sampleMedians, budget - used ) );
+
+			IJ.showProgress( used, budget );
+		}
+
+		evaluatedPlanes += used;
+
+		IJ.log( "Adaptive rFRC: " + used + " of " + numSamples + " planes evaluated (" + ( (long)used * numBlocks ) + " FRC blocks)." );
+
+		// linear interpolation between the evaluated planes
+		int k0 = 0;
+
+		for ( int k1 = 1; k1 < numSamples; ++k1 )
+		{
+			if ( evaluated[ k1 ] )
+			{
+				for ( int k = k0 + 1; k < k1; ++k )
+					sampleMedians[ k ] = sampleMedians[ k0 ] + ( sampleMedians[ k1 ] - sampleMedians[ k0 ] ) * ( k - k0 ) / ( k1 - k0 );
+
+				k0 = k1;
+			}
+		}
+
+		IJ.showProgress( 1.0 );
+
+		return Estimate_Quality.planesFromSamples( sampleMedians, input, firstZ, zStepSize );
+	}
+
+	/**
+	 * @return the number of planes that were evaluated (over all runs of this instance)
+	 */
+	public int evaluatedPlanes()
+	{
+		return evaluatedPlanes;
+	}
+
+	/**
+	 * @param budget - maximal number of planes to add
+	 * @return the planes to evaluate next, the middle of the intervals with the largest changes first
+	 */
+	protected ArrayList< Integer > refinements( final boolean[] evaluated, final double[] sampleMedians, final int budget )
+	{
+		final ArrayList< Integer > planes = new ArrayList<>();
+
+		if ( budget <= 0 )
+			return planes;
+
+		final ArrayList< Integer > k = new ArrayList<>();
+
+		for ( int i = 0; i < evaluated.length; ++i )
+			if ( evaluated[ i ] )
+				k.add( i );
+
+		final ArrayList< double[] > candidates = new ArrayList<>(); // { score, middle }
+
+		for ( int i = 0; i < k.size() - 1; ++i )
+		{
+			final int k0 = k.get( i ), k1 = k.get( i + 1 );
+
+			if ( k1 - k0 < 2 )
+				continue;
+
+			final double m0 = sampleMedians[ k0 ], m1 = sampleMedians[ k1 ];
+			final double scale = Math.max( Math.max( Math.abs( m0 ), Math.abs( m1 ) ), 1e-12 );
+
+			double score = Math.abs( m1 - m0 ) / scale;
+
+			// curvature: how far off the lines through the neighboring intervals are at the other end of this one
+			if ( i > 0 )
+			{
+				final int kp = k.get( i - 1 );
+				final double predicted = m0 + ( m0 - sampleMedians[ kp ] ) * ( k1 - k0 ) / ( k0 - kp );
+				score = Math.max( score, Math.abs( predicted - m1 ) / scale );
+			}
+
+			if ( i + 2 < k.size() )
+			{
+				final int kn = k.get( i + 2 );
+				final double predicted = m1 - ( sampleMedians[ kn ] - m1 ) * ( k1 - k0 ) / ( kn - k1 );
+				score = Math.max( score, Math.abs( predicted - m0 ) / scale );
+			}
+
+			if ( score > tolerance )
+				candidates.add( new double[] { score, ( k0 + k1 ) / 2 } );
+		}
+
+		candidates.sort( ( a, b ) -> Double.compare( b[ 0 ], a[ 0 ] ) );
+
+		for ( int i = 0; i < Math.min( budget, candidates.size() ); ++i )
+			planes.add( (int)candidates.get( i )[ 1 ] );
+
+		return planes;
+	}
+
+	/**
+	 * Computes all blocks of the given planes and stores their median
+	 */
+	protected static < T extends RealType< T > > void evaluate(
+			final RandomAccessibleInterval< T > input,
+			final long[] x,
+			final long[] y,
+			final ArrayList< Integer > planes,
+			final int numSamples,
+			final long firstZ,
+			final int zStepSize,
+			final int fftSize,
+			final boolean[] evaluated,
+			final double[] sampleMedians )
+	{
+		final int numBlocks = x.length;
+		final boolean[] selected = new boolean[ numSamples * numBlocks ];
+
+		for ( final int k : planes )
+			Arrays.fill( selected, k * numBlocks, ( k + 1 ) * numBlocks, true );
+
+		final double[] grid = CoarseToFineRFRC.evaluate( input, x, y, selected, numSamples, firstZ, zStepSize, fftSize );
+		final double[] values = new double[ numBlocks ];
+
+		for ( final int k : planes )
+		{
+			System.arraycopy( grid, k * numBlocks, values, 0, numBlocks );
+			sampleMedians[ k ] = Util.median( values );
+			evaluated[ k ] = true;
+		}
+	}
+}
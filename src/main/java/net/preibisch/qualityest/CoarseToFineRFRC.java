@@ -0,0 +1,400 @@
+package net.preibisch.qualityest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+import net.imglib2.Cursor;
+import net.imglib2.Point;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealCursor;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Pair;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.process.quality.FRCRealRandomAccessible;
+import net.preibisch.mvrecon.process.quality.FRCTools;
+
+/**
+ * Relative FRC that computes full resolution FRC blocks only where the quality changes.
+ *
+ * The stack is first binned in xy (block averaging) and the rFRC of every block and every evaluated plane is computed
+ * on the binned stack with blocks of size fftSize/binning, i.e. at about 1/binning^2 of the cost. At full resolution
+ * every block is then computed on anchor planes (every anchorStep-th evaluated plane, plus the first and the last one).
+ * Between two anchors a block is computed at full resolution on every evaluated plane if
+ * <ul>
+ * <li>its full resolution quality differs between the two anchors by more than tolerance (relative to the larger one),</li>
+ * <li>the relative change of its coarse quality between the anchors differs from the full resolution one by more than tolerance, or</li>
+ * <li>its coarse quality deviates from the straight line between the anchors by more than tolerance,</li>
+ * </ul>
+ * otherwise its full resolution quality is interpolated linearly between the anchors. The medians over all blocks are
+ * assigned to the planes like in Estimate_Quality.medianPerZ().
+ *
+ * An interpolated block therefore lies between two full resolution values that are within tolerance of each other,
+ * i.e. it stays within tolerance of a full resolution run unless the quality has a feature between the anchors that
+ * the binned stack does not show at all. On stacks where the quality changes slowly in z almost only the anchors are
+ * computed, i.e. roughly 1/anchorStep of the full resolution blocks. If binning fails the full resolution rFRC is
+ * computed instead.
+ */
+public class CoarseToFineRFRC
+{
+	public static int defaultAnchorStep = 8;
+
+	// the coarse blocks are at least this large
+	public static int minCoarseFFTSize = 32;
+
+	final int binning, anchorStep;
+	final double tolerance;
+	final int numThreads;
+
+	long coarseBlocks = 0, fullBlocks = 0, interpolatedBlocks = 0;
+
+	/**
+	 * @param binning - binning factor in xy for the coarse level (reduced so that the coarse blocks have at least minCoarseFFTSize pixels)
+	 * @param tolerance - relative change of the full resolution quality between two anchors (or deviation of the coarse quality from it) that triggers full resolution FRC
+	 * @param anchorStep - number of evaluated planes between two full resolution anchor planes
+	 * @param numThreads - number of threads for binning
+	 */
+	public CoarseToFineRFRC( final int binning, final double tolerance, final int anchorStep, final int numThreads )
+	{
+		this.binning = Math.max( 1, binning );
+		this.tolerance = tolerance;
+		this.anchorStep = Math.max( 1, anchorStep );
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	public CoarseToFineRFRC( final int binning, final double tolerance, final int numThreads )
+	{
+		this( binning, tolerance, defaultAnchorStep, numThreads );
+	}
+
+	/**
+	 * @param input - the 3d image
+	 * @param zStepSize - step size in z
+	 * @param fftSize - size of the FRC blocks
+	 * @param rFRCDist - relative FRC distance in z
+	 * @param stats - the statistics of the run
+	 * @return the median quality over all blocks (of the nearest evaluated plane) for each plane of the input (index 0 corresponds to input.min( 2 ))
+	 */
+	public < T extends RealType< T > > double[] computeMedians(
+			final RandomAccessibleInterval< T > input,
+			final int zStepSize,
+			final int fftSize,
+			final int rFRCDist,
+			final RunStatistics stats )
+	{
+		final int bin = Math.max( 1, Math.min( binning, fftSize / minCoarseFFTSize ) );
+
+		if ( bin < 2 )
+		{
+			IJ.log( "Block size " + fftSize + " is too small for a binned rFRC pre-pass, computing full resolution rFRC." );
+			return Estimate_Quality.computeMedians( input, zStepSize, fftSize, rFRCDist, stats ).getA();
+		}
+
+		long t = stats.start();
+		final ArrayList< Pair< Long, Long > > xyPositions = FRCTools.distributeSquaresXY( input, fftSize, 0.25 );
+		stats.stop( "FRC block placement", t, xyPositions.size() );
+
+		final int numBlocks = xyPositions.size();
+		final long firstZ = input.min( 2 ) + rFRCDist;
+		final int numSamples = (int)Estimate_Quality.numFRCPlanes( input, zStepSize, rFRCDist );
+
+		if ( numSamples < 1 )
+			throw new IllegalArgumentException( "z-size (" + input.dimension( 2 ) + ") is too small given the relative FRC distance (" + rFRCDist + "), should be at least " + (2 * rFRCDist + 1) );
+
+		// coarse level
+		t = stats.start();
+		final RandomAccessibleInterval< FloatType > binned = bin( input, bin, numThreads );
+		stats.stop( "coarse rFRC (binning)", t, input.dimension( 2 ) );
+
+		if ( binned == null )
+		{
+			IJ.log( "Binning the stack failed, computing full resolution rFRC." );
+			return Estimate_Quality.computeMedians( input, zStepSize, fftSize, rFRCDist, stats ).getA();
+		}
+
+		stats.addBytes( "coarse rFRC (binning)", 4L * binned.dimension( 0 ) * binned.dimension( 1 ) * binned.dimension( 2 ) );
+
+		final long[] coarseX = new long[ numBlocks ];
+		final long[] coarseY = new long[ numBlocks ];
+
+		for ( int b = 0; b < numBlocks; ++b )
+		{
+			coarseX[ b ] = ( xyPositions.get( b ).getA() - input.min( 0 ) ) / bin;
+			coarseY[ b ] = ( xyPositions.get( b ).getB() - input.min( 1 ) ) / bin;
+		}
+
+		final boolean[] all = new boolean[ numSamples * numBlocks ];
+		Arrays.fill( all, true );
+
+		t = stats.start();
+		final double[] coarse = evaluate( binned, coarseX, coarseY, all, numSamples, firstZ, zStepSize, fftSize / bin );
+		stats.stop( "coarse rFRC (block extraction + FFT)", t, numSamples * numBlocks );
+
+		// anchors at full resolution
+		final boolean[] isAnchor = new boolean[ numSamples ];
+
+		for ( int k = 0; k < numSamples; k += anchorStep )
+			isAnchor[ k ] = true;
+
+		isAnchor[ numSamples - 1 ] = true;
+
+		final boolean[] selected = new boolean[ numSamples * numBlocks ];
+
+		for ( int k = 0; k < numSamples; ++k )
+			if ( isAnchor[ k ] )
+				Arrays.fill( selected, k * numBlocks, ( k + 1 ) * numBlocks, true );
+
+		final long[] fullX = new long[ numBlocks ];
+		final long[] fullY = new long[ numBlocks ];
+
+		for ( int b = 0; b < numBlocks; ++b )
+		{
+			fullX[ b ] = xyPositions.get( b ).getA();
+			fullY[ b ] = xyPositions.get( b ).getB();
+		}
+
+		final int numAnchors = count( selected );
+
+		t = stats.start();
+		final double[] grid = evaluate( input, fullX, fullY, selected, numSamples, firstZ, zStepSize, fftSize );
+		stats.stop( "FRC anchors (block extraction + FFT)", t, numAnchors );
+		stats.addBytes( "FRC anchors (block extraction + FFT)", numAnchors * 2 * 4L * fftSize * fftSize );
+
+		// segments between anchors where the full resolution quality changes or the coarse quality does not predict it
+		final boolean[] refine = new boolean[ numSamples * numBlocks ];
+
+		for ( int k0 = 0; k0 < numSamples - 1; )
+		{
+			int k1 = k0 + 1;
+
+			while ( !isAnchor[ k1 ] )
+				++k1;
+
+			for ( int b = 0; b < numBlocks; ++b )
+				if ( needsRefinement( grid, coarse, numBlocks, b, k0, k1 ) )
+					for ( int k = k0 + 1; k < k1; ++k )
+						refine[ k * numBlocks + b ] = selected[ k * numBlocks + b ] = true;
+
+			k0 = k1;
+		}
+
+		final int numRefined = count( refine );
+
+		t = stats.start();
+		final double[] refined = evaluate( input, fullX, fullY, refine, numSamples, firstZ, zStepSize, fftSize );
+		stats.stop( "FRC (block extraction + FFT)", t, numRefined );
+		stats.addBytes( "FRC (block extraction + FFT)", numRefined * 2 * 4L * fftSize * fftSize );
+
+		for ( int i = 0; i < refine.length; ++i )
+			if ( refine[ i ] )
+				grid[ i ] = refined[ i ];
+
+		final int numSelected = numAnchors + numRefined;
+
+		// linear interpolation of the remaining blocks between the anchors
+		for ( int k0 = 0; k0 < numSamples - 1; )
+		{
+			int k1 = k0 + 1;
+
+			while ( !isAnchor[ k1 ] )
+				++k1;
+
+			for ( int b = 0; b < numBlocks; ++b )
+				for ( int k = k0 + 1; k < k1; ++k )
+					if ( !selected[ k * numBlocks + b ] )
+						grid[ k * numBlocks + b ] = grid[ k0 * numBlocks + b ] + ( grid[ k1 * numBlocks + b ] - grid[ k0 * numBlocks + b ] ) * ( k - k0 ) / ( k1 - k0 );
+
+			k0 = k1;
+		}
+
+		synchronized ( this )
+		{
+			coarseBlocks += numSamples * numBlocks;
+			fullBlocks += numSelected;
+			interpolatedBlocks += numSamples * numBlocks - numSelected;
+		}
+
+		IJ.log( "Coarse-to-fine rFRC (binning " + bin + "): " + numSelected + " of " + ( numSamples * numBlocks ) + " blocks computed at full resolution." );
+
+		t = stats.start();
+		final double[] medians = Estimate_Quality.mediansPerPlane( grid, numBlocks, numSamples, input, firstZ, zStepSize );
+		stats.stop( "median per plane", t, medians.length );
+
+		return medians;
+	}
+
+	/**
+	 * @return the number of blocks computed at the coarse level, at full resolution and interpolated (over all runs of this instance)
+	 */
+	public synchronized long[] blockCounts()
+	{
+		return new long[] { coarseBlocks, fullBlocks, interpolatedBlocks };
+	}
+
+	/**
+	 * @param grid - the full resolution quality, computed on the anchors k0 and k1
+	 * @param coarse - the coarse quality, computed on all evaluated planes
+	 * @return true if the full resolution quality of block b has to be computed between the anchors k0 and k1
+	 */
+	protected boolean needsRefinement( final double[] grid, final double[] coarse, final int numBlocks, final int b, final int k0, final int k1 )
+	{
+		final double f0 = grid[ k0 * numBlocks + b ];
+		final double f1 = grid[ k1 * numBlocks + b ];
+		final double fullChange = relativeChange( f0, f1 );
+
+		// the full resolution quality changes, interpolation would not stay within tolerance
+		if ( !( Math.abs( fullChange ) <= tolerance ) )
+			return true;
+
+		// the coarse quality changes differently, so it does not represent this block
+		if ( !( Math.abs( relativeChange( coarse[ k0 * numBlocks + b ], coarse[ k1 * numBlocks + b ] ) - fullChange ) <= tolerance ) )
+			return true;
+
+		return !isLinear( coarse, numBlocks, b, k0, k1 );
+	}
+
+	/**
+	 * @return the change from q0 to q1 relative to the larger of both (0 if both are 0)
+	 */
+	protected static double relativeChange( final double q0, final double q1 )
+	{
+		final double max = Math.max( Math.abs( q0 ), Math.abs( q1 ) );
+
+		return max == 0 ? 0 : ( q1 - q0 ) / max;
+	}
+
+	/**
+	 * @return true if the coarse quality of block b deviates from the straight line between the anchors k0 and k1 by at most tolerance
+	 */
+	protected boolean isLinear( final double[] coarse, final int numBlocks, final int b, final int k0, final int k1 )
+	{
+		final double q0 = coarse[ k0 * numBlocks + b ];
+		final double q1 = coarse[ k1 * numBlocks + b ];
+		final double maxDeviation = tolerance * Math.max( Math.abs( q0 ), Math.abs( q1 ) );
+
+		for ( int k = k0 + 1; k < k1; ++k )
+		{
+			final double expected = q0 + ( q1 - q0 ) * ( k - k0 ) / ( k1 - k0 );
+
+			if ( !( Math.abs( coarse[ k * numBlocks + b ] - expected ) <= maxDeviation ) )
+				return false;
+		}
+
+		return true;
+	}
+
+	protected static int count( final boolean[] selected )
+	{
+		int count = 0;
+
+		for ( final boolean s : selected )
+			if ( s )
+				++count;
+
+		return count;
+	}
+
+	/**
+	 * Computes the relative FRC for the selected (evaluated plane, block) pairs
+	 *
+	 * @return the quality indexed by [sample * numBlocks + block], 0 for pairs that were not selected
+	 */
+	protected static < T extends RealType< T > > double[] evaluate(
+			final RandomAccessibleInterval< T > img,
+			final long[] x,
+			final long[] y,
+			final boolean[] selected,
+			final int numSamples,
+			final long firstZ,
+			final int zStepSize,
+			final int fftSize )
+	{
+		final int numBlocks = x.length;
+		final double[] grid = new double[ numSamples * numBlocks ];
+		final HashMap< Long, Integer > blockIndex = new HashMap<>();
+		final ArrayList< Point > locations = new ArrayList<>();
+
+		for ( int b = 0; b < numBlocks; ++b )
+			blockIndex.put( Estimate_Quality.xyKey( x[ b ], y[ b ] ), b );
+
+		for ( int k = 0; k < numSamples; ++k )
+			for ( int b = 0; b < numBlocks; ++b )
+				if ( selected[ k * numBlocks + b ] )
+					locations.add( new Point( x[ b ], y[ b ], firstZ + (long)k * zStepSize ) );
+
+		if ( locations.size() == 0 )
+			return grid;
+
+		final FRCRealRandomAccessible< T > frc = new FRCRealRandomAccessible< T >( img, locations, fftSize, true, null );
+		final RealCursor< FloatType > cursor = frc.getQualityList().cursor();
+
+		while ( cursor.hasNext() )
+		{
+			final double quality = cursor.next().get();
+			final int b = blockIndex.get( Estimate_Quality.xyKey( Math.round( cursor.getDoublePosition( 0 ) ), Math.round( cursor.getDoublePosition( 1 ) ) ) );
+			final int k = (int)( ( Math.round( cursor.getDoublePosition( 2 ) ) - firstZ ) / zStepSize );
+
+			grid[ k * numBlocks + b ] = quality;
+		}
+
+		return grid;
+	}
+
+	/**
+	 * Averages bin x bin pixels of every plane (partial bins at the border are averaged over the existing pixels)
+	 *
+	 * @return the binned stack, xy starts at 0, z has the same coordinates as the input, or null if a worker failed
+	 */
+	public static < T extends RealType< T > > RandomAccessibleInterval< FloatType > bin( final RandomAccessibleInterval< T > input, final int bin, final int numThreads )
+	{
+		final int width = (int)input.dimension( 0 );
+		final int height = (int)input.dimension( 1 );
+		final int depth = (int)input.dimension( 2 );
+		final int bw = ( width + bin - 1 ) / bin;
+		final int bh = ( height + bin - 1 ) / bin;
+
+		final float[] binned = new float[ bw * bh * depth ];
+		final AtomicInteger nextPlane = new AtomicInteger( 0 );
+
+		final boolean success = ParallelSliceEvaluation.runWorkers( Math.min( numThreads, depth ), () ->
+		{
+			final double[] sums = new double[ bw * bh ];
+
+			for ( int z = nextPlane.getAndIncrement(); z < depth; z = nextPlane.getAndIncrement() )
+			{
+				Arrays.fill( sums, 0 );
+
+				final Cursor< T > c = Views.flatIterable( Views.hyperSlice( input, 2, input.min( 2 ) + z ) ).cursor();
+
+				for ( int yi = 0; yi < height; ++yi )
+				{
+					final int row = ( yi / bin ) * bw;
+
+					for ( int xi = 0; xi < width; ++xi )
+						sums[ row + xi / bin ] += c.next().getRealDouble();
+				}
+
+				final int offset = z * bw * bh;
+
+				for ( int yi = 0; yi < bh; ++yi )
+				{
+					final int countY = Math.min( bin, height - yi * bin );
+
+					for ( int xi = 0; xi < bw; ++xi )
+						binned[ offset + yi * bw + xi ] = (float)( sums[ yi * bw + xi ] / ( countY * Math.min( bin, width - xi * bin ) ) );
+				}
+			}
+
+			return null;
+		});
+
+		if ( !success )
+			return null;
+
+		return Views.translate( ArrayImgs.floats( binned, bw, bh, depth ), 0, 0, input.min( 2 ) );
+	}
+}
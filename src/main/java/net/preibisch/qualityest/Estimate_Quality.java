@@ -2,13 +2,18 @@ package net.preibisch.qualityest;
 
 import java.awt.Color;
 import java.awt.Rectangle;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
 
-import autopilot.image.DoubleArrayImage;
+import autopilot.image.ReductionKernels;
+import autopilot.measures.FloatFocusMeasureInterface;
 import autopilot.measures.FocusMeasureInterface;
+import autopilot.measures.FocusMeasures;
 import autopilot.measures.implementations.spectral.NormDCTEntropyShannon;
 import autopilot.measures.implementations.spectral.NormDCTEntropyShannonMedianFiltered;
 import autopilot.measures.implementations.spectral.NormDFTEntropyShannon;
@@ -28,28 +33,23 @@ import ij.gui.GenericDialog;
 import ij.gui.Plot;
 import ij.gui.PlotWindow;
 import ij.gui.Roi;
+import ij.io.FileInfo;
 import ij.measure.ResultsTable;
 import ij.plugin.PlugIn;
-import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
-import net.imglib2.KDTree;
 import net.imglib2.Point;
-import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.converter.Converter;
-import net.imglib2.converter.Converters;
+import net.imglib2.RealCursor;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.multithreading.SimpleMultiThreading;
-import net.imglib2.neighborsearch.NearestNeighborSearch;
-import net.imglib2.neighborsearch.NearestNeighborSearchOnKDTree;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
+import net.imglib2.util.ValuePair;
 import net.imglib2.view.Views;
 import net.preibisch.mvrecon.fiji.plugin.util.GUIHelper;
 import net.preibisch.mvrecon.process.export.DisplayImage;
@@ -63,6 +63,19 @@ public class Estimate_Quality implements PlugIn
 	public static int defaultFRCStepSize = 1;
 	public static int defaultFFTSize = 256;
 	public static boolean defaultVisualize = false;
+	public static boolean defaultStreaming = false;
+	public static int defaultCoarseBinning = 1;
+	public static double defaultCoarseTolerance = 0.02;
+	public static double defaultAdaptiveTolerance = 0;
+	public static int defaultAdaptiveBudget = 0;
+	public static int defaultNumThreads = Runtime.getRuntime().availableProcessors();
+	public static boolean defaultSinglePrecision = false;
+	public static boolean defaultFastEntropy = false;
+	public static int defaultNumTiles = 0;
+	public static int defaultReadAhead = 0;
+	public static boolean defaultStatistics = false;
+	public static boolean defaultResultCache = false;
+	public static int defaultNumJobs = 2;
 
 	public static long[] defaultMin, defaultMax;
 
@@ -71,15 +84,34 @@ public class Estimate_Quality implements PlugIn
 			"Shannon Entropy",
 			"Normalized DCT Shannon Entropy",
 			"Normalized DCT Shannon Entropy, median filtered",
-			"Normalized DFT Shannon Entropy" };
+			"Normalized DFT Shannon Entropy",
+			"Multiple methods (single pass, combined table)" };
 	public static int defaultMethodChoice = 0;
 
+	// used for table and plot titles, same order as methodChoices
+	public static final String[] measureDescriptions = new String[] {
+			"rFRC",
+			"Shannon Entropy",
+			"DCT Shannon Entropy",
+			"median DCT Shannon Entropy",
+			"DFT Shannon Entropy" };
+
+	// which methods to compute if "Multiple methods" is selected, same order as measureDescriptions
+	public static boolean[] defaultMultipleMethods = new boolean[] { true, true, true, true, true };
+
 	public static int defaultAreaChoice = -1;
 	public static final String[] areaChoices = new String[] {
 			"Entire image",
 			"Use selected 2D ROI (if available)",
 			"Define interactively (3D with BDV)" };
 
+	// per-z curves of previous runs, null = off
+	protected QualityCache resultCache = null;
+
+	// the content hash of the last input that was looked up in the result cache
+	protected RandomAccessibleInterval< ? > hashedInput = null;
+	protected long inputHash = 0;
+
 	@Override
 	public void run( String arg )
 	{
@@ -123,20 +155,15 @@ public class Estimate_Quality implements PlugIn
 			return;
 		}
 
-		if ( imp.getNFrames() > 1 )
+		// multiple channels and frames are processed as independent volumes, RGB is not supported
+		if ( imp.getType() == ImagePlus.COLOR_256 || imp.getType() == ImagePlus.COLOR_RGB )
 		{
-			IJ.log( "The image has multiple frames, please duplicate a single timepoint to run\n"
-					+ " (Please call Image>Duplicate and select a single timepoint)." );
+			IJ.log( "The selected image is an RGB/color image, please convert it to a multichannel stack\n"
+					+ " (Please check Image>Color>Make Composite or Image>Type)." );
 			return;
 		}
 
-		// do not bother with multichannel images for now
-		if ( imp.getType() == ImagePlus.COLOR_256 || imp.getType() == ImagePlus.COLOR_RGB || imp.getNChannels() != 1 )
-		{
-			IJ.log( "The selected image has multiple channels, please split them and process individually\n"
-					+ " (Please check Image>Color>Split Channels)." );
-			return;
-		}
+		final boolean hyperstack = HyperstackQuality.isHyperstack( imp );
 
 		// check if the user has set a rectangular Region of Interest (ROI)
 		if ( imp.getRoi() != null && imp.getRoi().getType() != Roi.RECTANGLE )
@@ -163,7 +190,17 @@ public class Estimate_Quality implements PlugIn
 		gd = new GenericDialog( "Quality-Estimation Paramters" );
 		gd.addChoice( "Area_for_quality estimation", areaChoices, areaChoices[ defaultAreaChoice ] );
 
-		if ( methodChoice == 0 )
+		final boolean multipleMethods = methodChoice == methodChoices.length - 1;
+
+		if ( multipleMethods )
+		{
+			gd.addMessage( "Methods to compute (each slice is loaded once for all entropy measures):" );
+
+			for ( int i = 0; i < measureDescriptions.length; ++i )
+				gd.addCheckbox( "Compute_" + measureDescriptions[ i ].replace( ' ', '_' ), defaultMultipleMethods[ i ] );
+		}
+
+		if ( methodChoice == 0 || multipleMethods )
 		{
 			gd.addMessage( "Note: XY size should be identical across experiments you want to compare.", GUIHelper.mediumstatusfont, Color.RED );
 	
@@ -180,14 +217,86 @@ public class Estimate_Quality implements PlugIn
 			gd.addNumericField( "Step_size (z)", defaultFRCStepSize, 0 );
 			gd.addNumericField( "Relative_FRC_distance (z)", defaultRFRCDist, 0 );
 			gd.addCheckbox( "Visualize result as image", defaultVisualize );
+			gd.addCheckbox( "Stream_planes (low memory, e.g. for virtual stacks)", defaultStreaming || imp.getStack().isVirtual() );
+			gd.addNumericField( "Coarse_binning (xy, coarse-to-fine rFRC, 1 = off)", defaultCoarseBinning, 0 );
+			gd.addNumericField( "Coarse_tolerance (relative, coarse-to-fine rFRC)", defaultCoarseTolerance, 3 );
+			gd.addNumericField( "Adaptive_z_tolerance (relative, 0 = fixed step size)", defaultAdaptiveTolerance, 3 );
+			gd.addNumericField( "Adaptive_z_budget (max. evaluated planes, 0 = unlimited)", defaultAdaptiveBudget, 0 );
+		}
+
+		if ( methodChoice != 0 )
+		{
+			gd.addNumericField( "Number_of_threads", defaultNumThreads, 0 );
+			gd.addCheckbox( "Single_precision (faster, less memory, entropy measures only)", defaultSinglePrecision );
+			gd.addCheckbox( "Fast_entropy (approximate logarithm, e.g. for screening)", defaultFastEntropy );
+			gd.addNumericField( "Tiles_per_dimension (spatial quality map, 0 = off, e.g. " + FocusMeasures.cNumberOfTiles + ")", defaultNumTiles, 0 );
 		}
 
+		gd.addNumericField( "Read_ahead (planes loaded in the background, 0 = off)", defaultReadAhead, 0 );
+		gd.addCheckbox( "Report_statistics (time per stage, to the log and as JSON next to the image)", defaultStatistics );
+		gd.addCheckbox( "Use_result_cache (reuse curves of identical runs, stored in " + QualityCache.defaultDirectory + ")", defaultResultCache );
+
+		if ( hyperstack )
+			gd.addNumericField( "Parallel_volumes (" + imp.getNChannels() + " channel(s) x " + imp.getNFrames() + " timepoint(s))", defaultNumJobs, 0 );
+
 		gd.showDialog();
 		if ( gd.wasCanceled() )
 			return;
 
 		final int areaChoice = defaultAreaChoice = gd.getNextChoiceIndex();
 
+		final boolean[] selectedMethods = new boolean[ measureDescriptions.length ];
+
+		if ( multipleMethods )
+			for ( int i = 0; i < measureDescriptions.length; ++i )
+				selectedMethods[ i ] = defaultMultipleMethods[ i ] = gd.getNextBoolean();
+		else
+			selectedMethods[ methodChoice ] = true;
+
+		if ( methodChoice == 0 || multipleMethods )
+		{
+			defaultFFTSize = (int)Math.round( gd.getNextNumber() );
+			defaultFRCStepSize = (int)Math.round( gd.getNextNumber() );
+			defaultRFRCDist = (int)Math.round( gd.getNextNumber() );
+			defaultVisualize = gd.getNextBoolean();
+			defaultStreaming = gd.getNextBoolean();
+			defaultCoarseBinning = Math.max( 1, (int)Math.round( gd.getNextNumber() ) );
+			defaultCoarseTolerance = Math.max( 0, gd.getNextNumber() );
+			defaultAdaptiveTolerance = Math.max( 0, gd.getNextNumber() );
+			defaultAdaptiveBudget = Math.max( 0, (int)Math.round( gd.getNextNumber() ) );
+		}
+
+		if ( methodChoice != 0 )
+		{
+			defaultNumThreads = Math.max( 1, (int)Math.round( gd.getNextNumber() ) );
+			defaultSinglePrecision = gd.getNextBoolean();
+			defaultFastEntropy = gd.getNextBoolean();
+			defaultNumTiles = Math.max( 0, (int)Math.round( gd.getNextNumber() ) );
+		}
+
+		defaultReadAhead = Math.max( 0, (int)Math.round( gd.getNextNumber() ) );
+		defaultStatistics = gd.getNextBoolean();
+		defaultResultCache = gd.getNextBoolean();
+
+		if ( hyperstack )
+			defaultNumJobs = Math.max( 1, (int)Math.round( gd.getNextNumber() ) );
+
+		final int fftSize = defaultFFTSize;
+		final int zStepSize = defaultFRCStepSize;
+		final int rFRCDist = defaultRFRCDist;
+		final boolean visualize = defaultVisualize;
+		final boolean streaming = defaultStreaming;
+		final int coarseBinning = defaultCoarseBinning;
+		final double coarseTolerance = defaultCoarseTolerance;
+		final double adaptiveTolerance = defaultAdaptiveTolerance;
+		final int adaptiveBudget = defaultAdaptiveBudget;
+		final int numThreads = defaultNumThreads;
+		final boolean singlePrecision = defaultSinglePrecision;
+		final boolean fastEntropy = defaultFastEntropy;
+		final int readAhead = defaultReadAhead;
+		final boolean statistics = defaultStatistics;
+		final int numTiles = methodChoice != 0 ? defaultNumTiles : 0;
+
 		if ( areaChoice == 1 && rect == null )
 		{
 			IJ.log( "You chose to use the ROI but no ROI selected ... stopping." );
@@ -197,39 +306,286 @@ public class Estimate_Quality implements PlugIn
 		final Interval frcInterval;
 
 		if ( areaChoice == 0 )
-			frcInterval = new FinalInterval( new long[] { 0, 0, 0 }, new long[] { imp.getWidth() - 1, imp.getHeight() - 1, imp.getStackSize() - 1 } );
+			frcInterval = new FinalInterval( new long[] { 0, 0, 0 }, new long[] { imp.getWidth() - 1, imp.getHeight() - 1, imp.getNSlices() - 1 } );
 		else if ( areaChoice == 1 )
-			frcInterval = new FinalInterval( new long[] { rect.x, rect.y, 0 }, new long[] { rect.x + rect.width - 1, rect.y + rect.height - 1, imp.getStackSize() - 1 } );
+			frcInterval = new FinalInterval( new long[] { rect.x, rect.y, 0 }, new long[] { rect.x + rect.width - 1, rect.y + rect.height - 1, imp.getNSlices() - 1 } );
+		else if ( hyperstack ) // the current channel and timepoint
+			frcInterval = interactiveROI( HyperstackQuality.volume( (RandomAccessibleInterval)ImageJFunctions.wrapReal( imp ), imp, imp.getC() - 1, imp.getT() - 1 ), imp.getDisplayRangeMin(), imp.getDisplayRangeMax() );
 		else
 			frcInterval = interactiveROI( (RandomAccessibleInterval)ImageJFunctions.wrapReal( imp ), imp.getDisplayRangeMin(), imp.getDisplayRangeMax() );
 
 		if ( frcInterval == null )
 			return;
 
-		if ( methodChoice == 0 )
+		if ( selectedMethods[ 0 ] && frcInterval.dimension( 2 ) < 2 * rFRCDist + 1 )
 		{
-			final int fftSize = defaultFFTSize = (int)Math.round( gd.getNextNumber() );
-			final int zStepSize = defaultFRCStepSize = (int)Math.round( gd.getNextNumber() );
-			final int rFRCDist = defaultRFRCDist = (int)Math.round( gd.getNextNumber() );
-			final boolean visualize = defaultVisualize = gd.getNextBoolean();
+			IJ.log( "z-size (" + frcInterval.dimension( 2 ) + ") is too small given the relative FRC distance (" + rFRCDist + "), should be at least " + (2 * rFRCDist + 1) );
+			return;
+		}
 
-			if ( frcInterval.dimension( 2 ) < 2 * rFRCDist + 1 )
+		final RunStatistics stats = new RunStatistics( imp.getTitle() );
+
+		setResultCache( defaultResultCache ? new QualityCache() : null );
+
+		if ( hyperstack )
+		{
+			if ( streaming || visualize || numTiles > 0 || defaultResultCache )
+				IJ.log( "Streaming, visualization, tiled maps and the result cache are not supported for multiple channels/timepoints, ignoring them." );
+
+			final ResultsTable rt = HyperstackQuality.compute( imp, frcInterval, selectedMethods, zStepSize, fftSize, rFRCDist, coarseBinning, coarseTolerance, adaptiveTolerance, adaptiveBudget, singlePrecision, fastEntropy, readAhead, defaultNumJobs, numThreads, stats );
+
+			if ( rt != null )
+				rt.show( "Image Quality (channels/timepoints) " + imp.getTitle() );
+
+			stats.finish();
+
+			if ( statistics )
+				reportStatistics( stats, imp );
+
+			return;
+		}
+
+		final long t = stats.start();
+		final RandomAccessibleInterval input = Views.interval( (RandomAccessibleInterval)ImageJFunctions.wrapReal( imp ), frcInterval );
+		stats.stop( "wrap (ImageJFunctions.wrapReal)", t, 1 );
+
+		if ( multipleMethods )
+		{
+			computeMultiple( input, streaming ? imp : null, selectedMethods, zStepSize, fftSize, rFRCDist, coarseBinning, coarseTolerance, adaptiveTolerance, adaptiveBudget, numThreads, singlePrecision, fastEntropy, readAhead, imp.getTitle(), stats );
+		}
+		else if ( methodChoice == 0 )
+		{
+			if ( streaming )
 			{
-				IJ.log( "z-size (" + frcInterval.dimension( 2 ) + ") is too small given the relative FRC distance (" + rFRCDist + "), should be at least " + (2 * rFRCDist + 1) );
-				return;
-			}
+				if ( visualize )
+					IJ.log( "Visualizing the result as image is not supported when streaming planes." );
 
-			computeRFRC( Views.interval( (RandomAccessibleInterval)ImageJFunctions.wrapReal( imp ), frcInterval), zStepSize, fftSize, rFRCDist, visualize, imp.getTitle() );
+				if ( coarseBinning > 1 || adaptiveTolerance > 0 )
+					IJ.log( "Coarse-to-fine rFRC and adaptive z-sampling are not supported when streaming planes, computing rFRC for every step." );
+
+				computeRFRCStreaming( imp, frcInterval, zStepSize, fftSize, rFRCDist, readAhead, imp.getTitle(), stats );
+			}
+			else
+			{
+				computeRFRC( input, zStepSize, fftSize, rFRCDist, coarseBinning, coarseTolerance, adaptiveTolerance, adaptiveBudget, numThreads, visualize, imp.getTitle(), stats );
+			}
 		}
 		else
 		{
-			//computeSSIM(Views.interval( (RandomAccessibleInterval)ImageJFunctions.wrapReal( imp ), frcInterval), imp.getTitle() );
-			computeShannon( Views.interval( (RandomAccessibleInterval)ImageJFunctions.wrapReal( imp ), frcInterval), methodChoice, imp.getTitle() );
+			//computeSSIM( input, numThreads, imp.getTitle(), stats );
+			computeShannon( input, methodChoice, numThreads, singlePrecision, fastEntropy, readAhead, imp.getTitle(), stats );
+		}
+
+		if ( numTiles > 0 )
+		{
+			final ArrayList< Integer > tiledMethods = new ArrayList<>();
+
+			for ( int i = 1; i < selectedMethods.length; ++i )
+				if ( selectedMethods[ i ] )
+					tiledMethods.add( i );
+
+			if ( tiledMethods.size() > 0 )
+				computeTiled( input, tiledMethods, fastEntropy, numTiles, numThreads, imp.getTitle(), stats );
+		}
+
+		stats.finish();
+
+		if ( statistics )
+			reportStatistics( stats, imp );
+	}
+
+	/**
+	 * Prints the statistics to the log and saves them as [image name].quality-stats.json in the directory of the image (if it was loaded from a file)
+	 *
+	 * @param stats - the statistics of the run
+	 * @param imp - the image
+	 */
+	public static void reportStatistics( final RunStatistics stats, final ImagePlus imp )
+	{
+		stats.log();
+
+		final FileInfo fi = imp.getOriginalFileInfo();
+
+		if ( fi == null || fi.directory == null || fi.directory.length() == 0 )
+		{
+			IJ.log( "The image was not loaded from a file, statistics are not saved." );
+			return;
 		}
 
+		String name = imp.getTitle();
+		if ( name.indexOf( "." ) > 0 )
+			name = name.substring( 0, name.indexOf( "." ) );
+
+		final File file = new File( fi.directory, name + ".quality-stats.json" );
+
+		if ( stats.writeJson( file ) )
+			IJ.log( "Statistics saved to " + file );
+	}
+
+	/**
+	 * Computes several methods and shows them in one table. All selected entropy measures share a single pass
+	 * over the stack, i.e. every slice is loaded and converted only once.
+	 *
+	 * @param input - the 3d image
+	 * @param streamingImp - if not null, rFRC is computed by streaming the planes of this image
+	 * @param selectedMethods - which methods to compute, same order as measureDescriptions
+	 * @param zStepSize - step size in z (rFRC)
+	 * @param fftSize - size of the FRC blocks (rFRC)
+	 * @param rFRCDist - relative FRC distance in z (rFRC)
+	 * @param numThreads - number of threads for the entropy measures
+	 * @param singlePrecision - compute the entropy measures in single precision
+	 * @param fastEntropy - compute the Shannon entropy with the table-driven logarithm (approximate)
+	 * @param readAhead - number of planes loaded ahead in the background, 0 = off
+	 * @param name - name of the image
+	 */
+	public < T extends RealType< T > > void computeMultiple(
+			final RandomAccessibleInterval< T > input,
+			final ImagePlus streamingImp,
+			final boolean[] selectedMethods,
+			final int zStepSize,
+			final int fftSize,
+			final int rFRCDist,
+			final int numThreads,
+			final boolean singlePrecision,
+			final boolean fastEntropy,
+			final int readAhead,
+			final String name )
+	{
+		computeMultiple( input, streamingImp, selectedMethods, zStepSize, fftSize, rFRCDist, numThreads, singlePrecision, fastEntropy, readAhead, name, new RunStatistics( name ) );
+	}
+
+	public < T extends RealType< T > > void computeMultiple(
+			final RandomAccessibleInterval< T > input,
+			final ImagePlus streamingImp,
+			final boolean[] selectedMethods,
+			final int zStepSize,
+			final int fftSize,
+			final int rFRCDist,
+			final int numThreads,
+			final boolean singlePrecision,
+			final boolean fastEntropy,
+			final int readAhead,
+			final String name,
+			final RunStatistics stats )
+	{
+		computeMultiple( input, streamingImp, selectedMethods, zStepSize, fftSize, rFRCDist, 1, 0, 0, 0, numThreads, singlePrecision, fastEntropy, readAhead, name, stats );
+	}
+
+	/**
+	 * @param coarseBinning - xy binning of the coarse level of coarse-to-fine rFRC, 1 = off (not used when streaming)
+	 * @param coarseTolerance - relative tolerance of coarse-to-fine rFRC, see {@link CoarseToFineRFRC}
+	 * @param adaptiveTolerance - relative tolerance of adaptive z-sampling, 0 = off, see {@link AdaptiveRFRC}
+	 * @param adaptiveBudget - maximal number of planes evaluated by adaptive z-sampling, 0 = unlimited
+	 */
+	public < T extends RealType< T > > void computeMultiple(
+			final RandomAccessibleInterval< T > input,
+			final ImagePlus streamingImp,
+			final boolean[] selectedMethods,
+			final int zStepSize,
+			final int fftSize,
+			final int rFRCDist,
+			final int coarseBinning,
+			final double coarseTolerance,
+			final double adaptiveTolerance,
+			final int adaptiveBudget,
+			final int numThreads,
+			final boolean singlePrecision,
+			final boolean fastEntropy,
+			final int readAhead,
+			final String name,
+			final RunStatistics stats )
+	{
+		final double[][] values = new double[ measureDescriptions.length ][];
+		final String[] keys = new String[ measureDescriptions.length ];
+
+		if ( selectedMethods[ 0 ] )
+		{
+			// streaming computes every step at full resolution
+			if ( streamingImp != null )
+				keys[ 0 ] = cacheKey( input, stats, methodChoices[ 0 ], rFRCParameters( zStepSize, fftSize, rFRCDist, 1, 0, 0, 0 ) );
+			else
+				keys[ 0 ] = cacheKey( input, stats, methodChoices[ 0 ], rFRCParameters( zStepSize, fftSize, rFRCDist, coarseBinning, coarseTolerance, adaptiveTolerance, adaptiveBudget ) );
+
+			values[ 0 ] = cached( keys[ 0 ], stats );
+		}
+
+		if ( selectedMethods[ 0 ] && values[ 0 ] == null )
+		{
+			if ( streamingImp != null )
+			{
+				final PlaneCache cache = StreamingRFRC.cache( streamingImp, rFRCDist, readAhead );
+
+				values[ 0 ] = computeStreaming( cache, input, zStepSize, fftSize, rFRCDist, null, stats );
+
+				cache.close();
+			}
+			else
+			{
+				values[ 0 ] = computeMedians( input, zStepSize, fftSize, rFRCDist, coarseBinning, coarseTolerance, adaptiveTolerance, adaptiveBudget, numThreads, stats );
+			}
+
+			store( keys[ 0 ], values[ 0 ], stats );
+		}
+
+		final ArrayList< Integer > measureIndices = new ArrayList<>();
+
+		for ( int i = 1; i < measureDescriptions.length; ++i )
+		{
+			if ( selectedMethods[ i ] )
+			{
+				keys[ i ] = cacheKey( input, stats, methodChoices[ i ], entropyParameters( singlePrecision, fastEntropy ) );
+				values[ i ] = cached( keys[ i ], stats );
+
+				if ( values[ i ] == null )
+					measureIndices.add( i );
+			}
+		}
+
+		if ( measureIndices.size() > 0 )
+		{
+			final double[][] measureValues = evaluateMeasures( input, measureIndices, singlePrecision, fastEntropy, numThreads, readAhead, stats );
+
+			if ( measureValues == null )
+				return;
+
+			for ( int m = 0; m < measureIndices.size(); ++m )
+			{
+				values[ measureIndices.get( m ) ] = measureValues[ m ];
+				store( keys[ measureIndices.get( m ) ], measureValues[ m ], stats );
+			}
+		}
+
+		IJ.showProgress(1.0);
+
+		final long t = stats.start();
+		final ResultsTable rt = new ResultsTable();
+
+		for ( int z = 0; z < input.dimension( 2 ); ++z )
+		{
+			rt.incrementCounter();
+			rt.addValue( "z", input.min( 2 ) + z );
+
+			for ( int i = 0; i < values.length; ++i )
+				if ( values[ i ] != null )
+					rt.addValue( measureDescriptions[ i ], values[ i ][ z ] );
+		}
+
+		rt.show( "Image Quality (multiple methods) " + name );
+
+		stats.stop( "table + plot", t, 1 );
 	}
 
 	public < T extends RealType< T > > void computeSSIM( final RandomAccessibleInterval< T > input, final String name )
+	{
+		computeSSIM( input, defaultNumThreads, name );
+	}
+
+	public < T extends RealType< T > > void computeSSIM( final RandomAccessibleInterval< T > input, final int numThreads, final String name )
+	{
+		computeSSIM( input, numThreads, name, new RunStatistics( name ) );
+	}
+
+	public < T extends RealType< T > > void computeSSIM( final RandomAccessibleInterval< T > input, final int numThreads, final String name, final RunStatistics stats )
 	{
 		final ResultsTable rt = new ResultsTable();
 		float[] x = new float[ (int)input.dimension( 2 ) - 1 ]; // x-coordinates
@@ -238,27 +594,31 @@ public class Estimate_Quality implements PlugIn
 		double max = -Double.MAX_VALUE;
 		double min = Double.MAX_VALUE;
 
-		IJ.showProgress(0, (int)input.dimension( 2 ) );
+		// all pairs of adjacent slices in parallel, single pass over the pixels
+		long t = stats.start();
+		final double[] values = NeighborCorrelation.adjacent( input, numThreads );
+		stats.stop( "correlation of adjacent slices", t, Math.max( 0, input.dimension( 2 ) - 1 ) );
 
-		for ( int z = 0; z < input.dimension( 2 ) - 1; ++z )
-		{
-			final RandomAccessibleInterval< T >  sliceA = Views.hyperSlice( input, 2, z );
-			final RandomAccessibleInterval< T >  sliceB = Views.hyperSlice( input, 2, z + 1 );
+		// every pair reads both slices (converted to double rows)
+		stats.addBytes( "correlation of adjacent slices", 2 * 8 * Math.max( 0, input.dimension( 2 ) - 1 ) * input.dimension( 0 ) * input.dimension( 1 ) );
 
-			final double value = getCorrelation( sliceA, sliceB );
+		if ( values == null )
+			return;
 
-			System.out.println( value );
+		t = stats.start();
 
-			IJ.showProgress(z, (int)input.dimension( 2 ) );
+		for ( int z = 0; z < values.length; ++z )
+		{
+			final double value = values[ z ];
 
 			min = 0.8;//Math.min( value, min );
 			max = Math.max( value, max );
 
-			x[ z ] = z;
+			x[ z ] = input.min( 2 ) + z;
 			y[ z ] = (float)value;
 
 			rt.incrementCounter();
-			rt.addValue( "z", z );
+			rt.addValue( "z", input.min( 2 ) + z );
 			rt.addValue( "quality", value );
 		}
 
@@ -271,6 +631,8 @@ public class Estimate_Quality implements PlugIn
 		plot.setLimits( input.min( 2 ), input.max( 2 ), Math.min( 0, min ), max );
 		plot.setLineWidth(2);
 		plot.show();
+
+		stats.stop( "table + plot", t, 1 );
 	}
 
 	public static <T extends RealType<T>> double getMean(RandomAccessibleInterval<T> img)
@@ -288,89 +650,28 @@ public class Estimate_Quality implements PlugIn
 	public static <T extends RealType<T>, S extends RealType<S>> double getCorrelation (
 			final RandomAccessibleInterval<T> img1, final RandomAccessibleInterval<S> img2)
 	{
-		final double m1 = getMean(img1);
-		final double m2 = getMean(img2);
-
-		// square sums
-		double sum11 = 0.0, sum22 = 0.0, sum12 = 0.0; 
-
-		final Cursor<T> c1 = Views.iterable(img1).cursor();
-
-		if (Views.iterable( img1 ).iterationOrder().equals( Views.iterable( img2 ).iterationOrder() ))
-		{
-			final Cursor< S > c2 = Views.iterable( img2 ).cursor();
-			while (c1.hasNext()){
-				final double c = c1.next().getRealDouble();
-				final double r = c2.next().getRealDouble();
-
-				sum11 += (c - m1) * (c - m1);
-				sum22 += (r - m2) * (r - m2);
-				sum12 += (c - m1) * (r - m2);
-			}
-		}
-		else
-		{
-			final RandomAccess<S> r2 = img2.randomAccess();
-			while (c1.hasNext()){
-				final double c = c1.next().getRealDouble();
-				r2.setPosition(c1);
-				final double r = r2.get().getRealDouble();
-
-				sum11 += (c - m1) * (c - m1);
-				sum22 += (r - m2) * (r - m2);
-				sum12 += (c - m1) * (r - m2);
-			}
-		}
-
-		// all pixels had the same color....
-		if (sum11 == 0 || sum22 == 0)
-		{
-			// having the same means and same sums means the overlapping area was simply identically the same color
-			// this is most likely an artifact and we return 0
-			/* if ( sum11 == sum22 && m1 == m2 )
-				return 1;
-			else */
-				return 0;
-		}
-
-		return sum12 / Math.sqrt(sum11 * sum22);
+		// means, variances and covariance in a single pass
+		return NeighborCorrelation.moments( img1, img2 ).correlation();
 	}
 	public < T extends RealType< T > > void computeShannon( final RandomAccessibleInterval< T > input, final int methodChoice, final String name )
 	{
-		final FocusMeasureInterface measure;
-		final String measureDesc;
+		computeShannon( input, methodChoice, defaultNumThreads, name );
+	}
 
-		if ( methodChoice == 1 )
-		{
-			measure = null;
-			measureDesc = "Shannon Entropy";
-		}
-		else if ( methodChoice == 2 )
-		{
-			measure = new NormDCTEntropyShannon();
-			measureDesc = "DCT Shannon Entropy";
-		}
-		else if ( methodChoice == 3 )
-		{
-			measure = new NormDCTEntropyShannonMedianFiltered();
-			measureDesc = "median DCT Shannon Entropy";
-		}
-		else
-		{
-			measure = new NormDFTEntropyShannon();
-			measureDesc = "DFT Shannon Entropy";
-		}
+	public < T extends RealType< T > > void computeShannon( final RandomAccessibleInterval< T > input, final int methodChoice, final int numThreads, final String name )
+	{
+		computeShannon( input, methodChoice, numThreads, defaultSinglePrecision, defaultFastEntropy, defaultReadAhead, name );
+	}
 
-		final RandomAccessibleInterval<DoubleType> di = Converters.convert(
-				input,
-				new Converter<T, DoubleType>()
-				{
-					@Override
-					public void convert(T input, DoubleType output) { output.setReal( input.getRealDouble() ); }
-				},
-				new DoubleType() );
+	public < T extends RealType< T > > void computeShannon( final RandomAccessibleInterval< T > input, final int methodChoice, final int numThreads, final boolean singlePrecision, final boolean fastEntropy, final int readAhead, final String name )
+	{
+		computeShannon( input, methodChoice, numThreads, singlePrecision, fastEntropy, readAhead, name, new RunStatistics( name ) );
+	}
+
+	public < T extends RealType< T > > void computeShannon( final RandomAccessibleInterval< T > input, final int methodChoice, final int numThreads, final boolean singlePrecision, final boolean fastEntropy, final int readAhead, final String name, final RunStatistics stats )
+	{
+		final String measureDesc = measureDescriptions[ methodChoice ];
 
-		final ResultsTable rt = new ResultsTable();
 		float[] x = new float[ (int)input.dimension( 2 ) ]; // x-coordinates
 		float[] y = new float[ (int)input.dimension( 2 ) ]; // y-coordinates
 
@@ -379,47 +680,93 @@ public class Estimate_Quality implements PlugIn
 
 		IJ.showProgress(0, (int)input.dimension( 2 ) );
 
-		for ( int z = 0; z < input.dimension( 2 ); ++z )
-		{
-			final RandomAccessibleInterval<DoubleType>  slice = Views.hyperSlice(di, 2, z );
+		final String key = cacheKey( input, stats, methodChoices[ methodChoice ], entropyParameters( singlePrecision, fastEntropy ) );
+		double[] values = cached( key, stats );
 
-			final double[] array = new double[ (int)slice.dimension( 0 ) * (int)slice.dimension( 1 ) ];
+		if ( values == null )
+		{
+			final double[][] measureValues = evaluateMeasures( input, Arrays.asList( methodChoice ), singlePrecision, fastEntropy, numThreads, readAhead, stats );
 
-			final Cursor<DoubleType> c = Views.flatIterable( slice ).cursor();
-			
-			for ( int i = 0; i < array.length; ++i )
-				array[ i ] = c.next().get();
+			if ( measureValues == null )
+				return;
 
-			final double value;
-			final DoubleArrayImage im = new DoubleArrayImage((int)slice.dimension( 0 ), (int)slice.dimension( 1 ), array );
+			values = measureValues[ 0 ];
+			store( key, values, stats );
+		}
 
-			if ( measure == null )
-				value = -im.entropyShannon( true );
-			else
-				value = measure.computeFocusMeasure( im );
+		final long t = stats.start();
 
-			IJ.showProgress(z, (int)input.dimension( 2 ) );
+		for ( int z = 0; z < input.dimension( 2 ); ++z )
+		{
+			final double value = values[ z ];
 
 			min = Math.min( value, min );
 			max = Math.max( value, max );
 
-			x[ (int)z ] = z;
-			y[ (int)z ] = (float)value;
-
-			rt.incrementCounter();
-			rt.addValue( "z", z );
-			rt.addValue( "quality", value );
+			x[ z ] = input.min( 2 ) + z;
+			y[ z ] = (float)value;
 		}
 
 		IJ.showProgress(1.0);
 
-		rt.show("Image Quality (" + measureDesc + ")");
+		qualityTable( values, input.min( 2 ) ).show("Image Quality (" + measureDesc + ")");
 
 		PlotWindow.noGridLines = false; // draw grid lines
 		Plot plot = new Plot("Image Quality (" + measureDesc + ") " + name,"z Position","Quality",x,y);
 		plot.setLimits( input.min( 2 ), input.max( 2 ), Math.min( 0, min ), max );
 		plot.setLineWidth(2);
 		plot.show();
+
+		stats.stop( "table + plot", t, 1 );
+	}
+
+	/**
+	 * Computes and shows the spatially resolved quality (one value per tile and slice) and its mean/median/min/max per slice
+	 *
+	 * @param input - the 3d image
+	 * @param methods - indices into methodChoices, must not contain 0 (rFRC)
+	 * @param fastEntropy - compute the Shannon entropy with the table-driven logarithm (approximate)
+	 * @param numTiles - number of tiles in x and in y
+	 * @param numThreads - number of worker threads
+	 * @param name - name of the image
+	 * @param stats - the statistics of the run
+	 * @return the map or null if the computation failed
+	 */
+	public static < T extends RealType< T > > TiledFocusMap computeTiled(
+			final RandomAccessibleInterval< T > input,
+			final List< Integer > methods,
+			final boolean fastEntropy,
+			final int numTiles,
+			final int numThreads,
+			final String name,
+			final RunStatistics stats )
+	{
+		final FocusMeasureInterface[] measures = getMeasures( methods, fastEntropy );
+
+		for ( int m = 0; m < measures.length; ++m )
+			measures[ m ] = stats.time( "tiled " + methodChoices[ methods.get( m ) ], measures[ m ] );
+
+		long t = stats.start();
+		final TiledFocusMap map = TiledFocusMap.compute( input, measures, numTiles, numThreads );
+		stats.stop( "tiled map", t, input.dimension( 2 ) );
+		stats.addAllocated( "tiled map", 4L * measures.length * input.dimension( 2 ) * numTiles * numTiles );
+
+		if ( map == null )
+			return null;
+
+		t = stats.start();
+
+		for ( int m = 0; m < measures.length; ++m )
+		{
+			final String measureDesc = measureDescriptions[ methods.get( m ) ];
+
+			map.imagePlus( m, "Tiled Quality (" + measureDesc + ") " + name ).show();
+			map.aggregateTable( m, input.min( 2 ) ).show( "Tiled Image Quality (" + measureDesc + ")" );
+		}
+
+		stats.stop( "table + plot", t, 1 );
+
+		return map;
 	}
 
 	public < T extends RealType< T > > void computeRFRC(
@@ -430,64 +777,752 @@ public class Estimate_Quality implements PlugIn
 			final boolean visualize,
 			final String name )
 	{
-		final ArrayList< Point > locations = new ArrayList<>();
+		computeRFRC( input, zStepSize, fftSize, rFRCDist, visualize, name, new RunStatistics( name ) );
+	}
+
+	public < T extends RealType< T > > void computeRFRC(
+			final RandomAccessibleInterval< T > input,
+			final int zStepSize,
+			final int fftSize,
+			final int rFRCDist,
+			final boolean visualize,
+			final String name,
+			final RunStatistics stats )
+	{
+		computeRFRC( input, zStepSize, fftSize, rFRCDist, 1, 0, 0, 0, defaultNumThreads, visualize, name, stats );
+	}
+
+	/**
+	 * @param coarseBinning - xy binning of the coarse level of coarse-to-fine rFRC, 1 = off
+	 * @param coarseTolerance - relative tolerance of coarse-to-fine rFRC, see {@link CoarseToFineRFRC}
+	 * @param adaptiveTolerance - relative tolerance of adaptive z-sampling, 0 = off, see {@link AdaptiveRFRC}
+	 * @param adaptiveBudget - maximal number of planes evaluated by adaptive z-sampling, 0 = unlimited
+	 * @param numThreads - number of threads for binning
+	 */
+	public < T extends RealType< T > > void computeRFRC(
+			final RandomAccessibleInterval< T > input,
+			final int zStepSize,
+			final int fftSize,
+			final int rFRCDist,
+			final int coarseBinning,
+			final double coarseTolerance,
+			final double adaptiveTolerance,
+			final int adaptiveBudget,
+			final int numThreads,
+			final boolean visualize,
+			final String name,
+			final RunStatistics stats )
+	{
+		final boolean fullFRC = coarseBinning <= 1 && adaptiveTolerance <= 0;
+		final String key = cacheKey( input, stats, methodChoices[ 0 ], rFRCParameters( zStepSize, fftSize, rFRCDist, coarseBinning, coarseTolerance, adaptiveTolerance, adaptiveBudget ) );
+
+		// the visualization needs the FRC of all blocks, which is not cached
+		final double[] cachedMedians = visualize && fullFRC ? null : cached( key, stats );
+
+		if ( cachedMedians != null )
+		{
+			if ( visualize )
+				IJ.log( "Visualizing the result as image is not supported for coarse-to-fine rFRC or adaptive z-sampling." );
+
+			final long t = stats.start();
+			showRFRC( cachedMedians, input, name );
+			stats.stop( "table + plot", t, 1 );
+
+			return;
+		}
 
+		if ( !fullFRC )
+		{
+			if ( visualize )
+				IJ.log( "Visualizing the result as image is not supported for coarse-to-fine rFRC or adaptive z-sampling." );
+
+			final double[] medians = computeMedians( input, zStepSize, fftSize, rFRCDist, coarseBinning, coarseTolerance, adaptiveTolerance, adaptiveBudget, numThreads, stats );
+			store( key, medians, stats );
+
+			final long t = stats.start();
+			showRFRC( medians, input, name );
+			stats.stop( "table + plot", t, 1 );
+
+			return;
+		}
+
+		final Pair< double[], FRCRealRandomAccessible< T > > result = computeMedians( input, zStepSize, fftSize, rFRCDist, stats );
+		store( key, result.getA(), stats );
+
+		long t = stats.start();
+		showRFRC( result.getA(), input, name );
+		stats.stop( "table + plot", t, 1 );
+
+		if ( visualize )
+		{
+			t = stats.start();
+			DisplayImage.getImagePlusInstance( result.getB().getRandomAccessibleInterval(), false, "FRC-QE Rendering " + name, Double.NaN, Double.NaN ).show();
+			stats.stop( "visualization", t, 1 );
+		}
+	}
+
+	/**
+	 * Computes the relative FRC for the entire input and the median quality per plane, recording the time of each stage
+	 *
+	 * @param input - the 3d image
+	 * @param zStepSize - step size in z
+	 * @param fftSize - size of the FRC blocks
+	 * @param rFRCDist - relative FRC distance in z
+	 * @param stats - the statistics of the run
+	 * @return the median quality per plane (index 0 corresponds to input.min( 2 )) and the FRC
+	 */
+	public static < T extends RealType< T > > Pair< double[], FRCRealRandomAccessible< T > > computeMedians(
+			final RandomAccessibleInterval< T > input,
+			final int zStepSize,
+			final int fftSize,
+			final int rFRCDist,
+			final RunStatistics stats )
+	{
+		long t = stats.start();
 		final ArrayList< Pair< Long, Long > > xyPositions = FRCTools.distributeSquaresXY( input, fftSize, 0.25 );
+		stats.stop( "FRC block placement", t, xyPositions.size() );
 
 		IJ.log( "For the following coordinates rFRC will be computed: " );
 
 		for ( final Pair< Long, Long > xy : xyPositions )
 			IJ.log( "x,y: " + xy.getA() + "," + xy.getB() + " (size around each spot r=" + fftSize/2 + ")" );
 
-		for ( int z = rFRCDist; z < input.dimension( 2 ) - rFRCDist; z += zStepSize )
-			for ( final Pair< Long, Long > xy : xyPositions )
-				locations.add( new Point( xy.getA(), xy.getB(), z ) );
+		final long numBlocks = (long)xyPositions.size() * numFRCPlanes( input, zStepSize, rFRCDist );
 
-		final FRCRealRandomAccessible< T > frc = new FRCRealRandomAccessible< T >( input, locations, fftSize, true, null );
+		t = stats.start();
+		final FRCRealRandomAccessible< T > frc = computeFRC( input, xyPositions, zStepSize, fftSize, rFRCDist );
+		stats.stop( "FRC (block extraction + FFT)", t, numBlocks );
 
-		final NearestNeighborSearch< FloatType > search = new NearestNeighborSearchOnKDTree<>( new KDTree<>( frc.getQualityList() ) );
+		// two blocks per FRC sample, converted to float and transformed (estimate: float block + complex half spectrum each)
+		stats.addBytes( "FRC (block extraction + FFT)", numBlocks * 2 * 4L * fftSize * fftSize );
+		stats.addAllocated( "FRC (block extraction + FFT)", numBlocks * 2 * ( 4L * fftSize * fftSize + 8L * fftSize * ( fftSize / 2 + 1 ) ) );
 
-		final ResultsTable rt = new ResultsTable();
-		float[] x = new float[ (int)input.dimension( 2 ) ]; // x-coordinates
-		float[] y = new float[ (int)input.dimension( 2 ) ]; // x-coordinates
+		t = stats.start();
+		final double[] medians = medianPerZ( frc, input, xyPositions, zStepSize, rFRCDist );
+		stats.stop( "median per plane", t, medians.length );
 
-		double maxMedian = 0;
-		double minMedian = Double.MAX_VALUE;
+		return new ValuePair<>( medians, frc );
+	}
 
-		for ( long z = input.min( 2 ); z <= input.max( 2 ); ++z )
+	/**
+	 * Median quality per plane, either for every zStepSize-th plane (computeMedians()), with adaptive z-sampling
+	 * ({@link AdaptiveRFRC}) or coarse-to-fine ({@link CoarseToFineRFRC}). If both are selected adaptive z-sampling is used.
+	 *
+	 * @param input - the 3d image
+	 * @param zStepSize - step size in z
+	 * @param fftSize - size of the FRC blocks
+	 * @param rFRCDist - relative FRC distance in z
+	 * @param coarseBinning - xy binning of the coarse level, 1 = full resolution only
+	 * @param coarseTolerance - relative tolerance of coarse-to-fine rFRC, see {@link CoarseToFineRFRC}
+	 * @param adaptiveTolerance - relative change between evaluated planes that triggers refinement, 0 = fixed step size
+	 * @param adaptiveBudget - maximal number of evaluated planes for adaptive z-sampling, 0 = unlimited
+	 * @param numThreads - number of threads for binning
+	 * @param stats - the statistics of the run
+	 * @return the median quality per plane (index 0 corresponds to input.min( 2 ))
+	 */
+	public static < T extends RealType< T > > double[] computeMedians(
+			final RandomAccessibleInterval< T > input,
+			final int zStepSize,
+			final int fftSize,
+			final int rFRCDist,
+			final int coarseBinning,
+			final double coarseTolerance,
+			final double adaptiveTolerance,
+			final int adaptiveBudget,
+			final int numThreads,
+			final RunStatistics stats )
+	{
+		if ( adaptiveTolerance > 0 )
+			return new AdaptiveRFRC( adaptiveTolerance, adaptiveBudget ).computeMedians( input, zStepSize, fftSize, rFRCDist, stats );
+		else if ( coarseBinning > 1 )
+			return new CoarseToFineRFRC( coarseBinning, coarseTolerance, numThreads ).computeMedians( input, zStepSize, fftSize, rFRCDist, stats );
+		else
+			return computeMedians( input, zStepSize, fftSize, rFRCDist, stats ).getA();
+	}
+
+	/**
+	 * @return the number of planes that computeFRC() evaluates
+	 */
+	public static long numFRCPlanes( final Interval input, final int zStepSize, final int rFRCDist )
+	{
+		final long first = input.min( 2 ) + rFRCDist;
+		final long last = input.max( 2 ) - rFRCDist;
+
+		return last < first ? 0 : ( last - first ) / zStepSize + 1;
+	}
+
+	/**
+	 * Computes the relative FRC plane by plane, keeping only the 2*rFRCDist+1 planes needed for the current comparison in memory
+	 *
+	 * @param imp - the (virtual) stack
+	 * @param interval - the area to evaluate
+	 * @param zStepSize - step size in z
+	 * @param fftSize - size of the FRC blocks
+	 * @param rFRCDist - relative FRC distance in z
+	 * @param readAhead - number of planes loaded ahead in the background, 0 = off
+	 * @param name - name for the plot
+	 */
+	public void computeRFRCStreaming(
+			final ImagePlus imp,
+			final Interval interval,
+			final int zStepSize,
+			final int fftSize,
+			final int rFRCDist,
+			final int readAhead,
+			final String name )
+	{
+		computeRFRCStreaming( imp, interval, zStepSize, fftSize, rFRCDist, readAhead, name, new RunStatistics( name ) );
+	}
+
+	public void computeRFRCStreaming(
+			final ImagePlus imp,
+			final Interval interval,
+			final int zStepSize,
+			final int fftSize,
+			final int rFRCDist,
+			final int readAhead,
+			final String name,
+			final RunStatistics stats )
+	{
+		final String key = resultCache == null ? null : cacheKey( Views.interval( (RandomAccessibleInterval)ImageJFunctions.wrapReal( imp ), interval ), stats, methodChoices[ 0 ], rFRCParameters( zStepSize, fftSize, rFRCDist, 1, 0, 0, 0 ) );
+		double[] medians = cached( key, stats );
+
+		if ( medians == null )
 		{
-			double[] values = new double[ xyPositions.size() ];
-			int i = 0;
+			final PlaneCache cache = StreamingRFRC.cache( imp, rFRCDist, readAhead );
 
-			for ( final Pair< Long, Long > xy : xyPositions )
-			{
-				search.search( new Point( xy.getA(), xy.getB(), z ) );
-				values[ i++ ] = search.getSampler().get().get();
-			}
+			medians = computeStreaming( cache, interval, zStepSize, fftSize, rFRCDist, ( z, quality ) -> IJ.showStatus( "rFRC z=" + z + ": " + quality ), stats );
+
+			cache.close();
+
+			store( key, medians, stats );
+		}
+
+		final long t = stats.start();
+		showRFRC( medians, interval, name );
+		stats.stop( "table + plot", t, 1 );
+	}
+
+	/**
+	 * StreamingRFRC.compute(), recording the time and the number of planes
+	 */
+	public static double[] computeStreaming(
+			final PlaneCache cache,
+			final Interval interval,
+			final int zStepSize,
+			final int fftSize,
+			final int rFRCDist,
+			final QualityListener listener,
+			final RunStatistics stats )
+	{
+		final long t = stats.start();
+		final double[] medians = StreamingRFRC.compute( cache, interval, zStepSize, fftSize, rFRCDist, listener );
+		stats.stop( "rFRC (streaming, block extraction + FFT)", t, medians.length );
 
-			final double median = Util.median( values );
+		// every plane of the interval is converted to float at least once
+		stats.addBytes( "rFRC (streaming, block extraction + FFT)", 4L * cache.width() * cache.height() * interval.dimension( 2 ) );
+		stats.addAllocated( "rFRC (streaming, block extraction + FFT)", 4L * cache.width() * cache.height() * interval.dimension( 2 ) );
+
+		return medians;
+	}
+
+	protected void showRFRC( final double[] medians, final Interval interval, final String name )
+	{
+		final ResultsTable rt = qualityTable( medians, interval.min( 2 ) );
+		float[] x = new float[ (int)interval.dimension( 2 ) ]; // x-coordinates
+		float[] y = new float[ (int)interval.dimension( 2 ) ]; // x-coordinates
+
+		double maxMedian = 0;
+		double minMedian = Double.MAX_VALUE;
+
+		for ( int i = 0; i < medians.length; ++i )
+		{
+			final double median = medians[ i ];
 
 			minMedian = Math.min( median, minMedian );
 			maxMedian = Math.max( median, maxMedian );
 
-			x[ (int)z ] = z;
-			y[ (int)z ] = (float)median;
-
-			rt.incrementCounter();
-			rt.addValue( "z", z );
-			rt.addValue( "quality", median );
+			x[ i ] = interval.min( 2 ) + i;
+			y[ i ] = (float)median;
 		}
 
 		rt.show("Image Quality (rFRC)");
 
 		PlotWindow.noGridLines = false; // draw grid lines
 		Plot plot = new Plot("FRC-QE score " + name,"z Position","Quality",x,y);
-		plot.setLimits( input.min( 2 ), input.max( 2 ), 0/*minMedian*/, maxMedian );
+		plot.setLimits( interval.min( 2 ), interval.max( 2 ), 0/*minMedian*/, maxMedian );
 		plot.setLineWidth(2);
 		plot.show();
+	}
 
-		if ( visualize )
-			DisplayImage.getImagePlusInstance( frc.getRandomAccessibleInterval(), false, "FRC-QE Rendering " + name, Double.NaN, Double.NaN ).show();
+	/**
+	 * Computes the relative FRC for all xy-positions on every zStepSize-th plane that is at least rFRCDist away from the z-boundaries
+	 *
+	 * @param input - the 3d image
+	 * @param xyPositions - the centers of the FRC blocks, e.g. from FRCTools.distributeSquaresXY()
+	 * @param zStepSize - step size in z
+	 * @param fftSize - size of the FRC blocks
+	 * @param rFRCDist - relative FRC distance in z
+	 * @return the FRC, use medianPerZ() to get a quality value for each plane
+	 */
+	public static < T extends RealType< T > > FRCRealRandomAccessible< T > computeFRC(
+			final RandomAccessibleInterval< T > input,
+			final ArrayList< Pair< Long, Long > > xyPositions,
+			final int zStepSize,
+			final int fftSize,
+			final int rFRCDist )
+	{
+		final ArrayList< Point > locations = new ArrayList<>();
+
+		for ( long z = input.min( 2 ) + rFRCDist; z <= input.max( 2 ) - rFRCDist; z += zStepSize )
+			for ( final Pair< Long, Long > xy : xyPositions )
+				locations.add( new Point( xy.getA(), xy.getB(), z ) );
+
+		return new FRCRealRandomAccessible< T >( input, locations, fftSize, true, null );
+	}
+
+	/**
+	 * The FRC samples form a regular grid (xyPositions x evaluated planes), they are stored in a dense array indexed by
+	 * (evaluated plane, block) and every plane is assigned to the nearest evaluated plane arithmetically (ties go to the
+	 * lower one, like in StreamingRFRC).
+	 *
+	 * @param frc - the FRC computed by computeFRC()
+	 * @param input - the interval for which the FRC was computed
+	 * @param xyPositions - the centers of the FRC blocks
+	 * @param zStepSize - step size in z that was used for computeFRC()
+	 * @param rFRCDist - relative FRC distance in z that was used for computeFRC()
+	 * @return the median quality over all blocks (of the nearest evaluated plane) for each plane of the input (index 0 corresponds to input.min( 2 ))
+	 */
+	public static double[] medianPerZ(
+			final FRCRealRandomAccessible< ? > frc,
+			final Interval input,
+			final ArrayList< Pair< Long, Long > > xyPositions,
+			final int zStepSize,
+			final int rFRCDist )
+	{
+		final int numBlocks = xyPositions.size();
+		final long firstZ = input.min( 2 ) + rFRCDist;
+		final int numSamples = (int)( ( input.max( 2 ) - rFRCDist - firstZ ) / zStepSize + 1 );
+
+		final HashMap< Long, Integer > blockIndex = new HashMap<>();
+
+		for ( int b = 0; b < numBlocks; ++b )
+			blockIndex.put( xyKey( xyPositions.get( b ).getA(), xyPositions.get( b ).getB() ), b );
+
+		// [sample][block]
+		final double[] grid = new double[ numSamples * numBlocks ];
+
+		final RealCursor< FloatType > cursor = frc.getQualityList().cursor();
+
+		while ( cursor.hasNext() )
+		{
+			final double quality = cursor.next().get();
+			final int b = blockIndex.get( xyKey( Math.round( cursor.getDoublePosition( 0 ) ), Math.round( cursor.getDoublePosition( 1 ) ) ) );
+			final int k = (int)( ( Math.round( cursor.getDoublePosition( 2 ) ) - firstZ ) / zStepSize );
+
+			grid[ k * numBlocks + b ] = quality;
+		}
+
+		return mediansPerPlane( grid, numBlocks, numSamples, input, firstZ, zStepSize );
+	}
+
+	/**
+	 * @return the median over all blocks of the nearest evaluated plane for each plane of the input
+	 */
+	protected static double[] mediansPerPlane( final double[] grid, final int numBlocks, final int numSamples, final Interval input, final long firstZ, final int zStepSize )
+	{
+		final double[] sampleMedians = new double[ numSamples ];
+		final double[] values = new double[ numBlocks ];
+
+		for ( int k = 0; k < numSamples; ++k )
+		{
+			System.arraycopy( grid, k * numBlocks, values, 0, numBlocks );
+			sampleMedians[ k ] = Util.median( values );
+		}
+
+		return planesFromSamples( sampleMedians, input, firstZ, zStepSize );
+	}
+
+	/**
+	 * @param sampleMedians - the quality of every evaluated plane (firstZ + k * zStepSize)
+	 * @return the quality of the nearest evaluated plane for each plane of the input
+	 */
+	protected static double[] planesFromSamples( final double[] sampleMedians, final Interval input, final long firstZ, final int zStepSize )
+	{
+		final int numSamples = sampleMedians.length;
+		final double[] medians = new double[ (int)input.dimension( 2 ) ];
+
+		for ( int i = 0; i < medians.length; ++i )
+		{
+			final long d = input.min( 2 ) + i - firstZ;
+			final int k = d <= 0 ? 0 : (int)Math.min( numSamples - 1, ( 2 * d + zStepSize - 1 ) / ( 2 * zStepSize ) );
+
+			medians[ i ] = sampleMedians[ k ];
+		}
+
+		return medians;
+	}
+
+	protected static long xyKey( final long x, final long y )
+	{
+		return ( x << 32 ) | ( y & 0xffffffffL );
+	}
+
+	/**
+	 * @param cache - cache for the per-z curves, null = off (default)
+	 */
+	public void setResultCache( final QualityCache cache )
+	{
+		this.resultCache = cache;
+		this.hashedInput = null;
+	}
+
+	/**
+	 * @return the key of the curve in the result cache or null if no result cache is used; the content hash of the
+	 * input is computed once per input
+	 */
+	protected < T extends RealType< T > > String cacheKey( final RandomAccessibleInterval< T > input, final RunStatistics stats, final String method, final Object... parameters )
+	{
+		if ( resultCache == null )
+			return null;
+
+		if ( hashedInput != input )
+		{
+			final long t = stats.start();
+			inputHash = QualityCache.contentHash( input );
+			hashedInput = input;
+			stats.stop( "result cache (content hash)", t, input.dimension( 2 ) );
+		}
+
+		return QualityCache.key( inputHash, input, method, parameters );
+	}
+
+	/**
+	 * @return the cached curve or null
+	 */
+	protected double[] cached( final String key, final RunStatistics stats )
+	{
+		if ( key == null )
+			return null;
+
+		final long t = stats.start();
+		final double[] values = resultCache.get( key );
+		stats.stop( "result cache (lookup)", t, values == null ? 0 : 1 );
+
+		if ( values != null )
+			IJ.log( "Using the cached result for " + key.substring( key.indexOf( ';' ) + 1 ) );
+
+		return values;
+	}
+
+	protected void store( final String key, final double[] values, final RunStatistics stats )
+	{
+		if ( key == null )
+			return;
+
+		final long t = stats.start();
+		resultCache.put( key, values );
+		stats.stop( "result cache (store)", t, 1 );
+	}
+
+	/**
+	 * @return all parameters that influence the rFRC curve, unused ones are normalized so identical runs get identical keys
+	 */
+	public static Object[] rFRCParameters( final int zStepSize, final int fftSize, final int rFRCDist, final int coarseBinning, final double coarseTolerance, final double adaptiveTolerance, final int adaptiveBudget )
+	{
+		final boolean adaptive = adaptiveTolerance > 0;
+		final boolean coarse = !adaptive && coarseBinning > 1;
+
+		return new Object[] {
+				"zStepSize=" + zStepSize,
+				"fftSize=" + fftSize,
+				"rFRCDist=" + rFRCDist,
+				"coarseBinning=" + ( coarse ? coarseBinning : 1 ),
+				"coarseTolerance=" + ( coarse ? coarseTolerance : 0.0 ),
+				"adaptiveTolerance=" + ( adaptive ? adaptiveTolerance : 0.0 ),
+				"adaptiveBudget=" + ( adaptive ? adaptiveBudget : 0 ) };
+	}
+
+	/**
+	 * @return all parameters that influence the curve of an entropy measure (the unrolled kernels only change the
+	 * order of the additions, but cached curves must be identical to freshly computed ones)
+	 */
+	public static Object[] entropyParameters( final boolean singlePrecision, final boolean fastEntropy )
+	{
+		return new Object[] {
+				"singlePrecision=" + singlePrecision,
+				"fastEntropy=" + fastEntropy,
+				"unrolledKernels=" + ReductionKernels.cUseUnrolledKernels };
+	}
+
+	/**
+	 * @param methodChoice - index into methodChoices, must not be 0 (rFRC)
+	 * @return the focus measure for the method
+	 */
+	public static FocusMeasureInterface getMeasure( final int methodChoice )
+	{
+		return getMeasure( methodChoice, false );
+	}
+
+	/**
+	 * @param methodChoice - index into methodChoices, must not be 0 (rFRC)
+	 * @param fastEntropy - compute the Shannon entropy with the table-driven logarithm (approximate)
+	 * @return the focus measure for the method
+	 */
+	public static FocusMeasureInterface getMeasure( final int methodChoice, final boolean fastEntropy )
+	{
+		if ( methodChoice == 1 )
+			return im -> -im.entropyShannon( true, fastEntropy );
+		else if ( methodChoice == 2 )
+		{
+			final NormDCTEntropyShannon measure = new NormDCTEntropyShannon();
+			measure.mFastEntropy = fastEntropy;
+			return measure;
+		}
+		else if ( methodChoice == 3 )
+		{
+			final NormDCTEntropyShannonMedianFiltered measure = new NormDCTEntropyShannonMedianFiltered();
+			measure.mFastEntropy = fastEntropy;
+			return measure;
+		}
+		else if ( methodChoice == 4 )
+		{
+			final NormDFTEntropyShannon measure = new NormDFTEntropyShannon();
+			measure.mFastEntropy = fastEntropy;
+			return measure;
+		}
+		else
+			throw new IllegalArgumentException( "Method '" + methodChoices[ methodChoice ] + "' is not a focus measure." );
+	}
+
+	/**
+	 * @param methodChoice - index into methodChoices, must not be 0 (rFRC)
+	 * @return the single precision focus measure for the method
+	 */
+	public static FloatFocusMeasureInterface getFloatMeasure( final int methodChoice )
+	{
+		return getFloatMeasure( methodChoice, false );
+	}
+
+	/**
+	 * @param methodChoice - index into methodChoices, must not be 0 (rFRC)
+	 * @param fastEntropy - compute the Shannon entropy with the table-driven logarithm (approximate)
+	 * @return the single precision focus measure for the method
+	 */
+	public static FloatFocusMeasureInterface getFloatMeasure( final int methodChoice, final boolean fastEntropy )
+	{
+		if ( methodChoice == 1 )
+			return im -> -im.entropyShannon( true, fastEntropy );
+		else if ( methodChoice == 2 )
+		{
+			final NormDCTEntropyShannon measure = new NormDCTEntropyShannon();
+			measure.mFastEntropy = fastEntropy;
+			return measure;
+		}
+		else if ( methodChoice == 3 )
+		{
+			final NormDCTEntropyShannonMedianFiltered measure = new NormDCTEntropyShannonMedianFiltered();
+			measure.mFastEntropy = fastEntropy;
+			return measure;
+		}
+		else if ( methodChoice == 4 )
+		{
+			final NormDFTEntropyShannon measure = new NormDFTEntropyShannon();
+			measure.mFastEntropy = fastEntropy;
+			return measure;
+		}
+		else
+			throw new IllegalArgumentException( "Method '" + methodChoices[ methodChoice ] + "' is not a focus measure." );
+	}
+
+	/**
+	 * Evaluates several focus measures in a single pass over the stack
+	 *
+	 * @param input - the 3d image
+	 * @param methods - indices into methodChoices, must not contain 0 (rFRC)
+	 * @param singlePrecision - use FloatArrayImage instead of DoubleArrayImage
+	 * @param fastEntropy - compute the Shannon entropy with the table-driven logarithm (approximate)
+	 * @param numThreads - number of threads
+	 * @param readAhead - number of planes loaded ahead by a separate reader thread, 0 = off
+	 * @return the values [method][z] (z index 0 corresponds to input.min( 2 )), or null if the computation failed
+	 */
+	public static < T extends RealType< T > > double[][] evaluateMeasures(
+			final RandomAccessibleInterval< T > input,
+			final List< Integer > methods,
+			final boolean singlePrecision,
+			final boolean fastEntropy,
+			final int numThreads,
+			final int readAhead )
+	{
+		if ( singlePrecision )
+			return ParallelSliceEvaluation.evaluate( input, getFloatMeasures( methods, fastEntropy ), numThreads, readAhead );
+		else
+			return ParallelSliceEvaluation.evaluate( input, getMeasures( methods, fastEntropy ), numThreads, readAhead );
+	}
+
+	/**
+	 * Same as evaluateMeasures( input, methods, singlePrecision, fastEntropy, numThreads, readAhead ), records the time for
+	 * loading/converting the slices and for each measure
+	 */
+	public static < T extends RealType< T > > double[][] evaluateMeasures(
+			final RandomAccessibleInterval< T > input,
+			final List< Integer > methods,
+			final boolean singlePrecision,
+			final boolean fastEntropy,
+			final int numThreads,
+			final int readAhead,
+			final RunStatistics stats )
+	{
+		return evaluateMeasures( PlaneAdapters.planes( input ), input, methods, singlePrecision, fastEntropy, numThreads, readAhead, stats );
+	}
+
+	/**
+	 * Same as evaluateMeasures( input, methods, singlePrecision, fastEntropy, numThreads, readAhead, stats ), the slices are copied
+	 * from the given planes
+	 *
+	 * @param planes - direct access to the planes of input (see {@link PlaneAdapters}), null = load with a cursor
+	 */
+	public static < T extends RealType< T > > double[][] evaluateMeasures(
+			final PlaneAdapters.Planes planes,
+			final RandomAccessibleInterval< T > input,
+			final List< Integer > methods,
+			final boolean singlePrecision,
+			final boolean fastEntropy,
+			final int numThreads,
+			final int readAhead,
+			final RunStatistics stats )
+	{
+		final int width = (int)input.dimension( 0 );
+		final int height = (int)input.dimension( 1 );
+		final int depth = (int)input.dimension( 2 );
+
+		addBufferEstimate( stats, "load + convert slices", width, height, methods.size(), singlePrecision, numThreads, readAhead );
+
+		if ( singlePrecision )
+			return ParallelSliceEvaluation.evaluate( width, height, depth,
+					stats.timeFloat( "load + convert slices", PlaneAdapters.floatReader( planes, input ) ),
+					timeFloatMeasures( methods, fastEntropy, stats ), numThreads, readAhead );
+		else
+			return ParallelSliceEvaluation.evaluate( width, height, depth,
+					stats.timeDouble( "load + convert slices", PlaneAdapters.doubleReader( planes, input ) ),
+					timeMeasures( methods, fastEntropy, stats ), numThreads, readAhead );
+	}
+
+	/**
+	 * Evaluates several focus measures in a single pass over a memory mapped stack
+	 *
+	 * @param stack - the mapped stack
+	 * @param methods - indices into methodChoices, must not contain 0 (rFRC)
+	 * @param singlePrecision - use FloatArrayImage instead of DoubleArrayImage
+	 * @param fastEntropy - compute the Shannon entropy with the table-driven logarithm (approximate)
+	 * @param numThreads - number of threads
+	 * @param readAhead - number of planes loaded ahead by a separate reader thread, 0 = off
+	 * @return the values [method][z], or null if the computation failed
+	 */
+	public static double[][] evaluateMeasures(
+			final MappedStack stack,
+			final List< Integer > methods,
+			final boolean singlePrecision,
+			final boolean fastEntropy,
+			final int numThreads,
+			final int readAhead )
+	{
+		if ( singlePrecision )
+			return ParallelSliceEvaluation.evaluate( stack, getFloatMeasures( methods, fastEntropy ), numThreads, readAhead );
+		else
+			return ParallelSliceEvaluation.evaluate( stack, getMeasures( methods, fastEntropy ), numThreads, readAhead );
+	}
+
+	public static double[][] evaluateMeasures(
+			final MappedStack stack,
+			final List< Integer > methods,
+			final boolean singlePrecision,
+			final boolean fastEntropy,
+			final int numThreads,
+			final int readAhead,
+			final RunStatistics stats )
+	{
+		addBufferEstimate( stats, "load + convert slices (mapped)", stack.width(), stack.height(), methods.size(), singlePrecision, numThreads, readAhead );
+
+		if ( singlePrecision )
+			return ParallelSliceEvaluation.evaluate( stack.width(), stack.height(), stack.depth(),
+					stats.timeFloat( "load + convert slices (mapped)", stack::read ),
+					timeFloatMeasures( methods, fastEntropy, stats ), numThreads, readAhead );
+		else
+			return ParallelSliceEvaluation.evaluate( stack.width(), stack.height(), stack.depth(),
+					stats.timeDouble( "load + convert slices (mapped)", stack::read ),
+					timeMeasures( methods, fastEntropy, stats ), numThreads, readAhead );
+	}
+
+	/**
+	 * Every worker owns a slice and, for more than one measure, a scratch image, the reader thread has readAhead
+	 * additional slices (the transforms allocate per-thread scratch of about the same size, which is not included)
+	 */
+	protected static void addBufferEstimate( final RunStatistics stats, final String stage, final int width, final int height, final int numMeasures, final boolean singlePrecision, final int numThreads, final int readAhead )
+	{
+		final long bytesPerImage = ( singlePrecision ? 4L : 8L ) * width * height;
+		final long numImages = (long)numThreads * ( numMeasures > 1 ? 2 : 1 ) + ( readAhead > 0 ? readAhead : 0 );
+
+		stats.addAllocated( stage, numImages * bytesPerImage );
+	}
+
+	protected static FocusMeasureInterface[] timeMeasures( final List< Integer > methods, final boolean fastEntropy, final RunStatistics stats )
+	{
+		final FocusMeasureInterface[] measures = getMeasures( methods, fastEntropy );
+
+		for ( int m = 0; m < measures.length; ++m )
+			measures[ m ] = stats.time( methodChoices[ methods.get( m ) ], measures[ m ] );
+
+		return measures;
+	}
+
+	protected static FloatFocusMeasureInterface[] timeFloatMeasures( final List< Integer > methods, final boolean fastEntropy, final RunStatistics stats )
+	{
+		final FloatFocusMeasureInterface[] measures = getFloatMeasures( methods, fastEntropy );
+
+		for ( int m = 0; m < measures.length; ++m )
+			measures[ m ] = stats.time( methodChoices[ methods.get( m ) ], measures[ m ] );
+
+		return measures;
+	}
+
+	protected static FocusMeasureInterface[] getMeasures( final List< Integer > methods, final boolean fastEntropy )
+	{
+		final FocusMeasureInterface[] measures = new FocusMeasureInterface[ methods.size() ];
+
+		for ( int m = 0; m < measures.length; ++m )
+			measures[ m ] = getMeasure( methods.get( m ), fastEntropy );
+
+		return measures;
+	}
+
+	protected static FloatFocusMeasureInterface[] getFloatMeasures( final List< Integer > methods, final boolean fastEntropy )
+	{
+		final FloatFocusMeasureInterface[] measures = new FloatFocusMeasureInterface[ methods.size() ];
+
+		for ( int m = 0; m < measures.length; ++m )
+			measures[ m ] = getFloatMeasure( methods.get( m ), fastEntropy );
+
+		return measures;
+	}
+
+	/**
+	 * @param values - one quality value per plane
+	 * @param zOffset - z position of the first value
+	 * @return a table with the columns "z" and "quality"
+	 */
+	public static ResultsTable qualityTable( final double[] values, final long zOffset )
+	{
+		final ResultsTable rt = new ResultsTable();
+
+		for ( int i = 0; i < values.length; ++i )
+		{
+			rt.incrementCounter();
+			rt.addValue( "z", zOffset + i );
+			rt.addValue( "quality", values[ i ] );
+		}
+
+		return rt;
 	}
 
 	protected < T extends RealType< T > > Interval interactiveROI( final RandomAccessibleInterval< T > img, final double min, final double max )
@@ -0,0 +1,202 @@
+package net.preibisch.qualityest;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Quality of all channels and timepoints of a hyperstack. Every (channel, timepoint) volume is a view into the wrapped
+ * ImagePlus (no pixels are copied, the focus measures read the planes of the ImageStack directly) and an independent
+ * job, numJobs of them run at the same time on one pool and share the threads (numThreads / numJobs each). The curves
+ * of all volumes end up in a single table with channel and timepoint columns.
+ */
+public class HyperstackQuality
+{
+	/**
+	 * @param img - the ImagePlus wrapped by ImageJFunctions (dimensions x, y, [c], z, [t], singleton dimensions are dropped)
+	 * @param imp - the ImagePlus, must have more than one slice
+	 * @param c - the channel (0-based)
+	 * @param t - the timepoint (0-based)
+	 * @return the 3d volume (x, y, z) as a view
+	 */
+	public static < T extends RealType< T > > RandomAccessibleInterval< T > volume( final RandomAccessibleInterval< T > img, final ImagePlus imp, final int c, final int t )
+	{
+		final int cDim = imp.getNChannels() > 1 ? 2 : -1;
+		final int zDim = cDim < 0 ? 2 : 3;
+		final int tDim = imp.getNFrames() > 1 ? zDim + 1 : -1;
+
+		RandomAccessibleInterval< T > volume = img;
+
+		// highest dimension first, so the index of the channel dimension does not change
+		if ( tDim >= 0 )
+			volume = Views.hyperSlice( volume, tDim, t );
+
+		if ( cDim >= 0 )
+			volume = Views.hyperSlice( volume, cDim, c );
+
+		return volume;
+	}
+
+	/**
+	 * @param imp - the hyperstack, must have more than one slice
+	 * @param interval - the area of every volume (x, y, z) to evaluate
+	 * @param selectedMethods - which of Estimate_Quality.methodChoices to compute (same order as measureDescriptions)
+	 * @param zStepSize - step size in z
+	 * @param fftSize - size of the FRC blocks
+	 * @param rFRCDist - relative FRC distance in z
+	 * @param coarseBinning - xy binning of coarse-to-fine rFRC, 1 = off
+	 * @param coarseTolerance - relative tolerance of coarse-to-fine rFRC
+	 * @param adaptiveTolerance - relative tolerance of adaptive z-sampling, 0 = off
+	 * @param adaptiveBudget - maximal number of planes evaluated by adaptive z-sampling, 0 = unlimited
+	 * @param singlePrecision - compute the entropy measures in single precision
+	 * @param fastEntropy - compute the Shannon entropy with the table-driven logarithm (approximate)
+	 * @param readAhead - number of planes loaded ahead in the background, 0 = off
+	 * @param numJobs - number of volumes that are processed at the same time
+	 * @param numThreads - total number of threads
+	 * @param stats - the statistics of the run
+	 * @return a table with the columns channel, timepoint, z and one column per selected method, or null if a job failed
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	public static ResultsTable compute(
+			final ImagePlus imp,
+			final Interval interval,
+			final boolean[] selectedMethods,
+			final int zStepSize,
+			final int fftSize,
+			final int rFRCDist,
+			final int coarseBinning,
+			final double coarseTolerance,
+			final double adaptiveTolerance,
+			final int adaptiveBudget,
+			final boolean singlePrecision,
+			final boolean fastEntropy,
+			final int readAhead,
+			final int numJobs,
+			final int numThreads,
+			final RunStatistics stats )
+	{
+		final int numChannels = imp.getNChannels();
+		final int numFrames = imp.getNFrames();
+		final int numVolumes = numChannels * numFrames;
+		final int jobs = Math.max( 1, Math.min( numJobs, numVolumes ) );
+		final int threadsPerJob = Math.max( 1, numThreads / jobs );
+
+		long t = stats.start();
+		final RandomAccessibleInterval img = ImageJFunctions.wrapReal( imp );
+		stats.stop( "wrap (ImageJFunctions.wrapReal)", t, 1 );
+
+		final ArrayList< Integer > measureIndices = new ArrayList<>();
+
+		for ( int i = 1; i < selectedMethods.length; ++i )
+			if ( selectedMethods[ i ] )
+				measureIndices.add( i );
+
+		// [volume][method][z]
+		final double[][][] values = new double[ numVolumes ][ selectedMethods.length ][];
+		final AtomicInteger finished = new AtomicInteger( 0 );
+
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( jobs );
+		final ArrayList< Callable< Boolean > > tasks = new ArrayList<>();
+
+		for ( int v = 0; v < numVolumes; ++v )
+		{
+			final int volumeIndex = v;
+			final int c = v / numFrames;
+			final int tp = v % numFrames;
+
+			tasks.add( () ->
+			{
+				final RandomAccessibleInterval input = Views.interval( volume( img, imp, c, tp ), interval );
+
+				if ( selectedMethods[ 0 ] )
+					values[ volumeIndex ][ 0 ] = Estimate_Quality.computeMedians( input, zStepSize, fftSize, rFRCDist, coarseBinning, coarseTolerance, adaptiveTolerance, adaptiveBudget, threadsPerJob, stats );
+
+				if ( measureIndices.size() > 0 )
+				{
+					final double[][] measureValues = Estimate_Quality.evaluateMeasures( PlaneAdapters.planes( imp, c, tp ), input, measureIndices, singlePrecision, fastEntropy, threadsPerJob, readAhead, stats );
+
+					if ( measureValues == null )
+						return false;
+
+					for ( int m = 0; m < measureIndices.size(); ++m )
+						values[ volumeIndex ][ measureIndices.get( m ) ] = measureValues[ m ];
+				}
+
+				IJ.log( "Channel " + ( c + 1 ) + ", timepoint " + ( tp + 1 ) + " done (" + finished.incrementAndGet() + "/" + numVolumes + ")." );
+
+				return true;
+			});
+		}
+
+		boolean success = true;
+
+		try
+		{
+			for ( final Future< Boolean > future : taskExecutor.invokeAll( tasks ) )
+				success &= future.get();
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			IJ.log( "Failed to compute the quality of all channels and timepoints: " + e );
+			e.printStackTrace();
+			success = false;
+		}
+
+		taskExecutor.shutdown();
+
+		if ( !success )
+			return null;
+
+		t = stats.start();
+		final ResultsTable rt = table( values, selectedMethods, numFrames, interval.min( 2 ), (int)interval.dimension( 2 ) );
+		stats.stop( "table + plot", t, 1 );
+
+		return rt;
+	}
+
+	/**
+	 * @return a table with the columns channel, timepoint (both 1-based like in ImageJ), z and one column per method
+	 */
+	public static ResultsTable table( final double[][][] values, final boolean[] selectedMethods, final int numFrames, final long zOffset, final int depth )
+	{
+		final ResultsTable rt = new ResultsTable();
+
+		for ( int v = 0; v < values.length; ++v )
+		{
+			for ( int z = 0; z < depth; ++z )
+			{
+				rt.incrementCounter();
+				rt.addValue( "channel", v / numFrames + 1 );
+				rt.addValue( "timepoint", v % numFrames + 1 );
+				rt.addValue( "z", zOffset + z );
+
+				for ( int i = 0; i < selectedMethods.length; ++i )
+					if ( selectedMethods[ i ] )
+						rt.addValue( Estimate_Quality.measureDescriptions[ i ], values[ v ][ i ][ z ] );
+			}
+		}
+
+		return rt;
+	}
+
+	/**
+	 * @return true if the image has more than one channel or timepoint
+	 */
+	public static boolean isHyperstack( final ImagePlus imp )
+	{
+		return imp.getNChannels() > 1 || imp.getNFrames() > 1;
+	}
+}
@@ -0,0 +1,407 @@
+package net.preibisch.qualityest;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import autopilot.image.DoubleArrayImage;
+import autopilot.measures.FocusMeasureInterface;
+import ij.process.ImageProcessor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Pair;
+import net.imglib2.view.Views;
+
+/**
+ * Quality estimation during acquisition: planes are added one at a time (e.g. as the microscope writes them) and the
+ * quality of every plane is reported to listeners as soon as it is known, so a bad acquisition can be stopped early.
+ *
+ * The focus measures (see addMeasure()) are computed as soon as a plane arrives. The relative FRC of plane z needs the
+ * planes up to z+rFRCDist, only this rolling window of 2*rFRCDist+1 planes is kept; like {@link StreamingRFRC} every
+ * zStepSize-th plane is evaluated and the other planes get the quality of the nearest evaluated plane, so the rFRC of
+ * a plane is reported at most rFRCDist+zStepSize planes after it was added (the last planes when finish() is called).
+ *
+ * All computation happens on one background thread in the order the planes were added, addPlane() only copies the
+ * plane. If more than maxPending planes are waiting, addPlane() blocks until the computation caught up, so memory is
+ * bounded by (2*rFRCDist+1+maxPending) planes plus one double per plane and measure for the curves.
+ */
+public class IncrementalQuality implements Closeable
+{
+	final int width, height, zStepSize, fftSize, rFRCDist;
+	final QualityListener rFRCListener;
+
+	final ArrayList< FocusMeasureInterface > measures = new ArrayList<>();
+	final ArrayList< QualityListener > measureListeners = new ArrayList<>();
+
+	final Semaphore pending;
+	final ExecutorService service = Executors.newSingleThreadExecutor( r ->
+	{
+		final Thread t = new Thread( r, "IncrementalQuality" );
+		t.setDaemon( true );
+		return t;
+	});
+	final ArrayList< Future< Void > > tasks = new ArrayList<>();
+
+	// state of the background thread
+	final ArrayDeque< float[] > window = new ArrayDeque<>();
+	DoubleArrayImage image = null;
+	ArrayList< Pair< Long, Long > > xyPositions = null;
+	boolean hasSample = false;
+	long lastZ = 0, nextZ = 0;
+	double lastMedian = 0;
+
+	// curves, guarded by this
+	double[] rFRC = new double[ 256 ];
+	final ArrayList< double[] > measureValues = new ArrayList<>();
+	int numRFRC = 0, numMeasured = 0;
+
+	long numPlanes = 0;
+	boolean finished = false;
+
+	/**
+	 * @param width - width of the planes
+	 * @param height - height of the planes
+	 * @param zStepSize - step size in z for rFRC
+	 * @param fftSize - size of the FRC blocks
+	 * @param rFRCDist - relative FRC distance in z
+	 * @param rFRCListener - is notified about the rFRC of every plane, null = rFRC is not computed
+	 * @param maxPending - maximal number of planes that are queued for computation before addPlane() blocks
+	 */
+	public IncrementalQuality(
+			final int width,
+			final int height,
+			final int zStepSize,
+			final int fftSize,
+			final int rFRCDist,
+			final QualityListener rFRCListener,
+			final int maxPending )
+	{
+		this.width = width;
+		this.height = height;
+		this.zStepSize = Math.max( 1, zStepSize );
+		this.fftSize = fftSize;
+		this.rFRCDist = rFRCDist;
+		this.rFRCListener = rFRCListener;
+		this.pending = new Semaphore( Math.max( 1, maxPending ) );
+	}
+
+	public IncrementalQuality( final int width, final int height, final int zStepSize, final int fftSize, final int rFRCDist, final QualityListener rFRCListener )
+	{
+		this( width, height, zStepSize, fftSize, rFRCDist, rFRCListener, 4 );
+	}
+
+	/**
+	 * Adds a focus measure that is computed for every plane, must be called before the first plane is added
+	 *
+	 * @param methodChoice - index into Estimate_Quality.methodChoices, must not be 0 (rFRC)
+	 * @param listener - is notified about the quality of every plane, can be null
+	 * @return the index of the measure for measure()
+	 */
+	public synchronized int addMeasure( final int methodChoice, final QualityListener listener )
+	{
+		return addMeasure( Estimate_Quality.getMeasure( methodChoice ), listener );
+	}
+
+	public synchronized int addMeasure( final FocusMeasureInterface measure, final QualityListener listener )
+	{
+		if ( numPlanes > 0 )
+			throw new IllegalStateException( "Measures must be added before the first plane." );
+
+		measures.add( measure );
+		measureListeners.add( listener );
+		measureValues.add( new double[ 256 ] );
+
+		return measures.size() - 1;
+	}
+
+	/**
+	 * Adds the next plane, blocks if maxPending planes are waiting for computation
+	 *
+	 * @param pixels - the plane (width*height), is copied
+	 * @return the z-index of the plane
+	 */
+	public long addPlane( final float[] pixels )
+	{
+		if ( pixels.length != width * height )
+			throw new IllegalArgumentException( "Plane has " + pixels.length + " pixels, expected " + width + "x" + height );
+
+		return add( pixels.clone() );
+	}
+
+	/**
+	 * Queues a plane that is owned by this instance
+	 */
+	protected long add( final float[] plane )
+	{
+		final long z;
+
+		synchronized ( this )
+		{
+			if ( finished )
+				throw new IllegalStateException( "finish() was already called." );
+
+			z = numPlanes++;
+		}
+
+		checkFailures();
+
+		try
+		{
+			pending.acquire();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "Interrupted while waiting for the computation.", e );
+		}
+
+		synchronized ( tasks )
+		{
+			tasks.add( service.submit( () ->
+			{
+				try
+				{
+					process( z, plane );
+				}
+				finally
+				{
+					pending.release();
+				}
+
+				return null;
+			}) );
+		}
+
+		return z;
+	}
+
+	/**
+	 * @param ip - the plane, 8 and 16 bit planes are converted directly from their pixel array, RGB planes are converted
+	 * by ImageJ
+	 * @return the z-index of the plane
+	 */
+	public long addPlane( final ImageProcessor ip )
+	{
+		final Object pixels = ip.getPixels();
+
+		if ( pixels instanceof int[] )
+			return addPlane( (float[])ip.convertToFloat().getPixels() );
+
+		if ( ip.getWidth() * ip.getHeight() != width * height )
+			throw new IllegalArgumentException( "Plane has " + ip.getWidth() + "x" + ip.getHeight() + " pixels, expected " + width + "x" + height );
+
+		// the copy is needed anyway, so the conversion does not cost an extra plane
+		final float[] plane = new float[ width * height ];
+		PlaneAdapters.copy( pixels, true, 0, ip.getWidth(), ip.getWidth(), ip.getHeight(), plane );
+
+		return add( plane );
+	}
+
+	/**
+	 * Reports the rFRC of the last planes (which have no complete window) and waits until all planes are processed
+	 */
+	public void finish()
+	{
+		synchronized ( this )
+		{
+			if ( finished )
+				return;
+
+			finished = true;
+		}
+
+		synchronized ( tasks )
+		{
+			tasks.add( service.submit( () ->
+			{
+				if ( hasSample )
+					emit( numPlanes - 1, lastMedian );
+
+				window.clear();
+
+				return null;
+			}) );
+		}
+
+		service.shutdown();
+
+		try
+		{
+			service.awaitTermination( Long.MAX_VALUE, TimeUnit.DAYS );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		checkFailures();
+	}
+
+	@Override
+	public void close()
+	{
+		finish();
+	}
+
+	/**
+	 * @return the number of planes that were added
+	 */
+	public synchronized long numPlanes()
+	{
+		return numPlanes;
+	}
+
+	/**
+	 * @return the rFRC of the planes that are known so far (index 0 is the first plane)
+	 */
+	public synchronized double[] rFRC()
+	{
+		return Arrays.copyOf( rFRC, numRFRC );
+	}
+
+	/**
+	 * @param measure - index returned by addMeasure()
+	 * @return the quality of the planes that are known so far (index 0 is the first plane)
+	 */
+	public synchronized double[] measure( final int measure )
+	{
+		return Arrays.copyOf( measureValues.get( measure ), numMeasured );
+	}
+
+	/**
+	 * Runs on the background thread
+	 */
+	protected void process( final long z, final float[] plane )
+	{
+		if ( measures.size() > 0 )
+		{
+			if ( image == null )
+				image = new DoubleArrayImage( width, height );
+
+			final double[] values = new double[ measures.size() ];
+
+			for ( int m = 0; m < measures.size(); ++m )
+			{
+				// the measures work in-place
+				final double[] array = image.getArray();
+
+				for ( int i = 0; i < plane.length; ++i )
+					array[ i ] = plane[ i ];
+
+				values[ m ] = measures.get( m ).computeFocusMeasure( image );
+			}
+
+			synchronized ( this )
+			{
+				for ( int m = 0; m < measures.size(); ++m )
+				{
+					final double[] curve = ensureCapacity( measureValues.get( m ), (int)z + 1 );
+					curve[ (int)z ] = values[ m ];
+					measureValues.set( m, curve );
+				}
+
+				numMeasured = (int)z + 1;
+			}
+
+			for ( int m = 0; m < measures.size(); ++m )
+				if ( measureListeners.get( m ) != null )
+					measureListeners.get( m ).newQuality( z, values[ m ] );
+		}
+
+		if ( rFRCListener == null )
+			return;
+
+		window.addLast( plane );
+
+		if ( window.size() > 2 * rFRCDist + 1 )
+			window.removeFirst();
+
+		// the center of the window
+		final long c = z - rFRCDist;
+
+		if ( c < rFRCDist || ( c - rFRCDist ) % zStepSize != 0 )
+			return;
+
+		final ArrayList< RandomAccessibleInterval< FloatType > > planes = new ArrayList<>();
+
+		for ( final float[] p : window )
+			planes.add( ArrayImgs.floats( p, width, height ) );
+
+		final RandomAccessibleInterval< FloatType > stack = Views.translate( Views.stack( planes ), 0, 0, c - rFRCDist );
+
+		if ( xyPositions == null )
+			xyPositions = StreamingRFRC.positions( stack, fftSize );
+
+		final double median = StreamingRFRC.median( stack, xyPositions, c, fftSize );
+
+		// planes up to the middle between the previous and this sample are closest to the previous sample
+		if ( hasSample )
+			emit( ( lastZ + c ) / 2, lastMedian );
+
+		emit( c, median );
+
+		hasSample = true;
+		lastZ = c;
+		lastMedian = median;
+	}
+
+	/**
+	 * Sets the rFRC for the planes [nextZ, to] and notifies the listener
+	 */
+	protected void emit( final long to, final double median )
+	{
+		for ( ; nextZ <= to; ++nextZ )
+		{
+			synchronized ( this )
+			{
+				rFRC = ensureCapacity( rFRC, (int)nextZ + 1 );
+				rFRC[ (int)nextZ ] = median;
+				numRFRC = (int)nextZ + 1;
+			}
+
+			rFRCListener.newQuality( nextZ, median );
+		}
+	}
+
+	protected void checkFailures()
+	{
+		synchronized ( tasks )
+		{
+			for ( int i = tasks.size() - 1; i >= 0; --i )
+			{
+				final Future< Void > task = tasks.get( i );
+
+				if ( !task.isDone() )
+					continue;
+
+				tasks.remove( i );
+
+				try
+				{
+					task.get();
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+				}
+				catch ( final ExecutionException e )
+				{
+					throw new RuntimeException( "Quality computation failed: " + e.getCause(), e.getCause() );
+				}
+			}
+		}
+	}
+
+	protected static double[] ensureCapacity( final double[] array, final int size )
+	{
+		return size <= array.length ? array : Arrays.copyOf( array, Math.max( size, 2 * array.length ) );
+	}
+}
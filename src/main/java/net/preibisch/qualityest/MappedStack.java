@@ -0,0 +1,509 @@
+package net.preibisch.qualityest;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import autopilot.image.DoubleArrayImage;
+import autopilot.image.FloatArrayImage;
+import ij.IJ;
+import ij.io.FileInfo;
+import ij.io.Opener;
+
+/**
+ * Read-only access to the planes of an uncompressed TIFF or raw stack through a memory mapped file. Planes are
+ * decoded directly from the mapped bytes into {@link DoubleArrayImage}s, {@link FloatArrayImage}s or float[] (for
+ * the {@link PlaneCache}) using bulk buffer views, so the stack is never loaded as a whole. The operating system
+ * caches the file, which allows stacks that are much larger than the Java heap.
+ *
+ * The file is mapped in regions of up to defaultMaxRegionBytes (1GB) that only contain whole planes, each region is mapped once when a plane
+ * in it is read for the first time. close() unmaps all regions right away instead of waiting for the garbage collector.
+ *
+ * All methods are thread-safe, close() waits for reads that are in progress.
+ */
+public class MappedStack implements PlaneCache.PlaneLoader, Closeable
+{
+	/**
+	 * maximal size of a mapped region (unless a single plane is larger)
+	 */
+	public static long defaultMaxRegionBytes = 1L << 30;
+
+	final FileChannel channel;
+	final int width, height, depth, fileType, bytesPerPixel;
+	final long[] planeOffsets;
+	final ByteOrder byteOrder;
+	final long maxRegionBytes;
+
+	// the region that contains plane z, start and length of every region in the file, the mapped regions (null = not mapped yet)
+	final int[] planeRegions;
+	final long[] regionStarts, regionLengths;
+	final MappedByteBuffer[] regions;
+
+	// reads hold the read lock, close() the write lock, so a region is never unmapped while it is read
+	final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	boolean closed = false;
+
+	/**
+	 * @param file - the file
+	 * @param width - width of a plane
+	 * @param height - height of a plane
+	 * @param fileType - FileInfo.GRAY8, FileInfo.GRAY16_UNSIGNED, FileInfo.GRAY16_SIGNED or FileInfo.GRAY32_FLOAT
+	 * @param planeOffsets - position of each plane in the file (in bytes)
+	 * @param littleEndian - byte order of the pixels
+	 */
+	public MappedStack( final File file, final int width, final int height, final int fileType, final long[] planeOffsets, final boolean littleEndian ) throws IOException
+	{
+		this( file, width, height, fileType, planeOffsets, littleEndian, defaultMaxRegionBytes );
+	}
+
+	/**
+	 * @param file - the file
+	 * @param width - width of a plane
+	 * @param height - height of a plane
+	 * @param fileType - FileInfo.GRAY8, FileInfo.GRAY16_UNSIGNED, FileInfo.GRAY16_SIGNED or FileInfo.GRAY32_FLOAT
+	 * @param planeOffsets - position of each plane in the file (in bytes)
+	 * @param littleEndian - byte order of the pixels
+	 * @param maxRegionBytes - maximal size of a mapped region (unless a single plane is larger)
+	 */
+	public MappedStack( final File file, final int width, final int height, final int fileType, final long[] planeOffsets, final boolean littleEndian, final long maxRegionBytes ) throws IOException
+	{
+		this.width = width;
+		this.height = height;
+		this.depth = planeOffsets.length;
+		this.fileType = fileType;
+		this.bytesPerPixel = bytesPerPixel( fileType );
+		this.planeOffsets = planeOffsets;
+		this.byteOrder = littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		this.maxRegionBytes = maxRegionBytes;
+
+		if ( bytesPerPixel == 0 )
+			throw new IllegalArgumentException( "Unsupported pixel type: " + fileType );
+
+		this.channel = FileChannel.open( file.toPath(), StandardOpenOption.READ );
+
+		final long planeBytes = planeBytes();
+
+		for ( int z = 0; z < depth; ++z )
+		{
+			if ( planeOffsets[ z ] < 0 || planeOffsets[ z ] + planeBytes > channel.size() )
+			{
+				channel.close();
+				throw new IOException( "Plane " + z + " is outside of '" + file + "'" );
+			}
+		}
+
+		// consecutive planes share a region as long as it does not exceed maxRegionBytes
+		final ArrayList< long[] > regionList = new ArrayList<>();
+		this.planeRegions = new int[ depth ];
+
+		for ( int z = 0; z < depth; ++z )
+		{
+			final long start = planeOffsets[ z ];
+			final long end = start + planeBytes;
+			final long[] region = regionList.isEmpty() ? null : regionList.get( regionList.size() - 1 );
+
+			if ( region == null || start < region[ 0 ] || end - region[ 0 ] > Math.max( maxRegionBytes, planeBytes ) )
+				regionList.add( new long[] { start, end } );
+			else
+				region[ 1 ] = Math.max( region[ 1 ], end );
+
+			planeRegions[ z ] = regionList.size() - 1;
+		}
+
+		this.regionStarts = new long[ regionList.size() ];
+		this.regionLengths = new long[ regionList.size() ];
+		this.regions = new MappedByteBuffer[ regionList.size() ];
+
+		for ( int r = 0; r < regionList.size(); ++r )
+		{
+			regionStarts[ r ] = regionList.get( r )[ 0 ];
+			regionLengths[ r ] = regionList.get( r )[ 1 ] - regionList.get( r )[ 0 ];
+		}
+	}
+
+	/**
+	 * Raw stack with a header and a constant gap between the planes
+	 *
+	 * @param file - the file
+	 * @param width - width of a plane
+	 * @param height - height of a plane
+	 * @param depth - number of planes
+	 * @param fileType - FileInfo.GRAY8, FileInfo.GRAY16_UNSIGNED, FileInfo.GRAY16_SIGNED or FileInfo.GRAY32_FLOAT
+	 * @param offset - position of the first plane in the file (in bytes)
+	 * @param gap - bytes between the end of a plane and the start of the next one
+	 * @param littleEndian - byte order of the pixels
+	 */
+	public static MappedStack raw( final File file, final int width, final int height, final int depth, final int fileType, final long offset, final long gap, final boolean littleEndian ) throws IOException
+	{
+		return raw( file, width, height, depth, fileType, offset, gap, littleEndian, defaultMaxRegionBytes );
+	}
+
+	/**
+	 * Raw stack with a header and a constant gap between the planes
+	 *
+	 * @param file - the file
+	 * @param width - width of a plane
+	 * @param height - height of a plane
+	 * @param depth - number of planes
+	 * @param fileType - FileInfo.GRAY8, FileInfo.GRAY16_UNSIGNED, FileInfo.GRAY16_SIGNED or FileInfo.GRAY32_FLOAT
+	 * @param offset - position of the first plane in the file (in bytes)
+	 * @param gap - bytes between the end of a plane and the start of the next one
+	 * @param littleEndian - byte order of the pixels
+	 * @param maxRegionBytes - maximal size of a mapped region (unless a single plane is larger)
+	 */
+	public static MappedStack raw( final File file, final int width, final int height, final int depth, final int fileType, final long offset, final long gap, final boolean littleEndian, final long maxRegionBytes ) throws IOException
+	{
+		final long planeBytes = (long)width * height * bytesPerPixel( fileType );
+		final long[] planeOffsets = new long[ depth ];
+
+		for ( int z = 0; z < depth; ++z )
+			planeOffsets[ z ] = offset + z * ( planeBytes + gap );
+
+		return new MappedStack( file, width, height, fileType, planeOffsets, littleEndian, maxRegionBytes );
+	}
+
+	/**
+	 * Maps a single-channel, single-timepoint, uncompressed TIFF stack (8, 16 bit or 32 bit float)
+	 *
+	 * @param file - the TIFF file
+	 * @return the mapped stack, or null if the file is not an uncompressed, single-channel TIFF stack that can be mapped
+	 */
+	public static MappedStack tiff( final File file )
+	{
+		final FileInfo[] info;
+
+		try
+		{
+			info = Opener.getTiffFileInfo( file.getAbsolutePath() );
+		}
+		catch ( final Exception e )
+		{
+			return null;
+		}
+
+		final long[] planeOffsets = planeOffsets( info );
+
+		if ( planeOffsets == null )
+			return null;
+
+		final FileInfo fi = info[ 0 ];
+
+		try
+		{
+			return new MappedStack( file, fi.width, fi.height, fi.fileType, planeOffsets, fi.intelByteOrder );
+		}
+		catch ( final IOException e )
+		{
+			IJ.log( "Could not map '" + file + "': " + e );
+			return null;
+		}
+	}
+
+	/**
+	 * @param info - the FileInfo of every IFD of a TIFF file
+	 * @return the position of each plane in the file, or null if it is not an uncompressed, single-channel stack that can be mapped
+	 */
+	protected static long[] planeOffsets( final FileInfo[] info )
+	{
+		if ( info == null || info.length == 0 )
+			return null;
+
+		final FileInfo fi = info[ 0 ];
+
+		if ( hyperstackSize( fi.description, "channels=" ) > 1 || hyperstackSize( fi.description, "frames=" ) > 1 )
+			return null;
+
+		final long[] planeOffsets;
+
+		if ( info.length == 1 )
+		{
+			// ImageJ stack, all planes are described by the first IFD
+			if ( !canMap( fi, fi ) )
+				return null;
+
+			final long planeBytes = (long)fi.width * fi.height * bytesPerPixel( fi.fileType );
+			final long gap = fi.gapBetweenImages;
+
+			planeOffsets = new long[ Math.max( 1, fi.nImages ) ];
+
+			for ( int z = 0; z < planeOffsets.length; ++z )
+				planeOffsets[ z ] = fi.getOffset() + z * ( planeBytes + gap );
+		}
+		else
+		{
+			// one IFD per plane
+			planeOffsets = new long[ info.length ];
+
+			for ( int z = 0; z < info.length; ++z )
+			{
+				if ( !canMap( info[ z ], fi ) )
+					return null;
+
+				planeOffsets[ z ] = info[ z ].getOffset();
+			}
+		}
+
+		return planeOffsets;
+	}
+
+	public int width() { return width; }
+	public int height() { return height; }
+	public int depth() { return depth; }
+
+	/**
+	 * @param z - the plane (0-based)
+	 * @param image - the image to load the plane into (width*height)
+	 */
+	public void read( final int z, final DoubleArrayImage image ) throws IOException
+	{
+		lock.readLock().lock();
+
+		try
+		{
+			final ByteBuffer buffer = map( z );
+
+			if ( fileType == FileInfo.GRAY8 )
+			{
+				image.load8bitByteBuffer( buffer );
+			}
+			else if ( fileType == FileInfo.GRAY16_UNSIGNED )
+			{
+				image.load16bitShortBuffer( buffer.asShortBuffer() );
+			}
+			else if ( fileType == FileInfo.GRAY16_SIGNED )
+			{
+				image.load16bitShortBuffer( buffer.asShortBuffer() );
+
+				// like ImageJ, signed values are shifted into the unsigned range
+				final double[] array = image.getArray();
+				for ( int i = 0; i < array.length; ++i )
+					array[ i ] = ( (int)array[ i ] ^ 0x8000 );
+			}
+			else
+			{
+				image.loadFloatBuffer( buffer.asFloatBuffer() );
+			}
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param z - the plane (0-based)
+	 * @param image - the image to load the plane into (width*height)
+	 */
+	public void read( final int z, final FloatArrayImage image ) throws IOException
+	{
+		lock.readLock().lock();
+
+		try
+		{
+			final ByteBuffer buffer = map( z );
+
+			if ( fileType == FileInfo.GRAY8 )
+			{
+				image.load8bitByteBuffer( buffer );
+			}
+			else if ( fileType == FileInfo.GRAY16_UNSIGNED )
+			{
+				image.load16bitShortBuffer( buffer.asShortBuffer() );
+			}
+			else if ( fileType == FileInfo.GRAY16_SIGNED )
+			{
+				image.load16bitShortBuffer( buffer.asShortBuffer() );
+
+				// like ImageJ, signed values are shifted into the unsigned range
+				final float[] array = image.getArray();
+				for ( int i = 0; i < array.length; ++i )
+					array[ i ] = ( (int)array[ i ] ^ 0x8000 );
+			}
+			else
+			{
+				image.loadFloatBuffer( buffer.asFloatBuffer() );
+			}
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public float[] loadPlane( final int z )
+	{
+		final FloatArrayImage image = new FloatArrayImage( width, height );
+
+		try
+		{
+			read( z, image );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( "Could not read plane " + z + ": " + e, e );
+		}
+
+		return image.getArray();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		lock.writeLock().lock();
+
+		try
+		{
+			if ( closed )
+				return;
+
+			closed = true;
+
+			for ( int r = 0; r < regions.length; ++r )
+			{
+				if ( regions[ r ] != null )
+					unmap( regions[ r ] );
+
+				regions[ r ] = null;
+			}
+
+			channel.close();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	protected long planeBytes()
+	{
+		return (long)width * height * bytesPerPixel;
+	}
+
+	/**
+	 * @return a view of plane z in its mapped region (the caller must hold the read lock). Regions are at most 2GB
+	 * (a plane is at most 2GB), so this also works for files larger than 2GB.
+	 */
+	protected ByteBuffer map( final int z ) throws IOException
+	{
+		final int r = planeRegions[ z ];
+		final ByteBuffer buffer = region( r ).duplicate();
+		final int start = (int)( planeOffsets[ z ] - regionStarts[ r ] );
+
+		buffer.position( start );
+		buffer.limit( start + (int)planeBytes() );
+
+		return buffer.slice().order( byteOrder );
+	}
+
+	protected synchronized MappedByteBuffer region( final int r ) throws IOException
+	{
+		if ( closed )
+			throw new IOException( "The stack was closed." );
+
+		if ( regions[ r ] == null )
+			regions[ r ] = channel.map( FileChannel.MapMode.READ_ONLY, regionStarts[ r ], regionLengths[ r ] );
+
+		return regions[ r ];
+	}
+
+	/**
+	 * Releases a mapping right away (sun.misc.Unsafe.invokeCleaner on Java 9+, the cleaner of the buffer on Java 8),
+	 * if neither is accessible the mapping is released by the garbage collector.
+	 */
+	protected static void unmap( final MappedByteBuffer buffer )
+	{
+		try
+		{
+			final Class< ? > unsafeClass = Class.forName( "sun.misc.Unsafe" );
+			final Field theUnsafe = unsafeClass.getDeclaredField( "theUnsafe" );
+			theUnsafe.setAccessible( true );
+			unsafeClass.getMethod( "invokeCleaner", ByteBuffer.class ).invoke( theUnsafe.get( null ), buffer );
+			return;
+		}
+		catch ( final Exception e ) {}
+
+		try
+		{
+			final Method cleanerMethod = buffer.getClass().getMethod( "cleaner" );
+			cleanerMethod.setAccessible( true );
+			final Object cleaner = cleanerMethod.invoke( buffer );
+
+			if ( cleaner != null )
+				cleaner.getClass().getMethod( "clean" ).invoke( cleaner );
+		}
+		catch ( final Exception e ) {}
+	}
+
+	protected static int bytesPerPixel( final int fileType )
+	{
+		if ( fileType == FileInfo.GRAY8 )
+			return 1;
+		else if ( fileType == FileInfo.GRAY16_UNSIGNED || fileType == FileInfo.GRAY16_SIGNED )
+			return 2;
+		else if ( fileType == FileInfo.GRAY32_FLOAT )
+			return 4;
+		else
+			return 0;
+	}
+
+	/**
+	 * @return true if the plane described by fi is uncompressed, stored contiguously and has the same layout as the first plane
+	 */
+	protected static boolean canMap( final FileInfo fi, final FileInfo first )
+	{
+		if ( fi.compression != FileInfo.COMPRESSION_NONE || bytesPerPixel( fi.fileType ) == 0 )
+			return false;
+
+		if ( fi.width != first.width || fi.height != first.height || fi.fileType != first.fileType || fi.intelByteOrder != first.intelByteOrder )
+			return false;
+
+		if ( (long)fi.width * fi.height * bytesPerPixel( fi.fileType ) > Integer.MAX_VALUE )
+			return false;
+
+		// strips must follow each other without gaps
+		if ( fi.stripOffsets != null && fi.stripLengths != null )
+			for ( int s = 1; s < fi.stripOffsets.length; ++s )
+				if ( (long)fi.stripOffsets[ s ] != (long)fi.stripOffsets[ s - 1 ] + fi.stripLengths[ s - 1 ] )
+					return false;
+
+		return true;
+	}
+
+	/**
+	 * @return the value of e.g. "channels=" in the ImageJ image description, 1 if it is not present
+	 */
+	protected static int hyperstackSize( final String description, final String key )
+	{
+		if ( description == null )
+			return 1;
+
+		final int start = description.indexOf( key );
+
+		if ( start < 0 )
+			return 1;
+
+		int end = start + key.length();
+
+		while ( end < description.length() && Character.isDigit( description.charAt( end ) ) )
+			++end;
+
+		try
+		{
+			return Integer.parseInt( description.substring( start + key.length(), end ) );
+		}
+		catch ( final NumberFormatException e )
+		{
+			return 1;
+		}
+	}
+}
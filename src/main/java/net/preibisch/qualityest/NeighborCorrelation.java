@@ -0,0 +1,277 @@
+package net.preibisch.qualityest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.IJ;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Pearson correlation of adjacent z-slices, computed in a single pass over the pixels.
+ *
+ * Means, variances and the covariance are accumulated together, row by row: the moments of a row are computed
+ * from the row (which is in cache) and merged into the running moments with the parallel update formula of
+ * Chan et al., which is numerically stable like Welford's algorithm but keeps the inner loop free of divisions.
+ * Slice pairs and, if there are fewer pairs than threads, row chunks of a pair are processed concurrently and
+ * merged in a fixed order, so the result does not depend on the number of threads.
+ */
+public class NeighborCorrelation
+{
+	/**
+	 * Count, means, sums of squared deviations and co-moment of two variables.
+	 */
+	public static class Moments
+	{
+		public long n = 0;
+		public double meanA = 0, meanB = 0, m2A = 0, m2B = 0, cAB = 0;
+
+		public void add( final double a, final double b )
+		{
+			++n;
+
+			final double dA = a - meanA;
+			final double dB = b - meanB;
+
+			meanA += dA / n;
+			meanB += dB / n;
+
+			m2A += dA * ( a - meanA );
+			m2B += dB * ( b - meanB );
+			cAB += dA * ( b - meanB );
+		}
+
+		/**
+		 * Adds the pairs (a[i], b[i]) for i in [from, to)
+		 */
+		public void add( final double[] a, final double[] b, final int from, final int to )
+		{
+			final int count = to - from;
+
+			if ( count <= 0 )
+				return;
+
+			double sumA = 0, sumB = 0;
+
+			for ( int i = from; i < to; ++i )
+			{
+				sumA += a[ i ];
+				sumB += b[ i ];
+			}
+
+			final double blockMeanA = sumA / count;
+			final double blockMeanB = sumB / count;
+
+			double blockM2A = 0, blockM2B = 0, blockCAB = 0;
+
+			for ( int i = from; i < to; ++i )
+			{
+				final double dA = a[ i ] - blockMeanA;
+				final double dB = b[ i ] - blockMeanB;
+
+				blockM2A += dA * dA;
+				blockM2B += dB * dB;
+				blockCAB += dA * dB;
+			}
+
+			merge( count, blockMeanA, blockMeanB, blockM2A, blockM2B, blockCAB );
+		}
+
+		public void merge( final Moments other )
+		{
+			merge( other.n, other.meanA, other.meanB, other.m2A, other.m2B, other.cAB );
+		}
+
+		protected void merge( final long n2, final double meanA2, final double meanB2, final double m2A2, final double m2B2, final double cAB2 )
+		{
+			if ( n2 == 0 )
+				return;
+
+			final long n1 = n;
+			final long sum = n1 + n2;
+
+			final double dA = meanA2 - meanA;
+			final double dB = meanB2 - meanB;
+			final double f = (double)n1 * n2 / sum;
+
+			meanA += dA * n2 / sum;
+			meanB += dB * n2 / sum;
+
+			m2A += m2A2 + dA * dA * f;
+			m2B += m2B2 + dB * dB * f;
+			cAB += cAB2 + dA * dB * f;
+
+			n = sum;
+		}
+
+		/**
+		 * @return the Pearson correlation, 0 if one of the variables is constant
+		 */
+		public double correlation()
+		{
+			// all pixels had the same color, most likely an artifact
+			if ( m2A == 0 || m2B == 0 )
+				return 0;
+
+			return cAB / Math.sqrt( m2A * m2B );
+		}
+	}
+
+	/**
+	 * Single pass over two images of the same size.
+	 *
+	 * @param img1 - first image
+	 * @param img2 - second image
+	 * @return the moments of the pixel pairs
+	 */
+	public static < T extends RealType< T >, S extends RealType< S > > Moments moments(
+			final RandomAccessibleInterval< T > img1,
+			final RandomAccessibleInterval< S > img2 )
+	{
+		final Moments moments = new Moments();
+		final Cursor< T > c1 = Views.iterable( img1 ).cursor();
+
+		if ( Views.iterable( img1 ).iterationOrder().equals( Views.iterable( img2 ).iterationOrder() ) )
+		{
+			final Cursor< S > c2 = Views.iterable( img2 ).cursor();
+
+			while ( c1.hasNext() )
+				moments.add( c1.next().getRealDouble(), c2.next().getRealDouble() );
+		}
+		else
+		{
+			final RandomAccess< S > r2 = img2.randomAccess();
+
+			while ( c1.hasNext() )
+			{
+				final double c = c1.next().getRealDouble();
+				r2.setPosition( c1 );
+				moments.add( c, r2.get().getRealDouble() );
+			}
+		}
+
+		return moments;
+	}
+
+	/**
+	 * @param input - the 3d image, slices are taken along dimension 2
+	 * @param numThreads - number of threads
+	 * @return the correlation of slice z and z+1 for every z (index 0 corresponds to input.min( 2 )), or null if the computation failed
+	 */
+	public static < T extends RealType< T > > double[] adjacent( final RandomAccessibleInterval< T > input, final int numThreads )
+	{
+		final int width = (int)input.dimension( 0 );
+		final int height = (int)input.dimension( 1 );
+		final int numPairs = (int)input.dimension( 2 ) - 1;
+
+		// ArrayImg/PlanarImg (e.g. ImageJFunctions.wrapReal) rows are copied directly from the pixel arrays
+		final PlaneAdapters.Planes planes = PlaneAdapters.planes( input );
+
+		return adjacent( numPairs, height, numThreads, ( pair, y0, y1 ) ->
+		{
+			final double[] rowA = new double[ width ];
+			final double[] rowB = new double[ width ];
+			final Moments moments = new Moments();
+
+			if ( planes != null )
+			{
+				for ( int y = y0; y < y1; ++y )
+				{
+					planes.copy( input.min( 0 ), input.min( 1 ) + y, input.min( 2 ) + pair, width, 1, rowA );
+					planes.copy( input.min( 0 ), input.min( 1 ) + y, input.min( 2 ) + pair + 1, width, 1, rowB );
+
+					moments.add( rowA, rowB, 0, width );
+				}
+
+				return moments;
+			}
+
+			final Interval rows = new FinalInterval( new long[] { input.min( 0 ), input.min( 1 ) + y0 }, new long[] { input.max( 0 ), input.min( 1 ) + y1 - 1 } );
+
+			final Cursor< T > cA = Views.flatIterable( Views.interval( Views.hyperSlice( input, 2, input.min( 2 ) + pair ), rows ) ).cursor();
+			final Cursor< T > cB = Views.flatIterable( Views.interval( Views.hyperSlice( input, 2, input.min( 2 ) + pair + 1 ), rows ) ).cursor();
+
+			for ( int y = y0; y < y1; ++y )
+			{
+				for ( int x = 0; x < width; ++x )
+				{
+					rowA[ x ] = cA.next().getRealDouble();
+					rowB[ x ] = cB.next().getRealDouble();
+				}
+
+				moments.add( rowA, rowB, 0, width );
+			}
+
+			return moments;
+		});
+	}
+
+	protected interface ChunkMoments
+	{
+		/**
+		 * @return the moments of slice pair 'pair' for the rows [y0, y1) (relative to the evaluated area)
+		 */
+		Moments compute( int pair, int y0, int y1 );
+	}
+
+	protected static double[] adjacent( final int numPairs, final int height, final int numThreads, final ChunkMoments chunkMoments )
+	{
+		if ( numPairs <= 0 )
+			return new double[ 0 ];
+
+		// split slices into row chunks only if there are not enough pairs to keep all threads busy
+		final int numChunks = Math.max( 1, Math.min( height, ( numThreads + numPairs - 1 ) / numPairs ) );
+
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Math.max( 1, numThreads ) );
+		final ArrayList< Callable< Moments > > tasks = new ArrayList<>();
+
+		for ( int pair = 0; pair < numPairs; ++pair )
+			for ( int chunk = 0; chunk < numChunks; ++chunk )
+			{
+				final int p = pair;
+				final int y0 = (int)( (long)height * chunk / numChunks );
+				final int y1 = (int)( (long)height * ( chunk + 1 ) / numChunks );
+
+				tasks.add( () -> chunkMoments.compute( p, y0, y1 ) );
+			}
+
+		final double[] correlations = new double[ numPairs ];
+
+		try
+		{
+			final List< Future< Moments > > futures = taskExecutor.invokeAll( tasks );
+
+			for ( int pair = 0; pair < numPairs; ++pair )
+			{
+				final Moments moments = new Moments();
+
+				for ( int chunk = 0; chunk < numChunks; ++chunk )
+					moments.merge( futures.get( pair * numChunks + chunk ).get() );
+
+				correlations[ pair ] = moments.correlation();
+			}
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			IJ.log( "Failed to compute the correlation of adjacent slices: " + e );
+			e.printStackTrace();
+			return null;
+		}
+		finally
+		{
+			taskExecutor.shutdown();
+		}
+
+		return correlations;
+	}
+}
@@ -0,0 +1,374 @@
+package net.preibisch.qualityest;
+
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import autopilot.image.BufferPool;
+import autopilot.image.DoubleArrayImage;
+import autopilot.image.FloatArrayImage;
+import autopilot.measures.FloatFocusMeasureInterface;
+import autopilot.measures.FocusMeasureInterface;
+import ij.IJ;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Evaluates one or more {@link FocusMeasureInterface}s for every z-slice of a
+ * 3d image using a pool of worker threads. Slices are handed out dynamically, every
+ * worker owns its own scratch {@link DoubleArrayImage} (the measures work
+ * in-place), and the result is ordered by z just like a serial evaluation. The
+ * slice and scratch arrays come from the {@link BufferPool} and are returned when
+ * the stack is done, so consecutive stacks of the same size do not allocate them.
+ *
+ * With readAhead &gt; 0 loading is done by a separate reader thread ({@link PrefetchPipeline}), so that
+ * reading and converting the next planes overlaps with the computation.
+ */
+public class ParallelSliceEvaluation
+{
+	/**
+	 * @param input - the 3d image, slices are taken along dimension 2
+	 * @param measure - the measure, must not keep per-call state as it is shared by all workers
+	 * @param numThreads - number of worker threads
+	 * @return the value of the measure for each slice (index 0 corresponds to input.min( 2 )), or null if the computation failed
+	 */
+	public static < T extends RealType< T > > double[] evaluate(
+			final RandomAccessibleInterval< T > input,
+			final FocusMeasureInterface measure,
+			final int numThreads )
+	{
+		final double[][] values = evaluate( input, new FocusMeasureInterface[] { measure }, numThreads );
+
+		return values == null ? null : values[ 0 ];
+	}
+
+	public static < T extends RealType< T > > double[][] evaluate(
+			final RandomAccessibleInterval< T > input,
+			final FocusMeasureInterface[] measures,
+			final int numThreads )
+	{
+		return evaluate( input, measures, numThreads, 0 );
+	}
+
+	/**
+	 * Evaluates several measures in a single pass, every slice is loaded only once and then handed to all measures.
+	 * Slices of images that are backed by primitive arrays are copied directly (see {@link PlaneAdapters}).
+	 * As the measures work in-place, each of them gets its own copy of the slice.
+	 *
+	 * @param input - the 3d image, slices are taken along dimension 2
+	 * @param measures - the measures, must not keep per-call state as they are shared by all workers
+	 * @param numThreads - number of worker threads
+	 * @param readAhead - number of planes loaded ahead by a separate reader thread, 0 loads on the worker threads
+	 * @return the values of each measure for each slice [measure][z] (z index 0 corresponds to input.min( 2 )), or null if the computation failed
+	 */
+	public static < T extends RealType< T > > double[][] evaluate(
+			final RandomAccessibleInterval< T > input,
+			final FocusMeasureInterface[] measures,
+			final int numThreads,
+			final int readAhead )
+	{
+		return evaluate( (int)input.dimension( 0 ), (int)input.dimension( 1 ), (int)input.dimension( 2 ), PlaneAdapters.doubleReader( input ), measures, numThreads, readAhead );
+	}
+
+	/**
+	 * Evaluates the measures for every plane of a memory mapped stack, planes are decoded directly from the file.
+	 *
+	 * @param stack - the mapped stack
+	 * @param measures - the measures, must not keep per-call state as they are shared by all workers
+	 * @param numThreads - number of worker threads
+	 * @param readAhead - number of planes loaded ahead by a separate reader thread, 0 loads on the worker threads
+	 * @return the values of each measure for each slice [measure][z], or null if the computation failed
+	 */
+	public static double[][] evaluate(
+			final MappedStack stack,
+			final FocusMeasureInterface[] measures,
+			final int numThreads,
+			final int readAhead )
+	{
+		return evaluate( stack.width(), stack.height(), stack.depth(), stack::read, measures, numThreads, readAhead );
+	}
+
+	protected static double[][] evaluate(
+			final int width,
+			final int height,
+			final int depth,
+			final PrefetchPipeline.PlaneReader< DoubleArrayImage > reader,
+			final FocusMeasureInterface[] measures,
+			final int numThreads,
+			final int readAhead )
+	{
+		final double[][] values = new double[ measures.length ][ depth ];
+		final AtomicInteger finishedSlices = new AtomicInteger( 0 );
+
+		final Queue< DoubleArrayImage > pooled = new ConcurrentLinkedQueue<>();
+		final boolean success;
+
+		if ( readAhead > 0 )
+		{
+			success = PrefetchPipeline.run(
+					depth, readAhead, numThreads,
+					() -> acquireDouble( width, height, pooled ),
+					reader,
+					() ->
+					{
+						final DoubleArrayImage scratch = measures.length > 1 ? acquireDouble( width, height, pooled ) : null;
+
+						return ( z, slice ) ->
+						{
+							evaluate( measures, slice, scratch, values, z );
+							IJ.showProgress( finishedSlices.incrementAndGet(), depth );
+						};
+					} );
+		}
+		else
+		{
+			final AtomicInteger nextSlice = new AtomicInteger( 0 );
+
+			success = runWorkers( Math.min( numThreads, depth ), () ->
+			{
+				final DoubleArrayImage slice = acquireDouble( width, height, pooled );
+				final DoubleArrayImage scratch = measures.length > 1 ? acquireDouble( width, height, pooled ) : null;
+
+				for ( int z = nextSlice.getAndIncrement(); z < depth; z = nextSlice.getAndIncrement() )
+				{
+					reader.read( z, slice );
+					evaluate( measures, slice, scratch, values, z );
+					IJ.showProgress( finishedSlices.incrementAndGet(), depth );
+				}
+
+				return null;
+			});
+		}
+
+		// the planes and scratch images are reused by the next stack (if a worker failed it might still use them)
+		if ( success )
+			for ( final DoubleArrayImage image : pooled )
+				BufferPool.release( image );
+
+		return success ? values : null;
+	}
+
+	public static < T extends RealType< T > > double[][] evaluate(
+			final RandomAccessibleInterval< T > input,
+			final FloatFocusMeasureInterface[] measures,
+			final int numThreads )
+	{
+		return evaluate( input, measures, numThreads, 0 );
+	}
+
+	/**
+	 * Single precision version of {@link #evaluate(RandomAccessibleInterval, FocusMeasureInterface[], int, int)}, slices
+	 * are loaded into {@link FloatArrayImage}s which halves the memory traffic of the transforms.
+	 *
+	 * @param input - the 3d image, slices are taken along dimension 2
+	 * @param measures - the measures, must not keep per-call state as they are shared by all workers
+	 * @param numThreads - number of worker threads
+	 * @param readAhead - number of planes loaded ahead by a separate reader thread, 0 loads on the worker threads
+	 * @return the values of each measure for each slice [measure][z] (z index 0 corresponds to input.min( 2 )), or null if the computation failed
+	 */
+	public static < T extends RealType< T > > double[][] evaluate(
+			final RandomAccessibleInterval< T > input,
+			final FloatFocusMeasureInterface[] measures,
+			final int numThreads,
+			final int readAhead )
+	{
+		return evaluate( (int)input.dimension( 0 ), (int)input.dimension( 1 ), (int)input.dimension( 2 ), PlaneAdapters.floatReader( input ), measures, numThreads, readAhead );
+	}
+
+	/**
+	 * Evaluates the measures for every plane of a memory mapped stack, planes are decoded directly from the file.
+	 *
+	 * @param stack - the mapped stack
+	 * @param measures - the measures, must not keep per-call state as they are shared by all workers
+	 * @param numThreads - number of worker threads
+	 * @param readAhead - number of planes loaded ahead by a separate reader thread, 0 loads on the worker threads
+	 * @return the values of each measure for each slice [measure][z], or null if the computation failed
+	 */
+	public static double[][] evaluate(
+			final MappedStack stack,
+			final FloatFocusMeasureInterface[] measures,
+			final int numThreads,
+			final int readAhead )
+	{
+		return evaluate( stack.width(), stack.height(), stack.depth(), stack::read, measures, numThreads, readAhead );
+	}
+
+	protected static double[][] evaluate(
+			final int width,
+			final int height,
+			final int depth,
+			final PrefetchPipeline.PlaneReader< FloatArrayImage > reader,
+			final FloatFocusMeasureInterface[] measures,
+			final int numThreads,
+			final int readAhead )
+	{
+		final double[][] values = new double[ measures.length ][ depth ];
+		final AtomicInteger finishedSlices = new AtomicInteger( 0 );
+
+		final Queue< FloatArrayImage > pooled = new ConcurrentLinkedQueue<>();
+		final boolean success;
+
+		if ( readAhead > 0 )
+		{
+			success = PrefetchPipeline.run(
+					depth, readAhead, numThreads,
+					() -> acquireFloat( width, height, pooled ),
+					reader,
+					() ->
+					{
+						final FloatArrayImage scratch = measures.length > 1 ? acquireFloat( width, height, pooled ) : null;
+
+						return ( z, slice ) ->
+						{
+							evaluate( measures, slice, scratch, values, z );
+							IJ.showProgress( finishedSlices.incrementAndGet(), depth );
+						};
+					} );
+		}
+		else
+		{
+			final AtomicInteger nextSlice = new AtomicInteger( 0 );
+
+			success = runWorkers( Math.min( numThreads, depth ), () ->
+			{
+				final FloatArrayImage slice = acquireFloat( width, height, pooled );
+				final FloatArrayImage scratch = measures.length > 1 ? acquireFloat( width, height, pooled ) : null;
+
+				for ( int z = nextSlice.getAndIncrement(); z < depth; z = nextSlice.getAndIncrement() )
+				{
+					reader.read( z, slice );
+					evaluate( measures, slice, scratch, values, z );
+					IJ.showProgress( finishedSlices.incrementAndGet(), depth );
+				}
+
+				return null;
+			});
+		}
+
+		// the planes and scratch images are reused by the next stack (if a worker failed it might still use them)
+		if ( success )
+			for ( final FloatArrayImage image : pooled )
+				BufferPool.release( image );
+
+		return success ? values : null;
+	}
+
+	/**
+	 * @return an image backed by an array of the {@link BufferPool} (contents undefined), it is added to pooled so it
+	 * can be returned to the pool when the stack is done
+	 */
+	protected static DoubleArrayImage acquireDouble( final int width, final int height, final Queue< DoubleArrayImage > pooled )
+	{
+		final DoubleArrayImage image = BufferPool.acquireDoubleArrayImage( width, height );
+		pooled.add( image );
+		return image;
+	}
+
+	protected static FloatArrayImage acquireFloat( final int width, final int height, final Queue< FloatArrayImage > pooled )
+	{
+		final FloatArrayImage image = BufferPool.acquireFloatArrayImage( width, height );
+		pooled.add( image );
+		return image;
+	}
+
+	/**
+	 * Computes all measures for one slice, the last measure may modify the slice directly
+	 */
+	protected static void evaluate( final FocusMeasureInterface[] measures, final DoubleArrayImage slice, final DoubleArrayImage scratch, final double[][] values, final int z )
+	{
+		for ( int m = 0; m < measures.length; ++m )
+		{
+			final DoubleArrayImage im;
+
+			if ( m == measures.length - 1 )
+			{
+				im = slice;
+			}
+			else
+			{
+				scratch.copyFrom( slice );
+				im = scratch;
+			}
+
+			values[ m ][ z ] = measures[ m ].computeFocusMeasure( im );
+		}
+	}
+
+	protected static void evaluate( final FloatFocusMeasureInterface[] measures, final FloatArrayImage slice, final FloatArrayImage scratch, final double[][] values, final int z )
+	{
+		for ( int m = 0; m < measures.length; ++m )
+		{
+			final FloatArrayImage im;
+
+			if ( m == measures.length - 1 )
+			{
+				im = slice;
+			}
+			else
+			{
+				scratch.copyFrom( slice );
+				im = scratch;
+			}
+
+			values[ m ][ z ] = measures[ m ].computeFocusMeasure( im );
+		}
+	}
+
+	protected static < T extends RealType< T > > void load( final RandomAccessibleInterval< T > input, final int z, final double[] array )
+	{
+		final Cursor< T > c = Views.flatIterable( Views.hyperSlice( input, 2, input.min( 2 ) + z ) ).cursor();
+
+		for ( int i = 0; i < array.length; ++i )
+			array[ i ] = c.next().getRealDouble();
+	}
+
+	protected static < T extends RealType< T > > void load( final RandomAccessibleInterval< T > input, final int z, final float[] array )
+	{
+		final Cursor< T > c = Views.flatIterable( Views.hyperSlice( input, 2, input.min( 2 ) + z ) ).cursor();
+
+		for ( int i = 0; i < array.length; ++i )
+			array[ i ] = c.next().getRealFloat();
+	}
+
+	/**
+	 * Runs the same worker on numWorkers threads and waits until all of them are done.
+	 *
+	 * @param numWorkers - number of threads
+	 * @param worker - the worker, has to create its per-thread state inside call()
+	 * @return true if all workers finished without error
+	 */
+	protected static boolean runWorkers( final int numWorkers, final Callable< Void > worker )
+	{
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Math.max( 1, numWorkers ) );
+		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+
+		for ( int t = 0; t < Math.max( 1, numWorkers ); ++t )
+			tasks.add( worker );
+
+		try
+		{
+			for ( final Future< Void > future : taskExecutor.invokeAll( tasks ) )
+				future.get();
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			IJ.log( "Failed to compute quality per slice: " + e );
+			e.printStackTrace();
+			return false;
+		}
+		finally
+		{
+			taskExecutor.shutdown();
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,306 @@
+package net.preibisch.qualityest;
+
+import java.util.function.LongFunction;
+
+import autopilot.image.DoubleArrayImage;
+import autopilot.image.FloatArrayImage;
+import ij.ImagePlus;
+import ij.ImageStack;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.IntervalView;
+
+/**
+ * Copies planes between ImageJ/ImgLib2 images and {@link DoubleArrayImage}s/{@link FloatArrayImage}s without going
+ * through ImgLib2 cursors. If an image is backed by primitive arrays (the planes of an ImageStack, an ArrayImg or a
+ * PlanarImg such as the one ImageJFunctions.wrapReal() returns, also cropped with Views.interval()), the rows of a
+ * plane are converted directly from the byte[], short[], float[] or double[] of the plane, which avoids several
+ * virtual calls per pixel. Images that are not backed by arrays (virtual stacks, other views) are loaded with a cursor
+ * like before.
+ *
+ * The other direction does not copy at all: wrap() returns an ArrayImg backed by the array of a DoubleArrayImage or
+ * FloatArrayImage, so it can be displayed or passed to ImgLib2 algorithms.
+ */
+public class PlaneAdapters
+{
+	/**
+	 * The primitive arrays of the xy-planes of an image
+	 */
+	public static class Planes
+	{
+		final LongFunction< Object > arrays;
+		final long planeSize;
+		final int stride;
+		final boolean unsigned;
+
+		/**
+		 * @param arrays - returns the primitive array that contains plane z (byte[], short[], float[] or double[])
+		 * @param planeSize - index of plane z in its array is z * planeSize (0 if every plane has its own array)
+		 * @param stride - length of a row
+		 * @param unsigned - byte[] and short[] are unsigned
+		 */
+		public Planes( final LongFunction< Object > arrays, final long planeSize, final int stride, final boolean unsigned )
+		{
+			this.arrays = arrays;
+			this.planeSize = planeSize;
+			this.stride = stride;
+			this.unsigned = unsigned;
+		}
+
+		/**
+		 * Copies (and converts) an area of plane z
+		 *
+		 * @param x0 - first column
+		 * @param y0 - first row
+		 * @param z - the plane
+		 * @param width - number of columns
+		 * @param height - number of rows
+		 * @param array - the target (width*height)
+		 */
+		public void copy( final long x0, final long y0, final long z, final int width, final int height, final double[] array )
+		{
+			PlaneAdapters.copy( arrays.apply( z ), unsigned, (int)( z * planeSize + y0 * stride + x0 ), stride, width, height, array );
+		}
+
+		public void copy( final long x0, final long y0, final long z, final int width, final int height, final float[] array )
+		{
+			PlaneAdapters.copy( arrays.apply( z ), unsigned, (int)( z * planeSize + y0 * stride + x0 ), stride, width, height, array );
+		}
+	}
+
+	/**
+	 * @param img - a 3d image
+	 * @return direct access to the planes of img if it is an ArrayImg or PlanarImg (or an IntervalView of one) of
+	 * (Unsigned)ByteType, (Unsigned)ShortType, FloatType or DoubleType, null otherwise
+	 */
+	@SuppressWarnings( "rawtypes" )
+	public static Planes planes( final RandomAccessibleInterval< ? > img )
+	{
+		RandomAccessibleInterval< ? > source = img;
+
+		// Views.interval() does not change the coordinates
+		while ( source instanceof IntervalView )
+			source = ( (IntervalView< ? >)source ).getSource();
+
+		if ( source.numDimensions() != 3 || !( source instanceof ArrayImg || source instanceof PlanarImg ) )
+			return null;
+
+		final Object type = ( (Img< ? >)source ).firstElement();
+		final Class< ? > arrayClass;
+		final boolean unsigned;
+
+		if ( type instanceof UnsignedByteType || type instanceof ByteType )
+			arrayClass = byte[].class;
+		else if ( type instanceof UnsignedShortType || type instanceof ShortType )
+			arrayClass = short[].class;
+		else if ( type instanceof FloatType )
+			arrayClass = float[].class;
+		else if ( type instanceof DoubleType )
+			arrayClass = double[].class;
+		else
+			return null;
+
+		unsigned = type instanceof UnsignedByteType || type instanceof UnsignedShortType;
+
+		final int stride = (int)source.dimension( 0 );
+		final Planes planes;
+
+		if ( source instanceof PlanarImg )
+		{
+			final PlanarImg planar = (PlanarImg)source;
+			planes = new Planes( z -> ( (ArrayDataAccess)planar.getPlane( (int)z ) ).getCurrentStorageArray(), 0, stride, unsigned );
+		}
+		else
+		{
+			final Object array = ( (ArrayDataAccess)( (ArrayImg)source ).update( null ) ).getCurrentStorageArray();
+			planes = new Planes( z -> array, source.dimension( 0 ) * source.dimension( 1 ), stride, unsigned );
+		}
+
+		// e.g. a PlanarImg with a different kind of storage
+		if ( !arrayClass.isInstance( planes.arrays.apply( 0 ) ) )
+			return null;
+
+		return planes;
+	}
+
+	/**
+	 * @param imp - the image (GRAY8, GRAY16 or GRAY32)
+	 * @param c - the channel (0-based)
+	 * @param t - the timepoint (0-based)
+	 * @return direct access to the planes of the (c, t) volume, null for virtual stacks (their planes are read on
+	 * demand) or RGB images
+	 */
+	public static Planes planes( final ImagePlus imp, final int c, final int t )
+	{
+		final ImageStack stack = imp.getStack();
+
+		if ( stack.isVirtual() || imp.getType() == ImagePlus.COLOR_RGB || imp.getType() == ImagePlus.COLOR_256 )
+			return null;
+
+		// like ImageJ, 8 and 16 bit images are unsigned (signed 16 bit images are stored shifted)
+		return new Planes( z -> stack.getPixels( imp.getStackIndex( c + 1, (int)z + 1, t + 1 ) ), 0, imp.getWidth(), true );
+	}
+
+	/**
+	 * @param planes - direct access to the planes of input, null = load with a cursor
+	 * @param input - the 3d image
+	 * @return a reader that loads plane z (relative to input.min( 2 )) of input
+	 */
+	public static < T extends RealType< T > > PrefetchPipeline.PlaneReader< DoubleArrayImage > doubleReader( final Planes planes, final RandomAccessibleInterval< T > input )
+	{
+		if ( planes == null )
+			return ( z, slice ) -> ParallelSliceEvaluation.load( input, z, slice.getArray() );
+
+		final int width = (int)input.dimension( 0 );
+		final int height = (int)input.dimension( 1 );
+
+		return ( z, slice ) -> planes.copy( input.min( 0 ), input.min( 1 ), input.min( 2 ) + z, width, height, slice.getArray() );
+	}
+
+	public static < T extends RealType< T > > PrefetchPipeline.PlaneReader< DoubleArrayImage > doubleReader( final RandomAccessibleInterval< T > input )
+	{
+		return doubleReader( planes( input ), input );
+	}
+
+	/**
+	 * @param planes - direct access to the planes of input, null = load with a cursor
+	 * @param input - the 3d image
+	 * @return a reader that loads plane z (relative to input.min( 2 )) of input
+	 */
+	public static < T extends RealType< T > > PrefetchPipeline.PlaneReader< FloatArrayImage > floatReader( final Planes planes, final RandomAccessibleInterval< T > input )
+	{
+		if ( planes == null )
+			return ( z, slice ) -> ParallelSliceEvaluation.load( input, z, slice.getArray() );
+
+		final int width = (int)input.dimension( 0 );
+		final int height = (int)input.dimension( 1 );
+
+		return ( z, slice ) -> planes.copy( input.min( 0 ), input.min( 1 ), input.min( 2 ) + z, width, height, slice.getArray() );
+	}
+
+	public static < T extends RealType< T > > PrefetchPipeline.PlaneReader< FloatArrayImage > floatReader( final RandomAccessibleInterval< T > input )
+	{
+		return floatReader( planes( input ), input );
+	}
+
+	/**
+	 * @return an ArrayImg backed by the array of the image (changes are visible in both)
+	 */
+	public static ArrayImg< DoubleType, DoubleArray > wrap( final DoubleArrayImage image )
+	{
+		return ArrayImgs.doubles( image.getArray(), image.getWidth(), image.getHeight() );
+	}
+
+	/**
+	 * @return an ArrayImg backed by the array of the image (changes are visible in both)
+	 */
+	public static ArrayImg< FloatType, FloatArray > wrap( final FloatArrayImage image )
+	{
+		return ArrayImgs.floats( image.getArray(), image.getWidth(), image.getHeight() );
+	}
+
+	/**
+	 * Copies an area of a plane into a double[]
+	 *
+	 * @param pixels - the plane (byte[], short[], float[] or double[])
+	 * @param unsigned - byte[] and short[] are unsigned
+	 * @param offset - index of the first pixel of the area in pixels
+	 * @param stride - length of a row of pixels
+	 * @param width - number of columns
+	 * @param height - number of rows
+	 * @param array - the target (width*height)
+	 */
+	public static void copy( final Object pixels, final boolean unsigned, final int offset, final int stride, final int width, final int height, final double[] array )
+	{
+		if ( pixels instanceof double[] )
+		{
+			for ( int y = 0; y < height; ++y )
+				System.arraycopy( (double[])pixels, offset + y * stride, array, y * width, width );
+		}
+		else if ( pixels instanceof float[] )
+		{
+			final float[] p = (float[])pixels;
+
+			for ( int y = 0, i = 0; y < height; ++y )
+				for ( int x = 0, o = offset + y * stride; x < width; ++x )
+					array[ i++ ] = p[ o + x ];
+		}
+		else if ( pixels instanceof short[] )
+		{
+			final short[] p = (short[])pixels;
+			final int mask = unsigned ? 0xffff : -1;
+
+			for ( int y = 0, i = 0; y < height; ++y )
+				for ( int x = 0, o = offset + y * stride; x < width; ++x )
+					array[ i++ ] = p[ o + x ] & mask;
+		}
+		else if ( pixels instanceof byte[] )
+		{
+			final byte[] p = (byte[])pixels;
+			final int mask = unsigned ? 0xff : -1;
+
+			for ( int y = 0, i = 0; y < height; ++y )
+				for ( int x = 0, o = offset + y * stride; x < width; ++x )
+					array[ i++ ] = p[ o + x ] & mask;
+		}
+		else
+		{
+			throw new IllegalArgumentException( "Unsupported pixel array: " + ( pixels == null ? null : pixels.getClass().getSimpleName() ) );
+		}
+	}
+
+	/**
+	 * Copies an area of a plane into a float[], see copy( pixels, unsigned, offset, stride, width, height, double[] )
+	 */
+	public static void copy( final Object pixels, final boolean unsigned, final int offset, final int stride, final int width, final int height, final float[] array )
+	{
+		if ( pixels instanceof float[] )
+		{
+			for ( int y = 0; y < height; ++y )
+				System.arraycopy( (float[])pixels, offset + y * stride, array, y * width, width );
+		}
+		else if ( pixels instanceof double[] )
+		{
+			final double[] p = (double[])pixels;
+
+			for ( int y = 0, i = 0; y < height; ++y )
+				for ( int x = 0, o = offset + y * stride; x < width; ++x )
+					array[ i++ ] = (float)p[ o + x ];
+		}
+		else if ( pixels instanceof short[] )
+		{
+			final short[] p = (short[])pixels;
+			final int mask = unsigned ? 0xffff : -1;
+
+			for ( int y = 0, i = 0; y < height; ++y )
+				for ( int x = 0, o = offset + y * stride; x < width; ++x )
+					array[ i++ ] = p[ o + x ] & mask;
+		}
+		else if ( pixels instanceof byte[] )
+		{
+			final byte[] p = (byte[])pixels;
+			final int mask = unsigned ? 0xff : -1;
+
+			for ( int y = 0, i = 0; y < height; ++y )
+				for ( int x = 0, o = offset + y * stride; x < width; ++x )
+					array[ i++ ] = p[ o + x ] & mask;
+		}
+		else
+		{
+			throw new IllegalArgumentException( "Unsupported pixel array: " + ( pixels == null ? null : pixels.getClass().getSimpleName() ) );
+		}
+	}
+}
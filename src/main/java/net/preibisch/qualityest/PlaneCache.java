@@ -0,0 +1,208 @@
+package net.preibisch.qualityest;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Bounded least-recently-used cache of z-planes that are loaded lazily, e.g. from an ImageJ virtual stack.
+ * Memory consumption depends on the plane size and the maximal number of planes, not on the depth of the stack.
+ *
+ * Optionally planes can be prefetched by a background thread (see setReadAhead()), so that loading the next planes
+ * overlaps with the computation on the current ones. The prefetched planes count towards maxPlanes.
+ */
+public class PlaneCache
+{
+	public interface PlaneLoader
+	{
+		/**
+		 * @param z - the plane (0-based)
+		 * @return the pixels of the plane as float[] (width*height), will not be modified by the caller
+		 */
+		float[] loadPlane( int z );
+	}
+
+	final PlaneLoader loader;
+	final int width, height, depth, maxPlanes;
+	final LinkedHashMap< Integer, float[] > planes;
+	final HashMap< Integer, Future< float[] > > pending = new HashMap<>();
+
+	int readAhead = 0;
+	ExecutorService prefetchService = null;
+
+	public PlaneCache( final PlaneLoader loader, final int width, final int height, final int depth, final int maxPlanes )
+	{
+		this.loader = loader;
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.maxPlanes = Math.max( 1, maxPlanes );
+		this.planes = new LinkedHashMap< Integer, float[] >( 16, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< Integer, float[] > eldest )
+			{
+				return size() > PlaneCache.this.maxPlanes;
+			}
+		};
+	}
+
+	/**
+	 * Cache for the planes of a (virtual) single-channel, single-timepoint stack
+	 *
+	 * @param imp - the image
+	 * @param maxPlanes - maximal number of planes kept in memory
+	 */
+	public PlaneCache( final ImagePlus imp, final int maxPlanes )
+	{
+		this( loader( imp.getStack() ), imp.getWidth(), imp.getHeight(), imp.getStackSize(), maxPlanes );
+	}
+
+	public int width() { return width; }
+	public int height() { return height; }
+	public int depth() { return depth; }
+
+	/**
+	 * @param z - the plane (0-based)
+	 * @return the plane, loaded if it is not cached
+	 */
+	public float[] getPlane( final int z )
+	{
+		final Future< float[] > prefetched;
+
+		synchronized ( this )
+		{
+			final float[] plane = planes.get( z );
+
+			if ( plane != null )
+				return plane;
+
+			prefetched = pending.get( z );
+		}
+
+		float[] plane = null;
+
+		if ( prefetched != null )
+		{
+			try
+			{
+				plane = prefetched.get();
+			}
+			catch ( final InterruptedException | ExecutionException | CancellationException e )
+			{
+				// load it on this thread instead
+			}
+		}
+
+		if ( plane == null )
+			plane = loader.loadPlane( z );
+
+		synchronized ( this )
+		{
+			planes.put( z, plane );
+			pending.remove( z );
+		}
+
+		return plane;
+	}
+
+	/**
+	 * Enables prefetching, planes are then loaded by a background thread
+	 *
+	 * @param readAhead - number of planes that prefetchAfter() loads, 0 disables prefetching
+	 */
+	public synchronized void setReadAhead( final int readAhead )
+	{
+		this.readAhead = Math.max( 0, readAhead );
+
+		if ( this.readAhead > 0 && prefetchService == null )
+		{
+			prefetchService = Executors.newSingleThreadExecutor( r ->
+			{
+				final Thread t = new Thread( r, "PlaneCache prefetch" );
+				t.setDaemon( true );
+				return t;
+			});
+		}
+	}
+
+	public int readAhead() { return readAhead; }
+
+	/**
+	 * Starts loading the planes z+1 ... z+readAhead in the background, if they are not cached yet
+	 *
+	 * @param z - the last plane that is currently needed
+	 */
+	public synchronized void prefetchAfter( final int z )
+	{
+		for ( int zi = z + 1; zi <= Math.min( depth - 1, z + readAhead ); ++zi )
+		{
+			final int plane = zi;
+
+			if ( planes.containsKey( plane ) || pending.containsKey( plane ) )
+				continue;
+
+			pending.put( plane, prefetchService.submit( () ->
+			{
+				final float[] pixels = loader.loadPlane( plane );
+
+				synchronized ( PlaneCache.this )
+				{
+					// the plane is only needed if nobody loaded it in the meantime
+					if ( pending.remove( plane ) != null )
+						planes.put( plane, pixels );
+				}
+
+				return pixels;
+			}));
+		}
+	}
+
+	/**
+	 * Stops the prefetching thread (if any), the cache can still be used afterwards without prefetching
+	 */
+	public synchronized void close()
+	{
+		readAhead = 0;
+
+		if ( prefetchService != null )
+		{
+			prefetchService.shutdownNow();
+			prefetchService = null;
+		}
+
+		// queued loads will never run, threads waiting for them load the plane themselves
+		for ( final Future< float[] > future : pending.values() )
+			future.cancel( true );
+
+		pending.clear();
+	}
+
+	public synchronized void clear()
+	{
+		planes.clear();
+		pending.clear();
+	}
+
+	public static PlaneLoader loader( final ImageStack stack )
+	{
+		return z ->
+		{
+			// virtual stacks are not thread-safe
+			synchronized ( stack )
+			{
+				return (float[])stack.getProcessor( z + 1 ).convertToFloatProcessor().getPixels();
+			}
+		};
+	}
+}
@@ -0,0 +1,187 @@
+package net.preibisch.qualityest;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import ij.IJ;
+
+/**
+ * Producer/consumer pipeline that overlaps loading of z-planes with the computation on them. A reader thread loads
+ * the planes in order into pooled buffers while the compute workers consume them. There are only readAhead + numWorkers
+ * buffers, once all of them are in use the reader waits for a worker to return one (backpressure), so memory does
+ * not depend on the depth of the stack.
+ */
+public class PrefetchPipeline
+{
+	public interface PlaneReader< B >
+	{
+		/**
+		 * Loads a plane, called from the reader thread in increasing z order
+		 *
+		 * @param z - the plane (0-based)
+		 * @param buffer - the buffer to load into
+		 */
+		void read( int z, B buffer ) throws Exception;
+	}
+
+	public interface PlaneConsumer< B >
+	{
+		/**
+		 * @param z - the plane (0-based)
+		 * @param buffer - the loaded plane, must not be used after the method returns
+		 */
+		void consume( int z, B buffer ) throws Exception;
+	}
+
+	private static final class Slot< B >
+	{
+		final int z;
+		final B buffer;
+
+		Slot( final int z, final B buffer )
+		{
+			this.z = z;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * @param depth - number of planes
+	 * @param readAhead - number of planes that may be loaded before a worker is ready for them
+	 * @param numWorkers - number of compute threads
+	 * @param bufferFactory - creates the (readAhead + numWorkers) buffers
+	 * @param reader - loads the planes
+	 * @param consumerFactory - called once per compute thread, so the consumer can own per-thread state
+	 * @return true if all planes were loaded and consumed without error
+	 */
+	public static < B > boolean run(
+			final int depth,
+			final int readAhead,
+			final int numWorkers,
+			final Supplier< B > bufferFactory,
+			final PlaneReader< B > reader,
+			final Supplier< PlaneConsumer< B > > consumerFactory )
+	{
+		final int workers = Math.max( 1, Math.min( numWorkers, depth ) );
+		final int numBuffers = Math.max( 1, readAhead ) + workers;
+
+		final ArrayBlockingQueue< B > free = new ArrayBlockingQueue<>( numBuffers );
+		final ArrayBlockingQueue< Slot< B > > loaded = new ArrayBlockingQueue<>( numBuffers + workers );
+
+		for ( int i = 0; i < numBuffers; ++i )
+			free.add( bufferFactory.get() );
+
+		// a failed worker keeps draining the queue (without computing) so the reader never blocks forever
+		final AtomicBoolean failed = new AtomicBoolean( false );
+		final Slot< B > endOfStack = new Slot<>( -1, null );
+
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( workers + 1 );
+		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+
+		tasks.add( () ->
+		{
+			try
+			{
+				for ( int z = 0; z < depth && !failed.get(); ++z )
+				{
+					final B buffer = free.take();
+					reader.read( z, buffer );
+					loaded.put( new Slot<>( z, buffer ) );
+				}
+			}
+			catch ( final Throwable e )
+			{
+				failed.set( true );
+				throw rethrow( e );
+			}
+			finally
+			{
+				for ( int w = 0; w < workers; ++w )
+					loaded.put( endOfStack );
+			}
+
+			return null;
+		});
+
+		for ( int w = 0; w < workers; ++w )
+		{
+			tasks.add( () ->
+			{
+				PlaneConsumer< B > consumer = null;
+				Throwable error = null;
+
+				try
+				{
+					consumer = consumerFactory.get();
+				}
+				catch ( final Throwable e )
+				{
+					failed.set( true );
+					error = e;
+				}
+
+				// drain until the end of the stack even after an error, otherwise the reader waits for buffers forever
+				for ( Slot< B > slot = loaded.take(); slot != endOfStack; slot = loaded.take() )
+				{
+					try
+					{
+						if ( error == null && !failed.get() )
+							consumer.consume( slot.z, slot.buffer );
+					}
+					catch ( final Throwable e )
+					{
+						failed.set( true );
+						error = e;
+					}
+					finally
+					{
+						free.put( slot.buffer );
+					}
+				}
+
+				if ( error != null )
+					throw rethrow( error );
+
+				return null;
+			});
+		}
+
+		try
+		{
+			for ( final Future< Void > future : taskExecutor.invokeAll( tasks ) )
+				future.get();
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			IJ.log( "Failed to process planes: " + e );
+			e.printStackTrace();
+			return false;
+		}
+		finally
+		{
+			taskExecutor.shutdown();
+		}
+
+		return !failed.get();
+	}
+
+	/**
+	 * @return e if it is an Exception (Errors are thrown directly), so it can be rethrown from a Callable
+	 */
+	protected static Exception rethrow( final Throwable e )
+	{
+		if ( e instanceof Error )
+			throw (Error)e;
+		else if ( e instanceof Exception )
+			return (Exception)e;
+		else
+			return new ExecutionException( e );
+	}
+}
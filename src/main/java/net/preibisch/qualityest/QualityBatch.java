@@ -0,0 +1,759 @@
+package net.preibisch.qualityest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import autopilot.measures.FocusMeasureInterface;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Headless batch processing of many image stacks, replaces FRC-QE_automated_macro.ijm.
+ *
+ * For every image (e.g. dir/name.tif) a folder (dir/name/) is created that contains FRC_name.csv and, if
+ * entropy is selected, Shannon-entropy_name.csv, DCT-Shannon-entropy_name.csv, median-DCT-Shannon-entropy_name.csv
+ * and DFT-Shannon-entropy_name.csv. Files are processed concurrently, the number of images that are in memory
+ * at the same time is limited by a memory budget.
+ *
+ * With -mapped, uncompressed TIFF stacks are memory mapped ({@link MappedStack}) instead of being loaded, planes are
+ * then read from the file as they are needed and rFRC is computed with {@link StreamingRFRC}. Other files are loaded
+ * as usual.
+ *
+ * With -statistics the time, throughput and estimated allocations of every stage (see {@link RunStatistics}) are
+ * printed to the log and saved as statistics_name.json next to the csv files.
+ *
+ * With -coarse b the rFRC of loaded stacks is computed coarse-to-fine ({@link CoarseToFineRFRC}): first on a stack
+ * binned b x b in xy, then at full resolution only on anchor planes and where the coarse quality changes by more
+ * than the relative -tolerance (default 0.02).
+ *
+ * With -adaptive t the planes for rFRC of loaded stacks are chosen adaptively ({@link AdaptiveRFRC}): a sparse
+ * lattice is refined where neighboring medians differ by more than the relative tolerance t or the curve bends, up
+ * to -budget evaluated planes (0 = unlimited).
+ *
+ * With -cache dir the per-z curves of loaded stacks are stored in an on-disk cache ({@link QualityCache}, at most
+ * -cacheMB megabytes), files that were already processed with the same parameters are not computed again.
+ *
+ * With -tiles n every slice is additionally split into n x n tiles and the entropy measures are computed per tile
+ * ({@link TiledFocusMap}), the maps are saved as tiled_[prefix]name.tif and the mean/median/min/max per slice as
+ * tiled_[prefix]name.csv (loaded stacks only).
+ *
+ * With -zRange min max only the planes [min, max] of a memory mappable TIFF stack are computed (the planes that rFRC
+ * needs around them are loaded as well, see shardPlanes()), and with -output dir the csv files are written to dir
+ * instead of dir/name/. Both are used by {@link QualityCoordinator} for the worker processes.
+ *
+ * Usage: QualityBatch [-fftSize 200] [-stepSize 1] [-rFRCDist 10] [-noEntropy] [-singlePrecision] [-fastEntropy] [-readAhead n] [-mapped] [-statistics] [-coarse b] [-tolerance 0.02] [-adaptive t] [-budget n] [-tiles n] [-cache dir] [-cacheMB m] [-jobs 2] [-volumeJobs 1] [-threads n] [-memoryMB m] [-zRange min max] [-output dir] directory|file [file ...]
+ */
+public class QualityBatch
+{
+	// file name prefixes of the csv files, same order as Estimate_Quality.methodChoices
+	public static final String[] filePrefixes = new String[] {
+			"FRC_",
+			"Shannon-entropy_",
+			"DCT-Shannon-entropy_",
+			"median-DCT-Shannon-entropy_",
+			"DFT-Shannon-entropy_" };
+
+	public int fftSize = 200;
+	public int zStepSize = 1;
+	public int rFRCDist = 10;
+	public boolean entropy = true;
+	public boolean singlePrecision = false;
+	public boolean fastEntropy = false;
+	public int readAhead = 0;
+	public boolean mapped = false;
+	public boolean statistics = false;
+	public int numTiles = 0;
+	public int coarseBinning = 1;
+	public double coarseTolerance = 0.02;
+	public double adaptiveTolerance = 0;
+	public int adaptiveBudget = 0;
+	public File cacheDirectory = null;
+	public long cacheMB = QualityCache.defaultMaxBytes / ( 1024 * 1024 );
+	public long[] zRange = null;
+	public File outputDirectory = null;
+
+	QualityCache resultCache = null;
+
+	public int numJobs = 2;
+	public int numVolumeJobs = 1;
+	public int numThreads = Runtime.getRuntime().availableProcessors();
+	public int memoryBudgetMB = (int)Math.max( 1, Runtime.getRuntime().maxMemory() / 2 / ( 1024 * 1024 ) );
+
+	/**
+	 * Processes all files, numJobs at a time.
+	 *
+	 * @param files - the images
+	 * @return true if all files were processed successfully
+	 */
+	public boolean process( final List< File > files )
+	{
+		final Semaphore memory = new Semaphore( memoryBudgetMB );
+
+		resultCache = cacheDirectory == null ? null : new QualityCache( cacheDirectory, cacheMB * 1024 * 1024 );
+
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Math.max( 1, numJobs ) );
+		final ArrayList< Callable< Boolean > > tasks = new ArrayList<>();
+
+		for ( final File file : files )
+		{
+			tasks.add( () ->
+			{
+				// a loaded stack needs about as much memory as the (uncompressed) file on disk (a mapped stack needs
+				// less, but it is only known when the file is opened whether it can be mapped)
+				final int estimatedMB = (int)Math.max( 1, Math.min( memoryBudgetMB, file.length() / ( 1024 * 1024 ) + 1 ) );
+
+				memory.acquire( estimatedMB );
+
+				try
+				{
+					return processFile( file );
+				}
+				finally
+				{
+					memory.release( estimatedMB );
+				}
+			});
+		}
+
+		boolean success = true;
+
+		try
+		{
+			for ( final Future< Boolean > future : taskExecutor.invokeAll( tasks ) )
+				success &= future.get();
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			IJ.log( "Batch processing failed: " + e );
+			e.printStackTrace();
+			success = false;
+		}
+		finally
+		{
+			taskExecutor.shutdown();
+		}
+
+		return success;
+	}
+
+	/**
+	 * Computes rFRC (and the entropy measures if selected) for a single image and saves the csv files.
+	 *
+	 * @param file - the image
+	 * @return true if successful
+	 */
+	public boolean processFile( final File file )
+	{
+		String name = file.getName();
+		if ( name.indexOf( "." ) > 0 )
+			name = name.substring( 0, name.indexOf( "." ) );
+
+		IJ.log( "Now processing: " + name );
+
+		final RunStatistics stats = new RunStatistics( name );
+		final File resultDir = outputDirectory != null ? outputDirectory : new File( file.getParentFile(), name );
+
+		if ( zRange != null )
+			return processShard( file, resultDir, name, stats );
+
+		if ( mapped )
+		{
+			final long t = stats.start();
+			final MappedStack stack = MappedStack.tiff( file );
+			stats.stop( "map file", t, 1 );
+
+			if ( stack != null )
+			{
+				resultDir.mkdirs();
+
+				try
+				{
+					return process( stack, resultDir, name, stats );
+				}
+				finally
+				{
+					try
+					{
+						stack.close();
+					}
+					catch ( final IOException e )
+					{
+						e.printStackTrace();
+					}
+
+					report( stats, resultDir, name );
+					IJ.log( name + " was processed." );
+				}
+			}
+
+			IJ.log( "'" + file + "' cannot be memory mapped, loading it." );
+		}
+
+		final long t = stats.start();
+		final ImagePlus imp = IJ.openImage( file.getAbsolutePath() );
+		stats.stop( "open file (IJ.openImage)", t, 1 );
+
+		if ( imp == null )
+		{
+			IJ.log( "Could not open '" + file + "', skipping." );
+			return false;
+		}
+
+		if ( imp.getNSlices() == 1 || imp.getType() == ImagePlus.COLOR_256 || imp.getType() == ImagePlus.COLOR_RGB )
+		{
+			IJ.log( "'" + file + "' is not a (multichannel) 3d stack, skipping." );
+			imp.close();
+			return false;
+		}
+
+		resultDir.mkdirs();
+
+		if ( HyperstackQuality.isHyperstack( imp ) )
+		{
+			try
+			{
+				return processHyperstack( imp, resultDir, name, stats );
+			}
+			finally
+			{
+				imp.close();
+				report( stats, resultDir, name );
+				IJ.log( name + " was processed." );
+			}
+		}
+
+		try
+		{
+			final long tw = stats.start();
+			final RandomAccessibleInterval input = ImageJFunctions.wrapReal( imp );
+			stats.stop( "wrap (ImageJFunctions.wrapReal)", tw, 1 );
+
+			return process( input, resultDir, name, stats );
+		}
+		finally
+		{
+			imp.close();
+			report( stats, resultDir, name );
+			IJ.log( name + " was processed." );
+		}
+	}
+
+	protected < T extends RealType< T > > boolean process( final RandomAccessibleInterval< T > input, final File resultDir, final String name )
+	{
+		return process( input, resultDir, name, new RunStatistics( name ) );
+	}
+
+	/**
+	 * Computes the planes zRange of a memory mappable TIFF stack, only these planes and the ones that rFRC needs around
+	 * them (see shardPlanes()) are loaded
+	 */
+	protected boolean processShard( final File file, final File resultDir, final String name, final RunStatistics stats )
+	{
+		long t = stats.start();
+		final MappedStack stack = MappedStack.tiff( file );
+		stats.stop( "map file", t, 1 );
+
+		if ( stack == null )
+		{
+			IJ.log( "'" + file + "' cannot be memory mapped, a range of planes can only be computed for uncompressed single-channel TIFF stacks." );
+			return false;
+		}
+
+		if ( zRange[ 0 ] < 0 || zRange[ 1 ] < zRange[ 0 ] || zRange[ 1 ] >= stack.depth() )
+		{
+			IJ.log( name + ": invalid range of planes " + zRange[ 0 ] + "-" + zRange[ 1 ] + " (depth " + stack.depth() + ")." );
+			closeQuietly( stack );
+			return false;
+		}
+
+		final long[] planes = shardPlanes( zRange[ 0 ], zRange[ 1 ], stack.depth(), zStepSize, rFRCDist );
+		final ArrayList< RandomAccessibleInterval< FloatType > > slices = new ArrayList<>();
+
+		t = stats.start();
+
+		try
+		{
+			for ( long z = planes[ 0 ]; z <= planes[ 1 ]; ++z )
+				slices.add( ArrayImgs.floats( stack.loadPlane( (int)z ), stack.width(), stack.height() ) );
+		}
+		catch ( final RuntimeException e )
+		{
+			IJ.log( name + ": " + e.getMessage() );
+			return false;
+		}
+		finally
+		{
+			closeQuietly( stack );
+		}
+
+		stats.stop( "load planes", t, slices.size() );
+		stats.addBytes( "load planes", (long)slices.size() * stack.width() * stack.height() * 4 );
+
+		resultDir.mkdirs();
+
+		try
+		{
+			return process( Views.translate( Views.stack( slices ), 0, 0, planes[ 0 ] ), resultDir, name, stats );
+		}
+		finally
+		{
+			report( stats, resultDir, name );
+			IJ.log( name + " (planes " + zRange[ 0 ] + "-" + zRange[ 1 ] + ") was processed." );
+		}
+	}
+
+	/**
+	 * The planes a shard [zMin, zMax] of a stack needs so that its rFRC is identical to the one of the whole stack: the
+	 * evaluated planes (every zStepSize-th, starting at rFRCDist) stay on the same lattice and every plane of the shard
+	 * has the evaluated planes before and after it, including their rFRCDist neighbors
+	 *
+	 * @param zMin - first plane of the shard
+	 * @param zMax - last plane of the shard
+	 * @param depth - depth of the stack
+	 * @param zStepSize - step size in z
+	 * @param rFRCDist - relative FRC distance in z
+	 * @return the first and last plane that have to be loaded
+	 */
+	public static long[] shardPlanes( final long zMin, final long zMax, final long depth, final int zStepSize, final int rFRCDist )
+	{
+		final long step = Math.max( 1, zStepSize );
+
+		// planes before the first and after the last evaluated plane of the stack use these
+		final long min = Math.max( 0, Math.min( zMin, depth - 1 - rFRCDist ) - rFRCDist - step );
+		final long max = Math.min( depth - 1, Math.max( zMax, rFRCDist ) + rFRCDist + step );
+
+		return new long[] { min - min % step, max };
+	}
+
+	protected static void closeQuietly( final MappedStack stack )
+	{
+		try
+		{
+			stack.close();
+		}
+		catch ( final IOException e )
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Computes rFRC (and the entropy measures if selected) and saves the csv files. If zRange is set, rFRC uses all
+	 * planes of the input but only the planes zRange are computed for the entropy measures and saved.
+	 */
+	protected < T extends RealType< T > > boolean process( final RandomAccessibleInterval< T > input, final File resultDir, final String name, final RunStatistics stats )
+	{
+		boolean success = true;
+
+		final RandomAccessibleInterval< T > planes;
+
+		if ( zRange == null )
+			planes = input;
+		else
+			planes = Views.interval( input, new FinalInterval( new long[] { input.min( 0 ), input.min( 1 ), zRange[ 0 ] }, new long[] { input.max( 0 ), input.max( 1 ), zRange[ 1 ] } ) );
+
+		long contentHash = 0;
+
+		if ( resultCache != null )
+		{
+			final long t = stats.start();
+			contentHash = QualityCache.contentHash( input );
+			stats.stop( "result cache (content hash)", t, input.dimension( 2 ) );
+		}
+
+		final long entropyHash = planes == input ? contentHash : resultCache == null ? 0 : QualityCache.contentHash( planes );
+
+		if ( input.dimension( 2 ) < 2 * rFRCDist + 1 )
+		{
+			IJ.log( name + ": z-size (" + input.dimension( 2 ) + ") is too small given the relative FRC distance (" + rFRCDist + "), should be at least " + (2 * rFRCDist + 1) );
+			success = false;
+		}
+		else
+		{
+			final String key = QualityCache.key( contentHash, input, Estimate_Quality.methodChoices[ 0 ], Estimate_Quality.rFRCParameters( zStepSize, fftSize, rFRCDist, coarseBinning, coarseTolerance, adaptiveTolerance, adaptiveBudget ) );
+			double[] medians = cached( key, name, stats );
+
+			if ( medians == null )
+			{
+				medians = Estimate_Quality.computeMedians( input, zStepSize, fftSize, rFRCDist, coarseBinning, coarseTolerance, adaptiveTolerance, adaptiveBudget, numThreads, stats );
+				store( key, medians, stats );
+			}
+
+			if ( planes != input )
+				medians = Arrays.copyOfRange( medians, (int)( planes.min( 2 ) - input.min( 2 ) ), (int)( planes.max( 2 ) - input.min( 2 ) + 1 ) );
+
+			success &= save( Estimate_Quality.qualityTable( medians, planes.min( 2 ) ), new File( resultDir, filePrefixes[ 0 ] + name + ".csv" ), stats );
+		}
+
+		if ( entropy )
+		{
+			final ArrayList< Integer > methods = entropyMethods();
+			final String[] keys = new String[ methods.size() ];
+			double[][] values = new double[ methods.size() ][];
+			boolean allCached = true;
+
+			for ( int m = 0; m < methods.size(); ++m )
+			{
+				keys[ m ] = QualityCache.key( entropyHash, planes, Estimate_Quality.methodChoices[ methods.get( m ) ], Estimate_Quality.entropyParameters( singlePrecision, fastEntropy ) );
+				values[ m ] = cached( keys[ m ], name, stats );
+				allCached &= values[ m ] != null;
+			}
+
+			if ( !allCached )
+			{
+				// all entropy measures in a single pass over the stack
+				values = Estimate_Quality.evaluateMeasures( planes, methods, singlePrecision, fastEntropy, numThreads, readAhead, stats );
+
+				if ( values != null )
+					for ( int m = 0; m < methods.size(); ++m )
+						store( keys[ m ], values[ m ], stats );
+			}
+
+			success &= saveEntropy( values, planes.min( 2 ), resultDir, name, stats );
+
+			if ( numTiles > 0 )
+				success &= saveTiled( planes, resultDir, name, stats );
+		}
+
+		return success;
+	}
+
+	/**
+	 * Computes rFRC (and the entropy measures if selected) for all channels and timepoints of a hyperstack, numVolumeJobs
+	 * volumes at a time, and saves them as a single table hyperstack_name.csv (the result cache and tiled maps are not used)
+	 */
+	protected boolean processHyperstack( final ImagePlus imp, final File resultDir, final String name, final RunStatistics stats )
+	{
+		if ( imp.getNSlices() < 2 * rFRCDist + 1 )
+		{
+			IJ.log( name + ": z-size (" + imp.getNSlices() + ") is too small given the relative FRC distance (" + rFRCDist + "), should be at least " + (2 * rFRCDist + 1) );
+			return false;
+		}
+
+		final boolean[] selectedMethods = new boolean[ Estimate_Quality.methodChoices.length ];
+		selectedMethods[ 0 ] = true;
+
+		if ( entropy )
+			for ( final int m : entropyMethods() )
+				selectedMethods[ m ] = true;
+
+		final Interval interval = new FinalInterval( new long[] { 0, 0, 0 }, new long[] { imp.getWidth() - 1, imp.getHeight() - 1, imp.getNSlices() - 1 } );
+
+		final ResultsTable rt = HyperstackQuality.compute( imp, interval, selectedMethods, zStepSize, fftSize, rFRCDist, coarseBinning, coarseTolerance, adaptiveTolerance, adaptiveBudget, singlePrecision, fastEntropy, readAhead, numVolumeJobs, numThreads, stats );
+
+		if ( rt == null )
+			return false;
+
+		return save( rt, new File( resultDir, "hyperstack_" + name + ".csv" ), stats );
+	}
+
+	/**
+	 * Computes the tiled maps of all entropy measures and saves them as tiled_[prefix]name.tif and tiled_[prefix]name.csv
+	 */
+	protected < T extends RealType< T > > boolean saveTiled( final RandomAccessibleInterval< T > input, final File resultDir, final String name, final RunStatistics stats )
+	{
+		final ArrayList< Integer > methods = entropyMethods();
+		final FocusMeasureInterface[] measures = Estimate_Quality.getMeasures( methods, fastEntropy );
+
+		long t = stats.start();
+		final TiledFocusMap map = TiledFocusMap.compute( input, measures, numTiles, numThreads );
+		stats.stop( "tiled map", t, input.dimension( 2 ) );
+
+		if ( map == null )
+			return false;
+
+		boolean success = true;
+
+		for ( int m = 0; m < measures.length; ++m )
+		{
+			final String prefix = "tiled_" + filePrefixes[ methods.get( m ) ] + name;
+
+			t = stats.start();
+			success &= IJ.saveAsTiff( map.imagePlus( m, prefix ), new File( resultDir, prefix + ".tif" ).getAbsolutePath() );
+			stats.stop( "save tif", t, 1 );
+
+			success &= save( map.aggregateTable( m, input.min( 2 ) ), new File( resultDir, prefix + ".csv" ), stats );
+		}
+
+		return success;
+	}
+
+	/**
+	 * Same as process( RandomAccessibleInterval, ... ) for a memory mapped stack, only the planes of the current rFRC
+	 * window (plus the planes read ahead) are in memory.
+	 */
+	protected boolean process( final MappedStack stack, final File resultDir, final String name, final RunStatistics stats )
+	{
+		boolean success = true;
+
+		// all planes of a mapped stack are computed, so z starts at 0 (zRange is handled by processShard)
+		final long zOffset = 0;
+
+		if ( stack.depth() < 2 * rFRCDist + 1 )
+		{
+			IJ.log( name + ": z-size (" + stack.depth() + ") is too small given the relative FRC distance (" + rFRCDist + "), should be at least " + (2 * rFRCDist + 1) );
+			success = false;
+		}
+		else
+		{
+			final PlaneCache cache = new PlaneCache( stack, stack.width(), stack.height(), stack.depth(), 2 * rFRCDist + 1 + readAhead );
+			cache.setReadAhead( readAhead );
+
+			try
+			{
+				final double[] medians = Estimate_Quality.computeStreaming( cache, new FinalInterval( stack.width(), stack.height(), stack.depth() ), zStepSize, fftSize, rFRCDist, null, stats );
+
+				success &= save( Estimate_Quality.qualityTable( medians, zOffset ), new File( resultDir, filePrefixes[ 0 ] + name + ".csv" ), stats );
+			}
+			catch ( final RuntimeException e )
+			{
+				IJ.log( name + ": rFRC failed: " + e );
+				e.printStackTrace();
+				success = false;
+			}
+			finally
+			{
+				cache.close();
+			}
+		}
+
+		if ( entropy )
+		{
+			success &= saveEntropy( Estimate_Quality.evaluateMeasures( stack, entropyMethods(), singlePrecision, fastEntropy, numThreads, readAhead, stats ), zOffset, resultDir, name, stats );
+
+			if ( numTiles > 0 )
+				IJ.log( name + ": tiled maps are not computed for memory mapped stacks." );
+		}
+
+		return success;
+	}
+
+	/**
+	 * @return the cached curve, null if there is none or no cache is used
+	 */
+	protected double[] cached( final String key, final String name, final RunStatistics stats )
+	{
+		if ( resultCache == null )
+			return null;
+
+		final long t = stats.start();
+		final double[] values = resultCache.get( key );
+		stats.stop( "result cache (lookup)", t, values == null ? 0 : 1 );
+
+		if ( values != null )
+			IJ.log( name + ": using the cached result for " + key.substring( key.indexOf( ';' ) + 1 ) );
+
+		return values;
+	}
+
+	protected void store( final String key, final double[] values, final RunStatistics stats )
+	{
+		if ( resultCache == null )
+			return;
+
+		final long t = stats.start();
+		resultCache.put( key, values );
+		stats.stop( "result cache (store)", t, 1 );
+	}
+
+	/**
+	 * @return the indices of all entropy measures in Estimate_Quality.methodChoices
+	 */
+	protected static ArrayList< Integer > entropyMethods()
+	{
+		final ArrayList< Integer > methods = new ArrayList<>();
+
+		for ( int m = 1; m < filePrefixes.length; ++m )
+			methods.add( m );
+
+		return methods;
+	}
+
+	protected static boolean saveEntropy( final double[][] values, final long zOffset, final File resultDir, final String name, final RunStatistics stats )
+	{
+		if ( values == null )
+			return false;
+
+		boolean success = true;
+
+		for ( int m = 0; m < values.length; ++m )
+			success &= save( Estimate_Quality.qualityTable( values[ m ], zOffset ), new File( resultDir, filePrefixes[ m + 1 ] + name + ".csv" ), stats );
+
+		return success;
+	}
+
+	protected static boolean save( final ResultsTable rt, final File file, final RunStatistics stats )
+	{
+		final long t = stats.start();
+		final boolean success = save( rt, file );
+		stats.stop( "save csv", t, 1 );
+
+		return success;
+	}
+
+	/**
+	 * Logs the statistics and saves them as statistics_name.json, if -statistics was selected
+	 */
+	protected void report( final RunStatistics stats, final File resultDir, final String name )
+	{
+		stats.finish();
+
+		if ( statistics )
+		{
+			stats.log();
+			stats.writeJson( new File( resultDir, "statistics_" + name + ".json" ) );
+		}
+	}
+
+	protected static boolean save( final ResultsTable rt, final File file )
+	{
+		if ( rt.save( file.getAbsolutePath() ) )
+			return true;
+
+		IJ.log( "Could not save '" + file + "'." );
+		return false;
+	}
+
+	/**
+	 * @param paths - directories and/or files
+	 * @return all files in the directories (not recursive, hidden files are ignored) and all files that were given directly
+	 */
+	public static ArrayList< File > collectFiles( final List< String > paths )
+	{
+		final ArrayList< File > files = new ArrayList<>();
+
+		for ( final String path : paths )
+		{
+			final File file = new File( path );
+
+			if ( file.isDirectory() )
+			{
+				final File[] list = file.listFiles( f -> f.isFile() && !f.isHidden() );
+
+				if ( list != null )
+				{
+					Arrays.sort( list );
+					files.addAll( Arrays.asList( list ) );
+				}
+			}
+			else if ( file.isFile() )
+			{
+				files.add( file );
+			}
+			else
+			{
+				IJ.log( "'" + path + "' does not exist, skipping." );
+			}
+		}
+
+		return files;
+	}
+
+	/**
+	 * @param args - the command line
+	 * @param paths - the directories and files of the command line are added
+	 * @param options - all recognized options (with their values) are added, can be null
+	 * @return a QualityBatch with the options set
+	 */
+	public static QualityBatch parse( final String[] args, final List< String > paths, final List< String > options )
+	{
+		final QualityBatch batch = new QualityBatch();
+
+		for ( int i = 0; i < args.length; ++i )
+		{
+			final int first = i;
+
+			if ( args[ i ].equals( "-fftSize" ) )
+				batch.fftSize = Integer.parseInt( args[ ++i ] );
+			else if ( args[ i ].equals( "-stepSize" ) )
+				batch.zStepSize = Integer.parseInt( args[ ++i ] );
+			else if ( args[ i ].equals( "-rFRCDist" ) )
+				batch.rFRCDist = Integer.parseInt( args[ ++i ] );
+			else if ( args[ i ].equals( "-noEntropy" ) )
+				batch.entropy = false;
+			else if ( args[ i ].equals( "-singlePrecision" ) )
+				batch.singlePrecision = true;
+			else if ( args[ i ].equals( "-fastEntropy" ) )
+				batch.fastEntropy = true;
+			else if ( args[ i ].equals( "-readAhead" ) )
+				batch.readAhead = Integer.parseInt( args[ ++i ] );
+			else if ( args[ i ].equals( "-mapped" ) )
+				batch.mapped = true;
+			else if ( args[ i ].equals( "-statistics" ) )
+				batch.statistics = true;
+			else if ( args[ i ].equals( "-coarse" ) )
+				batch.coarseBinning = Integer.parseInt( args[ ++i ] );
+			else if ( args[ i ].equals( "-tolerance" ) )
+				batch.coarseTolerance = Double.parseDouble( args[ ++i ] );
+			else if ( args[ i ].equals( "-adaptive" ) )
+				batch.adaptiveTolerance = Double.parseDouble( args[ ++i ] );
+			else if ( args[ i ].equals( "-budget" ) )
+				batch.adaptiveBudget = Integer.parseInt( args[ ++i ] );
+			else if ( args[ i ].equals( "-tiles" ) )
+				batch.numTiles = Integer.parseInt( args[ ++i ] );
+			else if ( args[ i ].equals( "-cache" ) )
+				batch.cacheDirectory = new File( args[ ++i ] );
+			else if ( args[ i ].equals( "-cacheMB" ) )
+				batch.cacheMB = Long.parseLong( args[ ++i ] );
+			else if ( args[ i ].equals( "-jobs" ) )
+				batch.numJobs = Integer.parseInt( args[ ++i ] );
+			else if ( args[ i ].equals( "-volumeJobs" ) )
+				batch.numVolumeJobs = Integer.parseInt( args[ ++i ] );
+			else if ( args[ i ].equals( "-threads" ) )
+				batch.numThreads = Integer.parseInt( args[ ++i ] );
+			else if ( args[ i ].equals( "-memoryMB" ) )
+				batch.memoryBudgetMB = Integer.parseInt( args[ ++i ] );
+			else if ( args[ i ].equals( "-zRange" ) )
+				batch.zRange = new long[] { Long.parseLong( args[ ++i ] ), Long.parseLong( args[ ++i ] ) };
+			else if ( args[ i ].equals( "-output" ) )
+				batch.outputDirectory = new File( args[ ++i ] );
+			else
+			{
+				paths.add( args[ i ] );
+				continue;
+			}
+
+			if ( options != null )
+				for ( int j = first; j <= i; ++j )
+					options.add( args[ j ] );
+		}
+
+		return batch;
+	}
+
+	public static void main( String[] args )
+	{
+		final ArrayList< String > paths = new ArrayList<>();
+		final QualityBatch batch = parse( args, paths, null );
+
+		if ( paths.size() == 0 )
+		{
+			System.out.println( "Usage: QualityBatch [-fftSize 200] [-stepSize 1] [-rFRCDist 10] [-noEntropy] [-singlePrecision] [-fastEntropy] [-readAhead n] [-mapped] [-statistics] [-coarse b] [-tolerance 0.02] [-adaptive t] [-budget n] [-tiles n] [-cache dir] [-cacheMB m] [-jobs 2] [-volumeJobs 1] [-threads n] [-memoryMB m] [-zRange min max] [-output dir] directory|file [file ...]" );
+			System.exit( 1 );
+		}
+
+		final boolean success = batch.process( collectFiles( paths ) );
+
+		IJ.log( "All images were processed" + ( success ? "." : ", some with errors (see above)." ) );
+
+		System.exit( success ? 0 : 1 );
+	}
+}
@@ -0,0 +1,313 @@
+package net.preibisch.qualityest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+
+import ij.IJ;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * On-disk cache of per-z quality curves, so that repeated runs on the same data with the same parameters return
+ * immediately.
+ *
+ * The key of an entry is a 64 bit hash of the pixel values of the analysed interval (see contentHash()) combined with
+ * the method, the interval (ROI) and all parameters that influence the result. Every entry is a small file
+ * (key.quality) that stores the full key, the curve and a CRC32 of both; entries whose key or checksum do not match
+ * are deleted and recomputed. Entries are written to a temporary file and renamed, so several processes can share a
+ * cache directory. The total size is limited, when it is exceeded the least recently used entries (by the
+ * modification time, which is updated on every hit) are deleted.
+ */
+public class QualityCache
+{
+	public static final int MAGIC = 0x46524351; // "FRCQ"
+	public static final int VERSION = 1;
+
+	public static File defaultDirectory = new File( System.getProperty( "user.home" ), ".frc-qe-cache" );
+	public static long defaultMaxBytes = Long.getLong( "frcqe.cache.maxMB", 256 ) * 1024 * 1024;
+
+	final File directory;
+	final long maxBytes;
+
+	/**
+	 * @param directory - the cache directory, created if it does not exist
+	 * @param maxBytes - maximal total size of all entries
+	 */
+	public QualityCache( final File directory, final long maxBytes )
+	{
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	public QualityCache()
+	{
+		this( defaultDirectory, defaultMaxBytes );
+	}
+
+	public File directory() { return directory; }
+	public long maxBytes() { return maxBytes; }
+
+	/**
+	 * Hashes the dimensions and all pixel values of the interval (in flat iteration order), 4 independent lanes
+	 * combined with a 64 bit finalizer (murmur3 fmix64)
+	 *
+	 * @param input - the analysed interval
+	 * @return the hash
+	 */
+	public static < T extends RealType< T > > long contentHash( final RandomAccessibleInterval< T > input )
+	{
+		long h0 = 0x9E3779B97F4A7C15L, h1 = 0xC2B2AE3D27D4EB4FL, h2 = 0x165667B19E3779F9L, h3 = 0x27D4EB2F165667C5L;
+
+		for ( int d = 0; d < input.numDimensions(); ++d )
+			h0 = mix( h0, input.dimension( d ) );
+
+		final Cursor< T > c = Views.flatIterable( input ).cursor();
+		long n = 0;
+
+		while ( c.hasNext() )
+		{
+			final long bits = Double.doubleToLongBits( c.next().getRealDouble() );
+
+			switch ( (int)( n++ & 3 ) )
+			{
+				case 0: h0 = mix( h0, bits ); break;
+				case 1: h1 = mix( h1, bits ); break;
+				case 2: h2 = mix( h2, bits ); break;
+				default: h3 = mix( h3, bits ); break;
+			}
+		}
+
+		return fmix( fmix( h0 ^ Long.rotateLeft( h1, 17 ) ) ^ Long.rotateLeft( h2, 31 ) ^ Long.rotateLeft( h3, 47 ) ^ n );
+	}
+
+	/**
+	 * @param contentHash - from contentHash()
+	 * @param interval - the analysed interval (ROI) in image coordinates
+	 * @param method - the method, e.g. "rFRC" or the measure description
+	 * @param parameters - all parameters that influence the result
+	 * @return the key of the entry
+	 */
+	public static String key( final long contentHash, final Interval interval, final String method, final Object... parameters )
+	{
+		final StringBuilder key = new StringBuilder();
+
+		key.append( String.format( "%016x", contentHash ) );
+		key.append( ";" ).append( method );
+		key.append( ";min=" ).append( Arrays.toString( min( interval ) ) );
+		key.append( ";max=" ).append( Arrays.toString( max( interval ) ) );
+
+		for ( final Object p : parameters )
+			key.append( ";" ).append( p );
+
+		return key.toString();
+	}
+
+	/**
+	 * @param key - the key from key()
+	 * @return the stored curve or null if there is no (valid) entry
+	 */
+	public synchronized double[] get( final String key )
+	{
+		final File file = file( key );
+
+		if ( !file.exists() )
+			return null;
+
+		try ( final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) )
+		{
+			if ( in.readInt() != MAGIC || in.readInt() != VERSION )
+				throw new IOException( "not a quality cache entry" );
+
+			final String storedKey = in.readUTF();
+			final int length = in.readInt();
+
+			// a corrupted length must not allocate a huge array
+			if ( length < 0 || length > file.length() / 8 )
+				throw new IOException( "invalid length" );
+
+			final double[] values = new double[ length ];
+
+			for ( int i = 0; i < values.length; ++i )
+				values[ i ] = in.readDouble();
+
+			if ( !storedKey.equals( key ) || in.readLong() != checksum( storedKey, values ) )
+				throw new IOException( "key or checksum do not match" );
+
+			file.setLastModified( System.currentTimeMillis() );
+
+			return values;
+		}
+		catch ( final IOException e )
+		{
+			IJ.log( "Removing invalid cache entry '" + file + "': " + e.getMessage() );
+			file.delete();
+
+			return null;
+		}
+	}
+
+	/**
+	 * Stores a curve and evicts least recently used entries if the cache is too large
+	 *
+	 * @param key - the key from key()
+	 * @param values - the curve
+	 */
+	public synchronized void put( final String key, final double[] values )
+	{
+		if ( values == null )
+			return;
+
+		if ( !directory.exists() && !directory.mkdirs() )
+		{
+			IJ.log( "Could not create cache directory '" + directory + "'." );
+			return;
+		}
+
+		final File file = file( key );
+
+		try
+		{
+			final File tmp = File.createTempFile( "entry", ".tmp", directory );
+
+			try ( final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) ) )
+			{
+				out.writeInt( MAGIC );
+				out.writeInt( VERSION );
+				out.writeUTF( key );
+				out.writeInt( values.length );
+
+				// raw bits like checksum() (writeDouble() would replace every NaN by the canonical one)
+				for ( final double v : values )
+					out.writeLong( Double.doubleToRawLongBits( v ) );
+
+				out.writeLong( checksum( key, values ) );
+			}
+
+			Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		catch ( final IOException e )
+		{
+			IJ.log( "Could not write cache entry '" + file + "': " + e );
+			return;
+		}
+
+		evict();
+	}
+
+	/**
+	 * Deletes the least recently used entries until the total size is within maxBytes
+	 */
+	public synchronized void evict()
+	{
+		final File[] entries = directory.listFiles( ( dir, name ) -> name.endsWith( ".quality" ) );
+
+		if ( entries == null )
+			return;
+
+		long size = 0;
+
+		for ( final File entry : entries )
+			size += entry.length();
+
+		if ( size <= maxBytes )
+			return;
+
+		Arrays.sort( entries, Comparator.comparingLong( File::lastModified ) );
+
+		for ( int i = 0; i < entries.length && size > maxBytes; ++i )
+		{
+			final long length = entries[ i ].length();
+
+			if ( entries[ i ].delete() )
+				size -= length;
+		}
+	}
+
+	/**
+	 * Deletes all entries
+	 */
+	public synchronized void clear()
+	{
+		final File[] entries = directory.listFiles( ( dir, name ) -> name.endsWith( ".quality" ) );
+
+		if ( entries != null )
+			for ( final File entry : entries )
+				entry.delete();
+	}
+
+	protected File file( final String key )
+	{
+		final byte[] bytes = key.getBytes( StandardCharsets.UTF_8 );
+		long h = 0xCBF29CE484222325L;
+
+		for ( final byte b : bytes )
+			h = ( h ^ ( b & 0xff ) ) * 0x100000001B3L;
+
+		return new File( directory, String.format( "%016x", fmix( h ) ) + ".quality" );
+	}
+
+	protected static long checksum( final String key, final double[] values )
+	{
+		final CRC32 crc = new CRC32();
+		crc.update( key.getBytes( StandardCharsets.UTF_8 ) );
+
+		final byte[] bytes = new byte[ 8 ];
+
+		for ( final double v : values )
+		{
+			// raw bits, so a corrupted NaN is detected as well
+			final long bits = Double.doubleToRawLongBits( v );
+
+			for ( int i = 0; i < 8; ++i )
+				bytes[ i ] = (byte)( bits >>> ( 56 - 8 * i ) );
+
+			crc.update( bytes );
+		}
+
+		return crc.getValue();
+	}
+
+	protected static long[] min( final Interval interval )
+	{
+		final long[] min = new long[ interval.numDimensions() ];
+		interval.min( min );
+		return min;
+	}
+
+	protected static long[] max( final Interval interval )
+	{
+		final long[] max = new long[ interval.numDimensions() ];
+		interval.max( max );
+		return max;
+	}
+
+	protected static long mix( final long h, final long value )
+	{
+		return Long.rotateLeft( h ^ ( value * 0x87C37B91114253D5L ), 31 ) * 0x4CF5AD432745937FL;
+	}
+
+	protected static long fmix( long h )
+	{
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,443 @@
+package net.preibisch.qualityest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import ij.IJ;
+import ij.measure.ResultsTable;
+
+/**
+ * Runs {@link QualityBatch} in several worker processes (JVMs) on the same machine, so that large studies do not need
+ * one giant heap and a crashing worker only affects its own part of the work.
+ *
+ * The work is split into shards: every file is a shard, and with -shards k every memory mappable TIFF stack (see
+ * {@link MappedStack}) is split into k ranges of planes. A worker computes its range (loading the planes rFRC needs
+ * around it, see QualityBatch.shardPlanes()) into dir/name/shards/, when all shards of a stack are done their tables
+ * are concatenated into the same csv files a single process writes. At most -workers processes run at the same time.
+ * A worker that dies, exits with an error or runs longer than -timeout minutes is killed and its shard is started
+ * again, up to -retries times. The output of every worker is written to dir/name/shards/[range].log.
+ *
+ * Coarse-to-fine and adaptive rFRC as well as tiled maps depend on the whole stack, with these options only whole
+ * files are distributed. All other options are passed on to the workers.
+ *
+ * Usage: QualityCoordinator [-workers 2] [-shards 1] [-retries 2] [-timeout minutes] [-workerMemory 4g] [QualityBatch options] directory|file [file ...]
+ */
+public class QualityCoordinator
+{
+	public int numWorkers = 2;
+	public int numShards = 1;
+	public int retries = 2;
+	public long timeoutMinutes = 0;
+	public String workerMemory = null;
+
+	final QualityBatch settings;
+	final List< String > options;
+
+	final Set< Process > running = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param settings - the options of the workers (used to split the stacks)
+	 * @param options - the command line options of the workers
+	 */
+	public QualityCoordinator( final QualityBatch settings, final List< String > options )
+	{
+		this.settings = settings;
+		this.options = options;
+	}
+
+	/**
+	 * A file or a range of planes of a file
+	 */
+	protected static class Shard
+	{
+		final File file;
+		final String name;
+		final File resultDir;
+		final long zMin, zMax;
+
+		/**
+		 * @param zMin - first plane, -1 = the whole file
+		 * @param zMax - last plane, -1 = the whole file
+		 */
+		public Shard( final File file, final String name, final long zMin, final long zMax )
+		{
+			this.file = file;
+			this.name = name;
+			this.resultDir = new File( file.getParentFile(), name );
+			this.zMin = zMin;
+			this.zMax = zMax;
+		}
+
+		public boolean isRange() { return zMin >= 0; }
+
+		public String label() { return isRange() ? "z" + zMin + "-" + zMax : "all"; }
+
+		/**
+		 * @return where the worker writes its tables
+		 */
+		public File outputDirectory() { return isRange() ? new File( shardDirectory(), label() ) : resultDir; }
+
+		public File shardDirectory() { return new File( resultDir, "shards" ); }
+
+		@Override
+		public String toString() { return name + " (" + label() + ")"; }
+	}
+
+	/**
+	 * Processes all files in worker processes
+	 *
+	 * @param files - the images
+	 * @return true if all files were processed successfully
+	 */
+	public boolean process( final List< File > files )
+	{
+		final ArrayList< ArrayList< Shard > > fileShards = new ArrayList<>();
+
+		for ( final File file : files )
+			fileShards.add( shards( file ) );
+
+		final Thread killWorkers = new Thread( () ->
+		{
+			for ( final Process p : running )
+				p.destroyForcibly();
+		});
+
+		Runtime.getRuntime().addShutdownHook( killWorkers );
+
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Math.max( 1, numWorkers ) );
+		final ArrayList< Callable< Boolean > > tasks = new ArrayList<>();
+
+		for ( final ArrayList< Shard > shards : fileShards )
+			for ( final Shard shard : shards )
+				tasks.add( () -> run( shard ) );
+
+		final boolean[] shardSuccess = new boolean[ tasks.size() ];
+
+		try
+		{
+			final List< Future< Boolean > > futures = taskExecutor.invokeAll( tasks );
+
+			for ( int i = 0; i < futures.size(); ++i )
+				shardSuccess[ i ] = futures.get( i ).get();
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			IJ.log( "Coordinating the workers failed: " + e );
+			e.printStackTrace();
+		}
+		finally
+		{
+			taskExecutor.shutdown();
+			Runtime.getRuntime().removeShutdownHook( killWorkers );
+		}
+
+		boolean success = true;
+		int i = 0;
+
+		for ( final ArrayList< Shard > shards : fileShards )
+		{
+			boolean fileSuccess = true;
+
+			for ( int s = 0; s < shards.size(); ++s )
+				fileSuccess &= shardSuccess[ i++ ];
+
+			if ( fileSuccess && shards.get( 0 ).isRange() )
+				fileSuccess = merge( shards );
+
+			if ( fileSuccess )
+				IJ.log( shards.get( 0 ).name + " was processed." );
+			else
+				IJ.log( shards.get( 0 ).name + " failed, see the logs in '" + shards.get( 0 ).shardDirectory() + "'." );
+
+			success &= fileSuccess;
+		}
+
+		return success;
+	}
+
+	/**
+	 * @return the shards of a file, the whole file if it cannot be split
+	 */
+	protected ArrayList< Shard > shards( final File file )
+	{
+		String name = file.getName();
+		if ( name.indexOf( "." ) > 0 )
+			name = name.substring( 0, name.indexOf( "." ) );
+
+		final ArrayList< Shard > shards = new ArrayList<>();
+
+		if ( numShards > 1 )
+		{
+			if ( settings.coarseBinning > 1 || settings.adaptiveTolerance > 0 || settings.numTiles > 0 )
+			{
+				IJ.log( name + ": coarse-to-fine/adaptive rFRC and tiled maps need the whole stack, it is not split." );
+			}
+			else
+			{
+				final MappedStack stack = MappedStack.tiff( file );
+
+				if ( stack == null )
+				{
+					IJ.log( name + ": only uncompressed single-channel TIFF stacks can be split, it is processed as a whole." );
+				}
+				else
+				{
+					final long depth = stack.depth();
+					QualityBatch.closeQuietly( stack );
+
+					final int k = (int)Math.min( numShards, depth );
+
+					for ( int s = 0; s < k; ++s )
+						shards.add( new Shard( file, name, depth * s / k, depth * ( s + 1 ) / k - 1 ) );
+
+					return shards;
+				}
+			}
+		}
+
+		shards.add( new Shard( file, name, -1, -1 ) );
+
+		return shards;
+	}
+
+	/**
+	 * Runs a shard in a worker process, retries if it fails
+	 *
+	 * @return true if the worker finished successfully
+	 */
+	protected boolean run( final Shard shard ) throws InterruptedException
+	{
+		final File log = new File( shard.shardDirectory(), shard.label() + ".log" );
+
+		for ( int attempt = 0; attempt <= retries; ++attempt )
+		{
+			if ( attempt > 0 )
+				IJ.log( shard + ": starting again (attempt " + ( attempt + 1 ) + " of " + ( retries + 1 ) + ")." );
+
+			if ( shard.isRange() )
+				delete( shard.outputDirectory() );
+
+			shard.shardDirectory().mkdirs();
+
+			final ProcessBuilder pb = new ProcessBuilder( command( shard ) );
+			pb.redirectErrorStream( true );
+			pb.redirectOutput( attempt == 0 ? ProcessBuilder.Redirect.to( log ) : ProcessBuilder.Redirect.appendTo( log ) );
+
+			final Process p;
+
+			try
+			{
+				p = pb.start();
+			}
+			catch ( final IOException e )
+			{
+				IJ.log( shard + ": could not start worker: " + e );
+				continue;
+			}
+
+			running.add( p );
+
+			try
+			{
+				if ( timeoutMinutes > 0 && !p.waitFor( timeoutMinutes, TimeUnit.MINUTES ) )
+				{
+					IJ.log( shard + ": worker did not finish within " + timeoutMinutes + " minutes, killing it." );
+					p.destroyForcibly().waitFor();
+					continue;
+				}
+
+				final int exitValue = p.waitFor();
+
+				if ( exitValue == 0 )
+					return true;
+
+				IJ.log( shard + ": worker failed with exit code " + exitValue + " (see '" + log + "')." );
+			}
+			finally
+			{
+				// if the coordinator is interrupted, the worker is not needed anymore
+				if ( p.isAlive() )
+					p.destroyForcibly();
+
+				running.remove( p );
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the command line of the worker process for a shard
+	 */
+	protected List< String > command( final Shard shard )
+	{
+		final ArrayList< String > command = new ArrayList<>();
+
+		command.add( new File( new File( System.getProperty( "java.home" ), "bin" ), "java" ).getAbsolutePath() );
+
+		if ( workerMemory != null )
+			command.add( "-Xmx" + workerMemory );
+
+		command.add( "-Djava.awt.headless=true" );
+		command.add( "-cp" );
+		command.add( System.getProperty( "java.class.path" ) );
+		command.add( QualityBatch.class.getName() );
+
+		// share the cores, -threads of the command line overrides it
+		command.add( "-threads" );
+		command.add( Integer.toString( Math.max( 1, Runtime.getRuntime().availableProcessors() / Math.max( 1, numWorkers ) ) ) );
+
+		command.addAll( options );
+
+		command.add( "-jobs" );
+		command.add( "1" );
+
+		if ( shard.isRange() )
+		{
+			command.add( "-zRange" );
+			command.add( Long.toString( shard.zMin ) );
+			command.add( Long.toString( shard.zMax ) );
+			command.add( "-output" );
+			command.add( shard.outputDirectory().getAbsolutePath() );
+		}
+
+		command.add( shard.file.getAbsolutePath() );
+
+		return command;
+	}
+
+	/**
+	 * Concatenates the tables of all shards of a stack (in z order) into the result directory
+	 *
+	 * @return true if all tables were merged
+	 */
+	protected boolean merge( final List< Shard > shards )
+	{
+		final Shard first = shards.get( 0 );
+		final String[] tables = first.outputDirectory().list( ( dir, fileName ) -> fileName.endsWith( ".csv" ) );
+
+		if ( tables == null || tables.length == 0 )
+		{
+			IJ.log( first + ": the worker did not write any tables." );
+			return false;
+		}
+
+		Arrays.sort( tables );
+
+		for ( final String table : tables )
+		{
+			final ResultsTable merged = new ResultsTable();
+
+			for ( final Shard shard : shards )
+			{
+				final File file = new File( shard.outputDirectory(), table );
+				final ResultsTable part;
+
+				try
+				{
+					part = ResultsTable.open( file.getAbsolutePath() );
+				}
+				catch ( final IOException e )
+				{
+					IJ.log( shard + ": could not read '" + file + "': " + e );
+					return false;
+				}
+
+				final String[] headings = part.getHeadings();
+
+				for ( int row = 0; row < part.size(); ++row )
+				{
+					merged.incrementCounter();
+
+					for ( final String heading : headings )
+						merged.addValue( heading, part.getValue( heading, row ) );
+				}
+			}
+
+			if ( !QualityBatch.save( merged, new File( first.resultDir, table ) ) )
+				return false;
+		}
+
+		// keep the statistics of the workers
+		if ( !settings.statistics )
+			for ( final Shard shard : shards )
+				delete( shard.outputDirectory() );
+
+		return true;
+	}
+
+	protected static void delete( final File file )
+	{
+		final File[] children = file.listFiles();
+
+		if ( children != null )
+			for ( final File child : children )
+				delete( child );
+
+		file.delete();
+	}
+
+	public static void main( String[] args )
+	{
+		final ArrayList< String > batchArgs = new ArrayList<>();
+		final ArrayList< String > coordinatorArgs = new ArrayList<>();
+
+		for ( int i = 0; i < args.length; ++i )
+		{
+			if ( Arrays.asList( "-workers", "-shards", "-retries", "-timeout", "-workerMemory" ).contains( args[ i ] ) && i + 1 < args.length )
+			{
+				coordinatorArgs.add( args[ i ] );
+				coordinatorArgs.add( args[ ++i ] );
+			}
+			else
+			{
+				batchArgs.add( args[ i ] );
+			}
+		}
+
+		final ArrayList< String > paths = new ArrayList<>();
+		final ArrayList< String > options = new ArrayList<>();
+		final QualityBatch settings = QualityBatch.parse( batchArgs.toArray( new String[ batchArgs.size() ] ), paths, options );
+
+		if ( paths.size() == 0 )
+		{
+			System.out.println( "Usage: QualityCoordinator [-workers 2] [-shards 1] [-retries 2] [-timeout minutes] [-workerMemory 4g] [QualityBatch options] directory|file [file ...]" );
+			System.exit( 1 );
+		}
+
+		final QualityCoordinator coordinator = new QualityCoordinator( settings, options );
+
+		for ( int i = 0; i < coordinatorArgs.size(); i += 2 )
+		{
+			final String value = coordinatorArgs.get( i + 1 );
+
+			if ( coordinatorArgs.get( i ).equals( "-workers" ) )
+				coordinator.numWorkers = Integer.parseInt( value );
+			else if ( coordinatorArgs.get( i ).equals( "-shards" ) )
+				coordinator.numShards = Integer.parseInt( value );
+			else if ( coordinatorArgs.get( i ).equals( "-retries" ) )
+				coordinator.retries = Integer.parseInt( value );
+			else if ( coordinatorArgs.get( i ).equals( "-timeout" ) )
+				coordinator.timeoutMinutes = Long.parseLong( value );
+			else
+				coordinator.workerMemory = value;
+		}
+
+		final boolean success = coordinator.process( QualityBatch.collectFiles( paths ) );
+
+		IJ.log( "All images were processed" + ( success ? "." : ", some with errors (see above)." ) );
+
+		System.exit( success ? 0 : 1 );
+	}
+}
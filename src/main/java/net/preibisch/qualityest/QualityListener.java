@@ -0,0 +1,13 @@
+package net.preibisch.qualityest;
+
+/**
+ * Receives quality values as soon as they are computed
+ */
+public interface QualityListener
+{
+	/**
+	 * @param z - the plane
+	 * @param quality - the quality of the plane
+	 */
+	void newQuality( long z, double quality );
+}
@@ -0,0 +1,321 @@
+package net.preibisch.qualityest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import autopilot.image.DoubleArrayImage;
+import autopilot.image.FloatArrayImage;
+import autopilot.measures.FloatFocusMeasureInterface;
+import autopilot.measures.FocusMeasureInterface;
+import ij.IJ;
+
+/**
+ * Timers and counters for the stages of a quality run (e.g. loading/conversion, FRC, entropy, tables and plots).
+ *
+ * Every stage accumulates its time, number of calls, processed items (slices, blocks, pairs), converted bytes and an
+ * estimate of the allocated bytes in LongAdders, so worker threads can record concurrently without contention. Times
+ * of stages that run on several threads are summed over the threads (i.e. CPU time, not wall time), items/s and
+ * bytes/s are relative to the wall time of the run. The result is printed to the log and/or written as JSON.
+ */
+public class RunStatistics
+{
+	public static class Stage
+	{
+		final String name;
+		final LongAdder nanos = new LongAdder();
+		final LongAdder calls = new LongAdder();
+		final LongAdder items = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+		final LongAdder allocated = new LongAdder();
+
+		Stage( final String name )
+		{
+			this.name = name;
+		}
+
+		public String name() { return name; }
+		public long nanos() { return nanos.sum(); }
+		public long calls() { return calls.sum(); }
+		public long items() { return items.sum(); }
+		public long bytes() { return bytes.sum(); }
+		public long allocated() { return allocated.sum(); }
+	}
+
+	final String name;
+	final long startNanos, heapAtStart;
+	long endNanos = -1;
+
+	final ConcurrentHashMap< String, Stage > stages = new ConcurrentHashMap<>();
+	final ArrayList< Stage > order = new ArrayList<>();
+
+	/**
+	 * @param name - the name of the run (e.g. the image), also used in the report
+	 */
+	public RunStatistics( final String name )
+	{
+		this.name = name;
+		this.startNanos = System.nanoTime();
+		this.heapAtStart = usedHeap();
+	}
+
+	/**
+	 * @return the start time for stop()
+	 */
+	public long start()
+	{
+		return System.nanoTime();
+	}
+
+	/**
+	 * Adds the time since start to a stage
+	 *
+	 * @param stage - name of the stage
+	 * @param start - the value returned by start()
+	 * @param items - number of processed items (slices, blocks, ...)
+	 */
+	public void stop( final String stage, final long start, final long items )
+	{
+		final Stage s = stage( stage );
+		s.nanos.add( System.nanoTime() - start );
+		s.calls.increment();
+		s.items.add( items );
+	}
+
+	/**
+	 * @param stage - name of the stage
+	 * @param bytes - number of bytes that were converted (e.g. pixels copied into DoubleArrayImages)
+	 */
+	public void addBytes( final String stage, final long bytes )
+	{
+		stage( stage ).bytes.add( bytes );
+	}
+
+	/**
+	 * @param stage - name of the stage
+	 * @param bytes - estimated number of bytes that were allocated
+	 */
+	public void addAllocated( final String stage, final long bytes )
+	{
+		stage( stage ).allocated.add( bytes );
+	}
+
+	/**
+	 * @return the stage, created if it does not exist yet
+	 */
+	public Stage stage( final String stage )
+	{
+		Stage s = stages.get( stage );
+
+		if ( s == null )
+		{
+			synchronized ( order )
+			{
+				s = stages.get( stage );
+
+				if ( s == null )
+				{
+					s = new Stage( stage );
+					order.add( s );
+					stages.put( stage, s );
+				}
+			}
+		}
+
+		return s;
+	}
+
+	/**
+	 * @return the stages in the order they were first used
+	 */
+	public ArrayList< Stage > stages()
+	{
+		synchronized ( order )
+		{
+			return new ArrayList<>( order );
+		}
+	}
+
+	/**
+	 * Ends the run (the wall time stops), further calls have no effect
+	 */
+	public synchronized void finish()
+	{
+		if ( endNanos < 0 )
+			endNanos = System.nanoTime();
+	}
+
+	public synchronized double wallSeconds()
+	{
+		return ( ( endNanos < 0 ? System.nanoTime() : endNanos ) - startNanos ) / 1e9;
+	}
+
+	/**
+	 * Measures the time of every call of a focus measure, one item per slice
+	 *
+	 * @param stage - name of the stage
+	 * @param measure - the measure
+	 * @return the instrumented measure
+	 */
+	public FocusMeasureInterface time( final String stage, final FocusMeasureInterface measure )
+	{
+		return im ->
+		{
+			final long t = start();
+			final double value = measure.computeFocusMeasure( im );
+			stop( stage, t, 1 );
+			return value;
+		};
+	}
+
+	public FloatFocusMeasureInterface time( final String stage, final FloatFocusMeasureInterface measure )
+	{
+		return im ->
+		{
+			final long t = start();
+			final double value = measure.computeFocusMeasure( im );
+			stop( stage, t, 1 );
+			return value;
+		};
+	}
+
+	/**
+	 * Measures the time of every plane that is loaded, one item and the size of the image (in bytes) per plane
+	 *
+	 * @param stage - name of the stage
+	 * @param reader - loads the planes
+	 * @return the instrumented reader
+	 */
+	public PrefetchPipeline.PlaneReader< DoubleArrayImage > timeDouble( final String stage, final PrefetchPipeline.PlaneReader< DoubleArrayImage > reader )
+	{
+		return ( z, image ) ->
+		{
+			final long t = start();
+			reader.read( z, image );
+			stop( stage, t, 1 );
+			addBytes( stage, 8L * image.getLength() );
+		};
+	}
+
+	public PrefetchPipeline.PlaneReader< FloatArrayImage > timeFloat( final String stage, final PrefetchPipeline.PlaneReader< FloatArrayImage > reader )
+	{
+		return ( z, image ) ->
+		{
+			final long t = start();
+			reader.read( z, image );
+			stop( stage, t, 1 );
+			addBytes( stage, 4L * image.getLength() );
+		};
+	}
+
+	/**
+	 * Prints the statistics to the ImageJ log
+	 */
+	public void log()
+	{
+		final double wall = wallSeconds();
+
+		IJ.log( "Statistics for " + name + String.format( Locale.US, " (wall time %.3f s, heap used %.1f -> %.1f MB):", wall, heapAtStart / 1048576.0, usedHeap() / 1048576.0 ) );
+
+		for ( final Stage s : stages() )
+		{
+			final StringBuilder line = new StringBuilder();
+
+			line.append( String.format( Locale.US, "  %s: %.3f s in %d call(s)", s.name, s.nanos() / 1e9, s.calls() ) );
+
+			if ( s.items() > 0 )
+				line.append( String.format( Locale.US, ", %d items (%.2f/s)", s.items(), s.items() / wall ) );
+
+			if ( s.bytes() > 0 )
+				line.append( String.format( Locale.US, ", %.1f MB converted (%.1f MB/s)", s.bytes() / 1048576.0, s.bytes() / 1048576.0 / wall ) );
+
+			if ( s.allocated() > 0 )
+				line.append( String.format( Locale.US, ", ~%.1f MB allocated", s.allocated() / 1048576.0 ) );
+
+			IJ.log( line.toString() );
+		}
+	}
+
+	/**
+	 * @return the statistics as a JSON object
+	 */
+	public String toJson()
+	{
+		final double wall = wallSeconds();
+		final StringBuilder json = new StringBuilder();
+
+		json.append( "{\n" );
+		json.append( "  \"name\": " ).append( quote( name ) ).append( ",\n" );
+		json.append( String.format( Locale.US, "  \"wallSeconds\": %.6f,\n", wall ) );
+		json.append( "  \"heapUsedStartBytes\": " ).append( heapAtStart ).append( ",\n" );
+		json.append( "  \"heapUsedEndBytes\": " ).append( usedHeap() ).append( ",\n" );
+		json.append( "  \"stages\": [" );
+
+		final ArrayList< Stage > stages = stages();
+
+		for ( int i = 0; i < stages.size(); ++i )
+		{
+			final Stage s = stages.get( i );
+
+			json.append( i == 0 ? "\n" : ",\n" );
+			json.append( "    { \"name\": " ).append( quote( s.name ) );
+			json.append( String.format( Locale.US, ", \"seconds\": %.6f", s.nanos() / 1e9 ) );
+			json.append( ", \"calls\": " ).append( s.calls() );
+			json.append( ", \"items\": " ).append( s.items() );
+			json.append( String.format( Locale.US, ", \"itemsPerSecond\": %.3f", s.items() / wall ) );
+			json.append( ", \"bytesConverted\": " ).append( s.bytes() );
+			json.append( ", \"bytesAllocatedEstimate\": " ).append( s.allocated() );
+			json.append( " }" );
+		}
+
+		json.append( stages.size() > 0 ? "\n  ]\n" : "]\n" );
+		json.append( "}\n" );
+
+		return json.toString();
+	}
+
+	/**
+	 * @param file - the JSON file
+	 * @return true if successful
+	 */
+	public boolean writeJson( final File file )
+	{
+		try ( final PrintWriter out = new PrintWriter( file, "UTF-8" ) )
+		{
+			out.print( toJson() );
+			return true;
+		}
+		catch ( final IOException e )
+		{
+			IJ.log( "Could not save '" + file + "': " + e );
+			return false;
+		}
+	}
+
+	protected static long usedHeap()
+	{
+		final Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	protected static String quote( final String s )
+	{
+		final StringBuilder quoted = new StringBuilder( "\"" );
+
+		for ( final char c : s.toCharArray() )
+		{
+			if ( c == '"' || c == '\\' )
+				quoted.append( '\\' ).append( c );
+			else if ( c < 0x20 )
+				quoted.append( String.format( "\\u%04x", (int)c ) );
+			else
+				quoted.append( c );
+		}
+
+		return quoted.append( '"' ).toString();
+	}
+}
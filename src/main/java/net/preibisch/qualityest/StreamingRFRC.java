@@ -0,0 +1,174 @@
+package net.preibisch.qualityest;
+
+import java.util.ArrayList;
+
+import ij.IJ;
+import ij.ImagePlus;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Pair;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.process.quality.FRCRealRandomAccessible;
+import net.preibisch.mvrecon.process.quality.FRCTools;
+
+/**
+ * Relative FRC that streams through the stack instead of wrapping the entire volume. For every evaluated plane z
+ * only the planes [z-rFRCDist, z+rFRCDist] are needed, they are taken from a {@link PlaneCache} that loads them lazily
+ * (e.g. from a virtual stack) and keeps just the window in memory. Peak memory therefore depends on plane size times
+ * window size, not on the depth of the stack.
+ */
+public class StreamingRFRC
+{
+	/**
+	 * @param cache - provides the planes, should be able to hold at least 2*rFRCDist+1 planes
+	 * @param interval - the area to evaluate (z in plane coordinates of the cache)
+	 * @param zStepSize - step size in z
+	 * @param fftSize - size of the FRC blocks
+	 * @param rFRCDist - relative FRC distance in z
+	 * @param listener - is notified about the quality of every plane as soon as it is known, can be null
+	 * @return the median quality over all blocks (of the nearest evaluated plane) for each plane of the interval (index 0 corresponds to interval.min( 2 ))
+	 */
+	public static double[] compute(
+			final PlaneCache cache,
+			final Interval interval,
+			final int zStepSize,
+			final int fftSize,
+			final int rFRCDist,
+			final QualityListener listener )
+	{
+		if ( interval.dimension( 2 ) < 2 * rFRCDist + 1 )
+			throw new IllegalArgumentException( "z-size (" + interval.dimension( 2 ) + ") is too small given the relative FRC distance (" + rFRCDist + "), should be at least " + (2 * rFRCDist + 1) );
+
+		final double[] medians = new double[ (int)interval.dimension( 2 ) ];
+
+		ArrayList< Pair< Long, Long > > xyPositions = null;
+
+		boolean hasSample = false;
+		long lastZ = 0;
+		double lastMedian = 0;
+
+		// the first plane for which the quality is not known yet
+		long nextZ = interval.min( 2 );
+
+		for ( long z = interval.min( 2 ) + rFRCDist; z <= interval.max( 2 ) - rFRCDist; z += zStepSize )
+		{
+			final RandomAccessibleInterval< FloatType > window = window( cache, interval, z, rFRCDist );
+
+			// load the planes of the next windows while this one is computed
+			cache.prefetchAfter( (int)( z + rFRCDist ) );
+
+			if ( xyPositions == null )
+				xyPositions = positions( window, fftSize );
+
+			final double median = median( window, xyPositions, z, fftSize );
+
+			// planes up to the middle between the previous and this sample are closest to the previous sample
+			if ( hasSample )
+				nextZ = emit( medians, interval.min( 2 ), nextZ, ( lastZ + z ) / 2, lastMedian, listener );
+
+			nextZ = emit( medians, interval.min( 2 ), nextZ, z, median, listener );
+
+			hasSample = true;
+			lastZ = z;
+			lastMedian = median;
+
+			IJ.showProgress( (double)( z - interval.min( 2 ) ) / interval.dimension( 2 ) );
+		}
+
+		// the remaining planes are closest to the last sample
+		emit( medians, interval.min( 2 ), nextZ, interval.max( 2 ), lastMedian, listener );
+
+		IJ.showProgress( 1.0 );
+
+		return medians;
+	}
+
+	/**
+	 * Distributes the FRC blocks over the xy-area of the window and logs their positions
+	 */
+	protected static ArrayList< Pair< Long, Long > > positions( final RandomAccessibleInterval< FloatType > window, final int fftSize )
+	{
+		final ArrayList< Pair< Long, Long > > xyPositions = FRCTools.distributeSquaresXY( window, fftSize, 0.25 );
+
+		IJ.log( "For the following coordinates rFRC will be computed: " );
+
+		for ( final Pair< Long, Long > xy : xyPositions )
+			IJ.log( "x,y: " + xy.getA() + "," + xy.getB() + " (size around each spot r=" + fftSize/2 + ")" );
+
+		return xyPositions;
+	}
+
+	/**
+	 * @param window - the planes [z-rFRCDist, z+rFRCDist]
+	 * @return the median relative FRC of all blocks in plane z
+	 */
+	protected static double median( final RandomAccessibleInterval< FloatType > window, final ArrayList< Pair< Long, Long > > xyPositions, final long z, final int fftSize )
+	{
+		final ArrayList< Point > locations = new ArrayList<>();
+
+		for ( final Pair< Long, Long > xy : xyPositions )
+			locations.add( new Point( xy.getA(), xy.getB(), z ) );
+
+		final FRCRealRandomAccessible< FloatType > frc = new FRCRealRandomAccessible< FloatType >( window, locations, fftSize, true, null );
+
+		// all samples are in plane z
+		final ArrayList< Double > values = new ArrayList<>();
+
+		for ( final FloatType q : frc.getQualityList() )
+			values.add( q.getRealDouble() );
+
+		return Util.median( values.stream().mapToDouble( Double::doubleValue ).toArray() );
+	}
+
+	/**
+	 * @param imp - the (virtual) stack
+	 * @param rFRCDist - relative FRC distance in z
+	 * @param readAhead - number of planes that are loaded in the background while a window is computed, 0 = off
+	 * @return a cache that holds a window of 2*rFRCDist+1 planes plus the planes that are read ahead
+	 */
+	public static PlaneCache cache( final ImagePlus imp, final int rFRCDist, final int readAhead )
+	{
+		final PlaneCache cache = new PlaneCache( imp, 2 * rFRCDist + 1 + readAhead );
+		cache.setReadAhead( readAhead );
+
+		return cache;
+	}
+
+	/**
+	 * Sets the quality for the planes [from, to]
+	 *
+	 * @return the first plane after to
+	 */
+	protected static long emit( final double[] medians, final long zMin, final long from, final long to, final double median, final QualityListener listener )
+	{
+		for ( long z = from; z <= to; ++z )
+		{
+			medians[ (int)( z - zMin ) ] = median;
+
+			if ( listener != null )
+				listener.newQuality( z, median );
+		}
+
+		return Math.max( from, to + 1 );
+	}
+
+	/**
+	 * @return the planes [z-rFRCDist, z+rFRCDist] restricted to the xy-area of the interval, in the coordinates of the full stack
+	 */
+	protected static RandomAccessibleInterval< FloatType > window( final PlaneCache cache, final Interval interval, final long z, final int rFRCDist )
+	{
+		final ArrayList< RandomAccessibleInterval< FloatType > > planes = new ArrayList<>();
+
+		for ( long zi = z - rFRCDist; zi <= z + rFRCDist; ++zi )
+			planes.add( ArrayImgs.floats( cache.getPlane( (int)zi ), cache.width(), cache.height() ) );
+
+		return Views.interval(
+				Views.translate( Views.stack( planes ), 0, 0, z - rFRCDist ),
+				new long[] { interval.min( 0 ), interval.min( 1 ), z - rFRCDist },
+				new long[] { interval.max( 0 ), interval.max( 1 ), z + rFRCDist } );
+	}
+}
@@ -0,0 +1,242 @@
+package net.preibisch.qualityest;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import autopilot.image.DoubleArrayImage;
+import autopilot.measures.FocusMeasureInterface;
+import autopilot.measures.FocusMeasures;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.ResultsTable;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Spatially resolved focus measures: every slice is split into a grid of numTiles x numTiles tiles and each
+ * {@link FocusMeasureInterface} is evaluated for every tile, which gives a low-resolution 3d quality map per measure.
+ * A partially cleared sample then shows up as a map with good and bad regions instead of a single mediocre value.
+ *
+ * All tiles have the same size (width/numTiles x height/numTiles), the grid is centered, so a border of less than
+ * one tile may be ignored. The work is split into bands (one row of tiles of one slice), every band is loaded once
+ * and workers reuse their band and tile buffers.
+ */
+public class TiledFocusMap
+{
+	final int tilesX, tilesY, depth, tileWidth, tileHeight, offsetX, offsetY;
+
+	// [measure][ ( z * tilesY + ty ) * tilesX + tx ]
+	final float[][] values;
+
+	protected TiledFocusMap( final int numMeasures, final int tilesX, final int tilesY, final int depth, final int tileWidth, final int tileHeight, final int offsetX, final int offsetY )
+	{
+		this.tilesX = tilesX;
+		this.tilesY = tilesY;
+		this.depth = depth;
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		this.offsetX = offsetX;
+		this.offsetY = offsetY;
+		this.values = new float[ numMeasures ][ tilesX * tilesY * depth ];
+	}
+
+	/**
+	 * Uses FocusMeasures.cNumberOfTiles tiles per dimension
+	 */
+	public static < T extends RealType< T > > TiledFocusMap compute(
+			final RandomAccessibleInterval< T > input,
+			final FocusMeasureInterface[] measures,
+			final int numThreads )
+	{
+		return compute( input, measures, FocusMeasures.cNumberOfTiles, numThreads );
+	}
+
+	/**
+	 * @param input - the 3d image, slices are taken along dimension 2
+	 * @param measures - the measures, must not keep per-call state as they are shared by all workers
+	 * @param numTiles - number of tiles in x and in y (reduced if the tiles would be smaller than 8x8 pixels)
+	 * @param numThreads - number of worker threads
+	 * @return the map, or null if the computation failed
+	 */
+	public static < T extends RealType< T > > TiledFocusMap compute(
+			final RandomAccessibleInterval< T > input,
+			final FocusMeasureInterface[] measures,
+			final int numTiles,
+			final int numThreads )
+	{
+		final int width = (int)input.dimension( 0 );
+		final int height = (int)input.dimension( 1 );
+		final int depth = (int)input.dimension( 2 );
+
+		final int tilesX = Math.max( 1, Math.min( numTiles, width / 8 ) );
+		final int tilesY = Math.max( 1, Math.min( numTiles, height / 8 ) );
+		final int tileWidth = width / tilesX;
+		final int tileHeight = height / tilesY;
+
+		final TiledFocusMap map = new TiledFocusMap( measures.length, tilesX, tilesY, depth, tileWidth, tileHeight, ( width - tilesX * tileWidth ) / 2, ( height - tilesY * tileHeight ) / 2 );
+
+		final int numBands = depth * tilesY;
+		final PlaneAdapters.Planes planes = PlaneAdapters.planes( input );
+		final AtomicInteger nextBand = new AtomicInteger( 0 );
+		final AtomicInteger finishedBands = new AtomicInteger( 0 );
+
+		final boolean success = ParallelSliceEvaluation.runWorkers( Math.min( numThreads, numBands ), () ->
+		{
+			final int bandWidth = tilesX * tileWidth;
+			final double[] band = new double[ bandWidth * tileHeight ];
+			final DoubleArrayImage tile = new DoubleArrayImage( tileWidth, tileHeight );
+
+			for ( int b = nextBand.getAndIncrement(); b < numBands; b = nextBand.getAndIncrement() )
+			{
+				final int z = b / tilesY;
+				final int ty = b % tilesY;
+
+				map.loadBand( planes, input, z, ty, band );
+
+				for ( int tx = 0; tx < tilesX; ++tx )
+				{
+					final int index = map.index( tx, ty, z );
+
+					// the measures work in-place, the tile is copied from the band for every measure
+					for ( int m = 0; m < measures.length; ++m )
+					{
+						copyTile( band, bandWidth, tx * tileWidth, tile );
+						map.values[ m ][ index ] = (float)measures[ m ].computeFocusMeasure( tile );
+					}
+				}
+
+				IJ.showProgress( finishedBands.incrementAndGet(), numBands );
+			}
+
+			return null;
+		});
+
+		return success ? map : null;
+	}
+
+	public int tilesX() { return tilesX; }
+	public int tilesY() { return tilesY; }
+	public int depth() { return depth; }
+	public int tileWidth() { return tileWidth; }
+	public int tileHeight() { return tileHeight; }
+
+	/**
+	 * @return the quality of a tile
+	 */
+	public float get( final int measure, final int tx, final int ty, final int z )
+	{
+		return values[ measure ][ index( tx, ty, z ) ];
+	}
+
+	/**
+	 * @param measure - index of the measure
+	 * @return the map as image (tilesX x tilesY x depth), backed by the values of this map
+	 */
+	public RandomAccessibleInterval< FloatType > map( final int measure )
+	{
+		return ArrayImgs.floats( values[ measure ], tilesX, tilesY, depth );
+	}
+
+	/**
+	 * @param measure - index of the measure
+	 * @param title - title of the image
+	 * @return the map as ImagePlus, calibrated so that one pixel corresponds to one tile of the input
+	 */
+	public ImagePlus imagePlus( final int measure, final String title )
+	{
+		final ImageStack stack = new ImageStack( tilesX, tilesY );
+		final int planeSize = tilesX * tilesY;
+
+		for ( int z = 0; z < depth; ++z )
+			stack.addSlice( "z=" + z, Arrays.copyOfRange( values[ measure ], z * planeSize, ( z + 1 ) * planeSize ) );
+
+		final ImagePlus imp = new ImagePlus( title, stack );
+
+		imp.getCalibration().pixelWidth = tileWidth;
+		imp.getCalibration().pixelHeight = tileHeight;
+		imp.getCalibration().xOrigin = -offsetX / (double)tileWidth;
+		imp.getCalibration().yOrigin = -offsetY / (double)tileHeight;
+		imp.getCalibration().setUnit( "pixel" );
+		imp.resetDisplayRange();
+
+		return imp;
+	}
+
+	/**
+	 * @param measure - index of the measure
+	 * @param zOffset - z position of the first slice
+	 * @return the mean, median, minimum and maximum over all tiles of every slice
+	 */
+	public ResultsTable aggregateTable( final int measure, final long zOffset )
+	{
+		final ResultsTable rt = new ResultsTable();
+		final int planeSize = tilesX * tilesY;
+		final double[] plane = new double[ planeSize ];
+
+		for ( int z = 0; z < depth; ++z )
+		{
+			double sum = 0;
+
+			for ( int i = 0; i < planeSize; ++i )
+			{
+				plane[ i ] = values[ measure ][ z * planeSize + i ];
+				sum += plane[ i ];
+			}
+
+			Arrays.sort( plane );
+
+			rt.incrementCounter();
+			rt.addValue( "z", zOffset + z );
+			rt.addValue( "mean", sum / planeSize );
+			rt.addValue( "median", planeSize % 2 == 1 ? plane[ planeSize / 2 ] : 0.5 * ( plane[ planeSize / 2 - 1 ] + plane[ planeSize / 2 ] ) );
+			rt.addValue( "min", plane[ 0 ] );
+			rt.addValue( "max", plane[ planeSize - 1 ] );
+		}
+
+		return rt;
+	}
+
+	protected int index( final int tx, final int ty, final int z )
+	{
+		return ( z * tilesY + ty ) * tilesX + tx;
+	}
+
+	/**
+	 * Loads the pixels of one row of tiles of slice z, directly from the planes if input is backed by arrays (planes != null)
+	 */
+	protected < T extends RealType< T > > void loadBand( final PlaneAdapters.Planes planes, final RandomAccessibleInterval< T > input, final int z, final int ty, final double[] band )
+	{
+		final long x0 = input.min( 0 ) + offsetX;
+		final long y0 = input.min( 1 ) + offsetY + (long)ty * tileHeight;
+
+		if ( planes != null )
+		{
+			planes.copy( x0, y0, input.min( 2 ) + z, tilesX * tileWidth, tileHeight, band );
+			return;
+		}
+
+		final RandomAccessibleInterval< T > slice = Views.hyperSlice( input, 2, input.min( 2 ) + z );
+
+		final Cursor< T > c = Views.flatIterable( Views.interval( slice, new FinalInterval(
+				new long[] { x0, y0 },
+				new long[] { x0 + (long)tilesX * tileWidth - 1, y0 + tileHeight - 1 } ) ) ).cursor();
+
+		for ( int i = 0; i < band.length; ++i )
+			band[ i ] = c.next().getRealDouble();
+	}
+
+	protected static void copyTile( final double[] band, final int bandWidth, final int x0, final DoubleArrayImage tile )
+	{
+		final double[] array = tile.getArray();
+		final int w = tile.getWidth();
+
+		for ( int y = 0; y < tile.getHeight(); ++y )
+			System.arraycopy( band, y * bandWidth + x0, array, y * w, w );
+	}
+}
@@ -0,0 +1,159 @@
+package autopilot.image;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.emory.mathcs.jtransforms.fft.DoubleFFT_2D;
+
+/**
+ * Compares the half spectrum implementation of fftLogPower, fftPower and
+ * fftAbsSum with the original full complex 2D FFT for odd and even, square
+ * and non-square planes.
+ */
+public class DoubleArrayImageSpectrumTest
+{
+	private static final int[][] cSizes = new int[][]
+	{
+		{ 8, 8 },
+		{ 7, 7 },
+		{ 16, 6 },
+		{ 6, 16 },
+		{ 9, 4 },
+		{ 5, 12 },
+		{ 11, 13 },
+		{ 1, 8 },
+		{ 8, 1 } };
+
+	@Test
+	public void testLogPower()
+	{
+		for (final int[] lSize : cSizes)
+		{
+			final DoubleArrayImage lImage = randomImage(lSize[0], lSize[1]);
+			final double[] lExpected = referenceSpectrum(	lImage,
+															false,
+															2);
+			lImage.fftLogPower();
+			assertClose(lExpected, lImage, lSize);
+		}
+	}
+
+	@Test
+	public void testPower()
+	{
+		for (final int[] lSize : cSizes)
+		{
+			final DoubleArrayImage lImage = randomImage(lSize[0], lSize[1]);
+			final double[] lExpected = referenceSpectrum(	lImage,
+															false,
+															1);
+			lImage.fftPower();
+			assertClose(lExpected, lImage, lSize);
+		}
+	}
+
+	@Test
+	public void testAbsSum()
+	{
+		for (final int[] lSize : cSizes)
+		{
+			final DoubleArrayImage lImage = randomImage(lSize[0], lSize[1]);
+			final double[] lExpected = referenceSpectrum(	lImage,
+															true,
+															0);
+			lImage.fftAbsSum();
+			assertClose(lExpected, lImage, lSize);
+		}
+	}
+
+	@Test
+	public void testScratchIsReusable()
+	{
+		final DoubleArrayImage lImage = randomImage(10, 7);
+		final DoubleArrayImage lOther = randomImage(10, 7);
+		final double[] lExpected = referenceSpectrum(lOther, false, 1);
+
+		// a dirty scratch must not change the result
+		final double[] lScratch = new double[DoubleArrayImage.getSpectrumScratchLength(	10,
+																							7)];
+		lImage.fftPower(lScratch);
+		lOther.fftPower(lScratch);
+		assertClose(lExpected, lOther, new int[]
+		{ 10, 7 });
+	}
+
+	private static DoubleArrayImage randomImage(final int pWidth,
+												final int pHeight)
+	{
+		final Random lRandom = new Random(31L * pWidth + pHeight);
+		final DoubleArrayImage lImage = new DoubleArrayImage(pWidth, pHeight);
+		final double[] lArray = lImage.getArray();
+		for (int i = 0; i < lArray.length; i++)
+			lArray[i] = 1000 * lRandom.nextDouble();
+		return lImage;
+	}
+
+	private static void assertClose(final double[] pExpected,
+									final DoubleArrayImage pImage,
+									final int[] pSize)
+	{
+		final double[] lArray = pImage.getArray();
+		double lMax = 0;
+		for (final double lValue : pExpected)
+			lMax = Math.max(lMax, Math.abs(lValue));
+
+		for (int i = 0; i < pExpected.length; i++)
+			assertEquals(	pSize[0] + "x" + pSize[1] + ", index " + i,
+							pExpected[i],
+							lArray[i],
+							1e-10 * lMax);
+	}
+
+	/**
+	 * The spectra as they were computed before the half spectrum: a full
+	 * complex 2D FFT (realForwardFull on the interleaved layout for fftAbsSum).
+	 * pMode: 0 = |F|, 1 = |F|^2, 2 = log(1+|F|^2)
+	 */
+	private static double[] referenceSpectrum(	final DoubleArrayImage pImage,
+												final boolean pInterleavedInput,
+												final int pMode)
+	{
+		final double[] lArray = pImage.getArray();
+		final int lWidth = pImage.getWidth();
+		final int lHeight = pImage.getHeight();
+
+		final DoubleFFT_2D lFFT = new DoubleFFT_2D(lHeight, lWidth);
+		final double[] lTempArray = new double[2 * lWidth * lHeight];
+
+		for (int r = 0; r < lHeight; r++)
+			for (int c = 0; c < lWidth; c++)
+				lTempArray[2 * r * lWidth + 2 * c] = lArray[r * lWidth + c];
+
+		if (pInterleavedInput)
+			lFFT.realForwardFull(lTempArray);
+		else
+			lFFT.complexForward(lTempArray);
+
+		final double[] lResult = new double[lWidth * lHeight];
+		for (int r = 0; r < lHeight; r++)
+		{
+			for (int c = 0; c < lWidth; c++)
+			{
+				final double lReal = lTempArray[2 * r * lWidth + 2 * c];
+				final double lImag = lTempArray[2 * r * lWidth + 2 * c + 1];
+				final double lPower = lReal * lReal + lImag * lImag;
+
+				final int rt = (r + lHeight / 2) % lHeight;
+				final int ct = (c + lWidth / 2) % lWidth;
+
+				lResult[rt * lWidth + ct] = pMode == 0	? Math.sqrt(lPower)
+														: pMode == 1 ? lPower
+																		: Math.log(1 + lPower);
+			}
+		}
+		return lResult;
+	}
+}
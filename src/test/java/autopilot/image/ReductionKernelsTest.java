@@ -0,0 +1,174 @@
+package autopilot.image;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the methods of {@link DoubleArrayImage} that use the unrolled
+ * {@link ReductionKernels} with the scalar loops, on random planes with
+ * positive, negative and zero pixels (and NaN pixels for the entropy).
+ */
+public class ReductionKernelsTest
+{
+	private static final double cTolerance = 1e-11;
+
+	private static final int[][] cSizes = new int[][]
+	{
+		{ 1, 1 },
+		{ 3, 5 },
+		{ 64, 64 },
+		{ 127, 61 },
+		{ 512, 256 } };
+
+	@Test
+	public void testReductions()
+	{
+		for (final int[] lSize : cSizes)
+		{
+			final DoubleArrayImage lImage = randomImage(lSize[0],
+														lSize[1],
+														false);
+			final DoubleArrayImage lOther = randomImage(lSize[1],
+														lSize[0],
+														false);
+			final String lName = lSize[0] + "x" + lSize[1];
+
+			final double[] lUnrolled = reductions(lImage, lOther, true);
+			final double[] lScalar = reductions(lImage, lOther, false);
+
+			for (int i = 0; i < lScalar.length; i++)
+				assertRelative(lName + ", reduction " + i,
+								lScalar[i],
+								lUnrolled[i]);
+		}
+	}
+
+	@Test
+	public void testEntropy()
+	{
+		for (final boolean lNaN : new boolean[]
+		{ false, true })
+		{
+			for (final int[] lSize : cSizes)
+			{
+				final DoubleArrayImage lImage = randomImage(lSize[0],
+															lSize[1],
+															lNaN);
+				final String lName = lSize[0] + "x"
+										+ lSize[1]
+										+ (lNaN ? " with NaN" : "");
+
+				final double[] lUnrolled = entropies(lImage, true);
+				final double[] lScalar = entropies(lImage, false);
+
+				for (int i = 0; i < lScalar.length; i++)
+				{
+					assertFalse(lName + ", entropy " + i + " is NaN",
+								Double.isNaN(lUnrolled[i]));
+					assertRelative(lName + ", entropy " + i,
+									lScalar[i],
+									lUnrolled[i]);
+				}
+			}
+		}
+	}
+
+	private static double[] reductions(	final DoubleArrayImage pImage,
+										final DoubleArrayImage pOther,
+										final boolean pUnrolled)
+	{
+		final boolean lPrevious = ReductionKernels.cUseUnrolledKernels;
+		ReductionKernels.cUseUnrolledKernels = pUnrolled;
+		try
+		{
+			final DoubleArrayImage lNormalized = pImage.copy();
+			lNormalized.normalizeNormL2();
+
+			return new double[]
+			{ pImage.sum(),
+				pImage.average(),
+				pImage.variance(),
+				pImage.normL1(),
+				pImage.normL2(),
+				pImage.dot(pOther),
+				lNormalized.sum() };
+		}
+		finally
+		{
+			ReductionKernels.cUseUnrolledKernels = lPrevious;
+		}
+	}
+
+	private static double[] entropies(	final DoubleArrayImage pImage,
+										final boolean pUnrolled)
+	{
+		final boolean lPrevious = ReductionKernels.cUseUnrolledKernels;
+		ReductionKernels.cUseUnrolledKernels = pUnrolled;
+		try
+		{
+			final int lWidth = pImage.getWidth();
+			final int lHeight = pImage.getHeight();
+			return new double[]
+			{ pImage.entropyShannon(false),
+				pImage.entropyShannon(true),
+				pImage.entropyShannonSubRectangle(	0,
+													0,
+													lWidth,
+													lHeight,
+													false),
+				pImage.entropyShannonSubRectangle(	lWidth / 4,
+													lHeight / 4,
+													lWidth / 2 + 1,
+													lHeight / 2 + 1,
+													true),
+				pImage.entropyShannonSubTriangle(	0,
+													0,
+													lWidth,
+													lHeight,
+													false),
+				pImage.entropyShannonSubTriangle(	0,
+													0,
+													lWidth / 2 + 1,
+													lHeight / 2 + 1,
+													true) };
+		}
+		finally
+		{
+			ReductionKernels.cUseUnrolledKernels = lPrevious;
+		}
+	}
+
+	private static DoubleArrayImage randomImage(final int pWidth,
+												final int pHeight,
+												final boolean pNaN)
+	{
+		final Random lRandom = new Random(17L * pWidth + pHeight);
+		final DoubleArrayImage lImage = new DoubleArrayImage(pWidth, pHeight);
+		final double[] lArray = lImage.getArray();
+		for (int i = 0; i < lArray.length; i++)
+		{
+			final double lChoice = lRandom.nextDouble();
+			if (lChoice < 0.1)
+				lArray[i] = 0;
+			else if (pNaN && lChoice < 0.15)
+				lArray[i] = Double.NaN;
+			else
+				lArray[i] = 1000 * (lRandom.nextDouble() - 0.3);
+		}
+		return lImage;
+	}
+
+	private static void assertRelative(	final String pMessage,
+										final double pExpected,
+										final double pActual)
+	{
+		assertEquals(	pMessage,
+						pExpected,
+						pActual,
+						cTolerance * Math.max(1, Math.abs(pExpected)));
+	}
+}
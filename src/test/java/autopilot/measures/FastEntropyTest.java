@@ -0,0 +1,184 @@
+package autopilot.measures;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import autopilot.image.DoubleArrayImage;
+import autopilot.image.FloatArrayImage;
+import autopilot.image.ReductionKernels;
+import autopilot.measures.implementations.spectral.NormDCTEntropyShannon;
+import autopilot.measures.implementations.spectral.NormDCTEntropyShannonMedianFiltered;
+import autopilot.measures.implementations.spectral.NormDFTEntropyShannon;
+
+/**
+ * Compares the entropies computed with the table-driven logarithm
+ * (sumXLogXFast) with the exact ones, slice by slice.
+ */
+public class FastEntropyTest
+{
+	/**
+	 * Maximal relative difference per slice allowed for screening runs (the
+	 * observed difference is about 1e-13)
+	 */
+	private static final double cTolerance = 1e-6;
+
+	private static final int[][] cSizes = new int[][]
+	{
+		{ 64, 64 },
+		{ 96, 64 },
+		{ 63, 81 } };
+
+	private static final int cNumberOfSlices = 5;
+
+	private static final String[] cMeasureNames = new String[]
+	{ "NormDCTEntropyShannon",
+		"NormDCTEntropyShannonMedianFiltered",
+		"NormDFTEntropyShannon" };
+
+	@Test
+	public void testKernels()
+	{
+		for (final int[] lSize : cSizes)
+		{
+			for (int z = 0; z < cNumberOfSlices; z++)
+			{
+				final DoubleArrayImage lImage = cameraImage(lSize[0],
+															lSize[1],
+															z);
+				lImage.dctforward();
+				lImage.normalizeNormL2();
+				final double[] lArray = lImage.getArray();
+
+				// zeros and NaN pixels are skipped like in the exact kernel
+				lArray[0] = 0;
+				lArray[lArray.length - 1] = Double.NaN;
+
+				final float[] lFloatArray = new float[lArray.length];
+				for (int i = 0; i < lArray.length; i++)
+					lFloatArray[i] = (float) lArray[i];
+
+				final String lName = lSize[0] + "x" + lSize[1] + ", slice " + z;
+				assertRelative(lName,
+								ReductionKernels.sumXLogX(lArray, 0, lArray.length),
+								ReductionKernels.sumXLogXFast(lArray,
+																0,
+																lArray.length));
+				assertRelative(lName + " (float)",
+								ReductionKernels.sumXLogX(lFloatArray,
+															0,
+															lFloatArray.length),
+								ReductionKernels.sumXLogXFast(lFloatArray,
+																0,
+																lFloatArray.length));
+			}
+		}
+	}
+
+	@Test
+	public void testMeasures()
+	{
+		for (final int[] lSize : cSizes)
+		{
+			for (int z = 0; z < cNumberOfSlices; z++)
+			{
+				final DoubleArrayImage lImage = cameraImage(lSize[0],
+															lSize[1],
+															z);
+				final FloatArrayImage lFloatImage = new FloatArrayImage(lSize[0],
+																		lSize[1]);
+				lFloatImage.copyFrom(lImage);
+
+				final String lName = lSize[0] + "x" + lSize[1] + ", slice " + z;
+
+				assertRelative(lName + " Shannon",
+								lImage.entropyShannon(true),
+								lImage.entropyShannon(true, true));
+				assertRelative(lName + " Shannon (float)",
+								lFloatImage.entropyShannon(true),
+								lFloatImage.entropyShannon(true, true));
+
+				for (int m = 0; m < cMeasureNames.length; m++)
+				{
+					assertRelative(	lName + " " + cMeasureNames[m],
+									compute(m, lImage.copy(), false),
+									compute(m, lImage.copy(), true));
+
+					final FloatArrayImage lExactFloat = new FloatArrayImage(lSize[0],
+																			lSize[1]);
+					final FloatArrayImage lFastFloat = new FloatArrayImage(	lSize[0],
+																			lSize[1]);
+					lExactFloat.copyFrom(lImage);
+					lFastFloat.copyFrom(lImage);
+					assertRelative(lName + " " + cMeasureNames[m] + " (float)",
+									computeFloat(m, lExactFloat, false),
+									computeFloat(m, lFastFloat, true));
+				}
+			}
+		}
+	}
+
+	private static double compute(final int pMeasure,
+									final DoubleArrayImage pImage,
+									final boolean pFastEntropy)
+	{
+		final double lDiameter = FocusMeasures.cPSFSupportDiameter;
+		if (pMeasure == 0)
+			return NormDCTEntropyShannon.compute(pImage, lDiameter, pFastEntropy);
+		else if (pMeasure == 1)
+			return NormDCTEntropyShannonMedianFiltered.compute(	pImage,
+																lDiameter,
+																pFastEntropy);
+		else
+			return NormDFTEntropyShannon.compute(pImage, lDiameter, pFastEntropy);
+	}
+
+	private static double computeFloat(	final int pMeasure,
+										final FloatArrayImage pImage,
+										final boolean pFastEntropy)
+	{
+		final double lDiameter = FocusMeasures.cPSFSupportDiameter;
+		if (pMeasure == 0)
+			return NormDCTEntropyShannon.compute(pImage, lDiameter, pFastEntropy);
+		else if (pMeasure == 1)
+			return NormDCTEntropyShannonMedianFiltered.compute(	pImage,
+																lDiameter,
+																pFastEntropy);
+		else
+			return NormDFTEntropyShannon.compute(pImage, lDiameter, pFastEntropy);
+	}
+
+	/**
+	 * A smooth pattern with an offset and gaussian noise, rounded to integers
+	 * like 16 bit camera data
+	 */
+	private static DoubleArrayImage cameraImage(final int pWidth,
+												final int pHeight,
+												final long pSeed)
+	{
+		final Random lRandom = new Random(pSeed);
+		final DoubleArrayImage lImage = new DoubleArrayImage(pWidth, pHeight);
+		final double[] lArray = lImage.getArray();
+
+		for (int y = 0; y < pHeight; y++)
+			for (int x = 0; x < pWidth; x++)
+				lArray[y * pWidth + x] = Math.round(1000 + 500
+																* Math.sin(x / 7.0)
+																* Math.cos(y / 9.0)
+													+ 50 * lRandom.nextGaussian());
+
+		return lImage;
+	}
+
+	private static void assertRelative(	final String pMessage,
+										final double pExpected,
+										final double pActual)
+	{
+		assertEquals(	pMessage,
+						pExpected,
+						pActual,
+						cTolerance * Math.abs(pExpected));
+	}
+}
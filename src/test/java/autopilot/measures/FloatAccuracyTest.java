@@ -0,0 +1,183 @@
+package autopilot.measures;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import autopilot.image.DoubleArrayImage;
+import autopilot.image.FloatArrayImage;
+import autopilot.image.ReductionKernels;
+import autopilot.measures.implementations.spectral.NormDCTEntropyShannon;
+import autopilot.measures.implementations.spectral.NormDCTEntropyShannonMedianFiltered;
+import autopilot.measures.implementations.spectral.NormDFTEntropyShannon;
+
+/**
+ * Compares the single precision focus measures with the double precision
+ * ones.
+ *
+ * The input is 16 bit-like data which is represented exactly in float, the
+ * differences therefore only come from rounding in the transforms and the
+ * normalization, the sums are accumulated in double by the same
+ * {@link ReductionKernels} for both precisions.
+ */
+public class FloatAccuracyTest
+{
+	/**
+	 * Maximal relative difference between the single and double precision
+	 * measures (the observed difference is about 1e-6)
+	 */
+	private static final double cTolerance = 1e-5;
+
+	private static final int[][] cSizes = new int[][]
+	{
+		{ 64, 64 },
+		{ 96, 64 },
+		{ 63, 81 } };
+
+	@Test
+	public void testMeasures()
+	{
+		testMeasures(true);
+	}
+
+	@Test
+	public void testMeasuresScalarKernels()
+	{
+		testMeasures(false);
+	}
+
+	@Test
+	public void testReductions()
+	{
+		final boolean lPrevious = ReductionKernels.cUseUnrolledKernels;
+		try
+		{
+			for (final int[] lSize : cSizes)
+			{
+				final DoubleArrayImage lImage = cameraImage(lSize[0],
+															lSize[1],
+															7);
+				final FloatArrayImage lFloatImage = new FloatArrayImage(lSize[0],
+																		lSize[1]);
+				lFloatImage.copyFrom(lImage);
+
+				for (final boolean lUnrolled : new boolean[]
+				{ true, false })
+				{
+					ReductionKernels.cUseUnrolledKernels = lUnrolled;
+					final String lName = lSize[0] + "x"
+											+ lSize[1]
+											+ (lUnrolled ? " unrolled" : " scalar");
+
+					// exact inputs, only the summation order can differ
+					assertRelative(lName + " sum",
+									lImage.sum(),
+									lFloatImage.sum(),
+									1e-12);
+					assertRelative(lName + " normL1",
+									lImage.normL1(),
+									lFloatImage.normL1(),
+									1e-12);
+					assertRelative(lName + " normL2",
+									lImage.normL2(),
+									lFloatImage.normL2(),
+									1e-12);
+					assertRelative(lName + " entropy",
+									lImage.entropyShannon(true),
+									lFloatImage.entropyShannon(true),
+									1e-12);
+				}
+			}
+		}
+		finally
+		{
+			ReductionKernels.cUseUnrolledKernels = lPrevious;
+		}
+	}
+
+	private static void testMeasures(final boolean pUnrolled)
+	{
+		final FocusMeasureInterface[] lMeasures = new FocusMeasureInterface[]
+		{ new NormDCTEntropyShannon(),
+			new NormDCTEntropyShannonMedianFiltered(),
+			new NormDFTEntropyShannon() };
+		final FloatFocusMeasureInterface[] lFloatMeasures = new FloatFocusMeasureInterface[]
+		{ new NormDCTEntropyShannon(),
+			new NormDCTEntropyShannonMedianFiltered(),
+			new NormDFTEntropyShannon() };
+
+		final boolean lPrevious = ReductionKernels.cUseUnrolledKernels;
+		ReductionKernels.cUseUnrolledKernels = pUnrolled;
+		try
+		{
+			for (final int[] lSize : cSizes)
+			{
+				for (long lSeed = 0; lSeed < 3; lSeed++)
+				{
+					for (int m = 0; m < lMeasures.length; m++)
+					{
+						final DoubleArrayImage lImage = cameraImage(lSize[0],
+																	lSize[1],
+																	lSeed);
+						final FloatArrayImage lFloatImage = new FloatArrayImage(lSize[0],
+																				lSize[1]);
+						lFloatImage.copyFrom(lImage);
+
+						final double lDouble = lMeasures[m].computeFocusMeasure(lImage);
+						final double lFloat = lFloatMeasures[m].computeFocusMeasure(lFloatImage);
+
+						assertRelative(	lMeasures[m].getClass()
+															.getSimpleName() + ", "
+												+ lSize[0]
+												+ "x"
+												+ lSize[1]
+												+ ", seed "
+												+ lSeed,
+										lDouble,
+										lFloat,
+										cTolerance);
+					}
+				}
+			}
+		}
+		finally
+		{
+			ReductionKernels.cUseUnrolledKernels = lPrevious;
+		}
+	}
+
+	/**
+	 * A smooth pattern with an offset and gaussian noise, rounded to integers
+	 * like 16 bit camera data
+	 */
+	private static DoubleArrayImage cameraImage(final int pWidth,
+												final int pHeight,
+												final long pSeed)
+	{
+		final Random lRandom = new Random(pSeed);
+		final DoubleArrayImage lImage = new DoubleArrayImage(pWidth, pHeight);
+		final double[] lArray = lImage.getArray();
+
+		for (int y = 0; y < pHeight; y++)
+			for (int x = 0; x < pWidth; x++)
+				lArray[y * pWidth + x] = Math.round(1000 + 500
+																* Math.sin(x / 7.0)
+																* Math.cos(y / 9.0)
+													+ 50 * lRandom.nextGaussian());
+
+		return lImage;
+	}
+
+	private static void assertRelative(	final String pMessage,
+										final double pExpected,
+										final double pActual,
+										final double pTolerance)
+	{
+		assertEquals(	pMessage,
+						pExpected,
+						pActual,
+						pTolerance * Math.abs(pExpected));
+	}
+}
@@ -0,0 +1,81 @@
+package net.preibisch.qualityest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Compares coarse-to-fine rFRC with the full resolution rFRC (Estimate_Quality.computeMedians()) on synthetic stacks
+ * whose noise changes slowly or abruptly in z: the medians have to stay within the tolerance.
+ */
+public class CoarseToFineRFRCTest
+{
+	private static final int size = 256;
+	private static final int depth = 48;
+	private static final int fftSize = 64;
+	private static final int rFRCDist = 2;
+	private static final int binning = 2;
+	private static final double tolerance = 0.02;
+
+	@Test
+	public void testSlowChange()
+	{
+		final long[] counts = compare( stack( false ) );
+
+		// most blocks between the anchors are interpolated
+		assertTrue( counts[ 2 ] > 0 );
+	}
+
+	@Test
+	public void testStep()
+	{
+		compare( stack( true ) );
+	}
+
+	protected static long[] compare( final Img< FloatType > input )
+	{
+		final double[] full = Estimate_Quality.computeMedians( input, 1, fftSize, rFRCDist, new RunStatistics( "full" ) ).getA();
+
+		final CoarseToFineRFRC c2f = new CoarseToFineRFRC( binning, tolerance, 1 );
+		final double[] coarseToFine = c2f.computeMedians( input, 1, fftSize, rFRCDist, new RunStatistics( "coarse-to-fine" ) );
+
+		assertEquals( full.length, coarseToFine.length );
+
+		for ( int z = 0; z < full.length; ++z )
+			assertEquals( "plane " + z, full[ z ], coarseToFine[ z ], tolerance * Math.abs( full[ z ] ) + 1e-6 );
+
+		return c2f.blockCounts();
+	}
+
+	/**
+	 * A smooth pattern with gaussian noise whose amplitude grows linearly in z, or jumps in the middle of the stack
+	 */
+	protected static Img< FloatType > stack( final boolean step )
+	{
+		final Img< FloatType > img = ArrayImgs.floats( size, size, depth );
+		final Random rnd = new Random( 42 );
+		final Cursor< FloatType > c = img.localizingCursor();
+
+		while ( c.hasNext() )
+		{
+			c.fwd();
+
+			final int x = c.getIntPosition( 0 );
+			final int y = c.getIntPosition( 1 );
+			final int z = c.getIntPosition( 2 );
+			final double sigma = step ? ( z < depth / 2 + 3 ? 20 : 200 ) : 20 + 2.0 * z;
+
+			c.get().set( (float)( 1000 + 500 * Math.sin( x / 5.0 + z / 20.0 ) * Math.cos( y / 7.0 ) + sigma * rnd.nextGaussian() ) );
+		}
+
+		return img;
+	}
+}
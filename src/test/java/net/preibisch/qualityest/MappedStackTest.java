@@ -0,0 +1,255 @@
+package net.preibisch.qualityest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Test;
+
+import autopilot.image.DoubleArrayImage;
+import autopilot.image.FloatArrayImage;
+import ij.io.FileInfo;
+
+/**
+ * Writes small raw stacks (both byte orders, all pixel types, with a header and gaps between the planes) and checks
+ * that {@link MappedStack} reads the same values, also when the planes are spread over several mapped regions.
+ */
+public class MappedStackTest
+{
+	private static final int width = 7;
+	private static final int height = 5;
+	private static final int depth = 9;
+	private static final int offset = 13;
+	private static final int gap = 3;
+
+	private static final int[] fileTypes = new int[] { FileInfo.GRAY8, FileInfo.GRAY16_UNSIGNED, FileInfo.GRAY16_SIGNED, FileInfo.GRAY32_FLOAT };
+
+	@Test
+	public void testRaw() throws IOException
+	{
+		for ( final int fileType : fileTypes )
+			for ( final boolean littleEndian : new boolean[] { false, true } )
+			{
+				final double[][] values = values( fileType, fileType * 2 + ( littleEndian ? 1 : 0 ) );
+				final File file = write( values, fileType, littleEndian );
+
+				try
+				{
+					final int planeBytes = width * height * MappedStack.bytesPerPixel( fileType );
+
+					// one region, one plane per region and two planes per region
+					for ( final long maxRegionBytes : new long[] { MappedStack.defaultMaxRegionBytes, 1, 2 * planeBytes + gap } )
+					{
+						final String name = "type " + fileType + ( littleEndian ? " little endian" : " big endian" ) + ", regions of " + maxRegionBytes + " bytes";
+
+						try ( final MappedStack stack = MappedStack.raw( file, width, height, depth, fileType, offset, gap, littleEndian, maxRegionBytes ) )
+						{
+							if ( maxRegionBytes < MappedStack.defaultMaxRegionBytes )
+								assertTrue( name, stack.regions.length > 1 );
+
+							assertPlanes( name, values, stack );
+						}
+					}
+				}
+				finally
+				{
+					file.delete();
+				}
+			}
+	}
+
+	@Test
+	public void testClosed() throws IOException
+	{
+		final File file = write( values( FileInfo.GRAY16_UNSIGNED, 0 ), FileInfo.GRAY16_UNSIGNED, true );
+
+		try
+		{
+			final MappedStack stack = MappedStack.raw( file, width, height, depth, FileInfo.GRAY16_UNSIGNED, offset, gap, true, 1 );
+			final DoubleArrayImage image = new DoubleArrayImage( width, height );
+
+			stack.read( 0, image );
+			stack.close();
+
+			// a region that was mapped before and one that was not
+			for ( final int z : new int[] { 0, depth - 1 } )
+			{
+				try
+				{
+					stack.read( z, image );
+					fail( "read plane " + z + " after close()" );
+				}
+				catch ( final IOException e ) {}
+			}
+
+			// closing twice is allowed
+			stack.close();
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testTiffOffsets() throws IOException
+	{
+		final int fileType = FileInfo.GRAY16_SIGNED;
+		final long planeBytes = width * height * 2;
+		final double[][] values = values( fileType, 42 );
+		final File file = write( values, fileType, false );
+
+		try
+		{
+			// ImageJ stack: one IFD with nImages and gapBetweenImages
+			final FileInfo stack = fileInfo( fileType, offset );
+			stack.nImages = depth;
+			stack.gapBetweenImages = gap;
+
+			final long[] stackOffsets = MappedStack.planeOffsets( new FileInfo[] { stack } );
+
+			// one IFD per plane
+			final FileInfo[] planes = new FileInfo[ depth ];
+
+			for ( int z = 0; z < depth; ++z )
+				planes[ z ] = fileInfo( fileType, offset + z * ( planeBytes + gap ) );
+
+			final long[] planeOffsets = MappedStack.planeOffsets( planes );
+
+			assertEquals( depth, stackOffsets.length );
+			assertEquals( depth, planeOffsets.length );
+
+			for ( int z = 0; z < depth; ++z )
+			{
+				assertEquals( offset + z * ( planeBytes + gap ), stackOffsets[ z ] );
+				assertEquals( offset + z * ( planeBytes + gap ), planeOffsets[ z ] );
+			}
+
+			for ( final long[] offsets : new long[][] { stackOffsets, planeOffsets } )
+				try ( final MappedStack mapped = new MappedStack( file, width, height, fileType, offsets, false, 3 * planeBytes ) )
+				{
+					assertPlanes( "tiff", values, mapped );
+				}
+
+			// compressed planes, a plane with another size and hyperstacks cannot be mapped
+			planes[ depth / 2 ].compression = FileInfo.COMPRESSION_NONE + 1;
+			assertNull( MappedStack.planeOffsets( planes ) );
+
+			planes[ depth / 2 ] = fileInfo( fileType, offset );
+			planes[ depth / 2 ].width = width + 1;
+			assertNull( MappedStack.planeOffsets( planes ) );
+
+			stack.description = "ImageJ=1.53t\nimages=18\nchannels=2\nslices=9\n";
+			assertNull( MappedStack.planeOffsets( new FileInfo[] { stack } ) );
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	protected static void assertPlanes( final String name, final double[][] values, final MappedStack stack ) throws IOException
+	{
+		final DoubleArrayImage image = new DoubleArrayImage( width, height );
+		final FloatArrayImage floatImage = new FloatArrayImage( width, height );
+
+		// backwards, so regions are not only mapped in file order
+		for ( int z = depth - 1; z >= 0; --z )
+		{
+			stack.read( z, image );
+			assertArrayEquals( name + ", plane " + z, values[ z ], image.getArray(), 0 );
+
+			stack.read( z, floatImage );
+			assertArrayEquals( name + ", plane " + z + " (float)", toFloat( values[ z ] ), floatImage.getArray(), 0 );
+
+			assertArrayEquals( name + ", plane " + z + " (loadPlane)", toFloat( values[ z ] ), stack.loadPlane( z ), 0 );
+		}
+	}
+
+	/**
+	 * @return random values for every plane, covering the range of the pixel type (as ImageJ reads them)
+	 */
+	protected static double[][] values( final int fileType, final long seed )
+	{
+		final Random rnd = new Random( seed );
+		final double[][] values = new double[ depth ][ width * height ];
+
+		for ( int z = 0; z < depth; ++z )
+			for ( int i = 0; i < width * height; ++i )
+			{
+				if ( fileType == FileInfo.GRAY8 )
+					values[ z ][ i ] = rnd.nextInt( 256 );
+				else if ( fileType == FileInfo.GRAY16_UNSIGNED || fileType == FileInfo.GRAY16_SIGNED )
+					values[ z ][ i ] = rnd.nextInt( 65536 );
+				else
+					values[ z ][ i ] = (float)( rnd.nextGaussian() * 1000 );
+			}
+
+		return values;
+	}
+
+	/**
+	 * Writes a raw stack with a header of offset bytes and gap bytes between the planes (both filled with 0xff)
+	 */
+	protected static File write( final double[][] values, final int fileType, final boolean littleEndian ) throws IOException
+	{
+		final int planeBytes = width * height * MappedStack.bytesPerPixel( fileType );
+		final ByteBuffer buffer = ByteBuffer.allocate( offset + depth * ( planeBytes + gap ) ).order( littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN );
+
+		while ( buffer.hasRemaining() )
+			buffer.put( (byte)0xff );
+
+		for ( int z = 0; z < depth; ++z )
+		{
+			buffer.position( offset + z * ( planeBytes + gap ) );
+
+			for ( final double value : values[ z ] )
+			{
+				if ( fileType == FileInfo.GRAY8 )
+					buffer.put( (byte)value );
+				else if ( fileType == FileInfo.GRAY16_UNSIGNED )
+					buffer.putShort( (short)value );
+				else if ( fileType == FileInfo.GRAY16_SIGNED )
+					buffer.putShort( (short)( value - 32768 ) ); // ImageJ adds 32768 to signed values
+				else
+					buffer.putFloat( (float)value );
+			}
+		}
+
+		final File file = File.createTempFile( "mappedstack", ".raw" );
+		Files.write( file.toPath(), buffer.array() );
+
+		return file;
+	}
+
+	protected static FileInfo fileInfo( final int fileType, final long offset )
+	{
+		final FileInfo fi = new FileInfo();
+		fi.fileType = fileType;
+		fi.width = width;
+		fi.height = height;
+		fi.compression = FileInfo.COMPRESSION_NONE;
+		fi.longOffset = offset;
+
+		return fi;
+	}
+
+	protected static float[] toFloat( final double[] values )
+	{
+		final float[] floats = new float[ values.length ];
+
+		for ( int i = 0; i < values.length; ++i )
+			floats[ i ] = (float)values[ i ];
+
+		return floats;
+	}
+}
@@ -0,0 +1,91 @@
+package net.preibisch.qualityest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link PrefetchPipeline#run} consumes every plane once and returns (instead of blocking the reader
+ * forever) when the reader, a consumer or the consumer factory fails.
+ */
+public class PrefetchPipelineTest
+{
+	private static final int depth = 50;
+
+	@Test( timeout = 10000 )
+	public void testAllPlanes()
+	{
+		for ( final int readAhead : new int[] { 0, 1, 4 } )
+			for ( final int numWorkers : new int[] { 1, 3 } )
+			{
+				final AtomicInteger sum = new AtomicInteger( 0 );
+
+				assertTrue( run( readAhead, numWorkers, ( z, buffer ) -> buffer[ 0 ] = z, () -> ( z, buffer ) -> sum.addAndGet( buffer[ 0 ] + 1 ) ) );
+				assertEquals( depth * ( depth + 1 ) / 2, sum.get() );
+			}
+	}
+
+	@Test( timeout = 10000 )
+	public void testConsumerThrows()
+	{
+		for ( final int numWorkers : new int[] { 1, 3 } )
+		{
+			assertFalse( run( 1, numWorkers, ( z, buffer ) -> {}, () -> ( z, buffer ) ->
+			{
+				if ( z == 2 )
+					throw new IllegalStateException( "test" );
+			} ) );
+
+			assertFalse( run( 1, numWorkers, ( z, buffer ) -> {}, () -> ( z, buffer ) ->
+			{
+				if ( z == 2 )
+					throw new AssertionError( "test" );
+			} ) );
+		}
+	}
+
+	@Test( timeout = 10000 )
+	public void testConsumerFactoryThrows()
+	{
+		final AtomicInteger calls = new AtomicInteger( 0 );
+
+		// one of three workers fails to start
+		assertFalse( run( 1, 3, ( z, buffer ) -> {}, () ->
+		{
+			if ( calls.incrementAndGet() == 1 )
+				throw new OutOfMemoryError( "test" );
+
+			return ( z, buffer ) -> {};
+		} ) );
+
+		// all workers fail to start
+		assertFalse( run( 1, 2, ( z, buffer ) -> {}, () ->
+		{
+			throw new IllegalStateException( "test" );
+		} ) );
+	}
+
+	@Test( timeout = 10000 )
+	public void testReaderThrows()
+	{
+		assertFalse( run( 2, 2, ( z, buffer ) ->
+		{
+			if ( z == 5 )
+				throw new StackOverflowError( "test" );
+		}, () -> ( z, buffer ) -> {} ) );
+	}
+
+	protected static boolean run(
+			final int readAhead,
+			final int numWorkers,
+			final PrefetchPipeline.PlaneReader< int[] > reader,
+			final Supplier< PrefetchPipeline.PlaneConsumer< int[] > > consumerFactory )
+	{
+		return PrefetchPipeline.run( depth, readAhead, numWorkers, () -> new int[ 1 ], reader, consumerFactory );
+	}
+}
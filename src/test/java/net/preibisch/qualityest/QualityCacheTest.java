@@ -0,0 +1,191 @@
+package net.preibisch.qualityest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link QualityCache} returns stored curves, rejects (and deletes) corrupted entries and entries of
+ * another key with the same file name, and evicts the least recently used entries first.
+ */
+public class QualityCacheTest
+{
+	private static final double[] curve = new double[] { 0.5, 0.25, Double.NaN, Double.longBitsToDouble( 0x7ff8000000000123L ), -1, 1e300 };
+
+	@Test
+	public void testRoundTrip() throws IOException
+	{
+		final File directory = Files.createTempDirectory( "qualitycache" ).toFile();
+
+		try
+		{
+			final QualityCache cache = new QualityCache( new File( directory, "cache" ), 1 << 20 );
+
+			assertNull( cache.get( "a" ) );
+
+			cache.put( "a", curve );
+			cache.put( "b", new double[ 0 ] );
+
+			assertArrayEquals( curve, cache.get( "a" ), 0 );
+			assertArrayEquals( new double[ 0 ], cache.get( "b" ), 0 );
+
+			// another instance on the same directory (e.g. the next run)
+			assertArrayEquals( curve, new QualityCache( new File( directory, "cache" ), 1 << 20 ).get( "a" ), 0 );
+		}
+		finally
+		{
+			delete( directory );
+		}
+	}
+
+	@Test
+	public void testCorrupted() throws IOException
+	{
+		final File directory = Files.createTempDirectory( "qualitycache" ).toFile();
+
+		try
+		{
+			final QualityCache cache = new QualityCache( directory, 1 << 20 );
+			final File file = cache.file( "a" );
+
+			cache.put( "a", curve );
+
+			final long length = file.length();
+
+			// flip a byte of every part of the entry: header, key, length, values and checksum
+			for ( long position = 0; position < length; ++position )
+			{
+				cache.put( "a", curve );
+
+				try ( final RandomAccessFile raf = new RandomAccessFile( file, "rw" ) )
+				{
+					raf.seek( position );
+					final int b = raf.read();
+					raf.seek( position );
+					raf.write( b ^ 0x10 );
+				}
+
+				assertNull( "byte " + position, cache.get( "a" ) );
+				assertFalse( "byte " + position, file.exists() );
+			}
+
+			// a truncated entry
+			cache.put( "a", curve );
+
+			try ( final RandomAccessFile raf = new RandomAccessFile( file, "rw" ) )
+			{
+				raf.setLength( length - 1 );
+			}
+
+			assertNull( cache.get( "a" ) );
+			assertFalse( file.exists() );
+		}
+		finally
+		{
+			delete( directory );
+		}
+	}
+
+	@Test
+	public void testCollision() throws IOException
+	{
+		final File directory = Files.createTempDirectory( "qualitycache" ).toFile();
+
+		try
+		{
+			// all keys map to the same file
+			final QualityCache cache = new QualityCache( directory, 1 << 20 )
+			{
+				@Override
+				protected File file( final String key )
+				{
+					return new File( directory, "collision.quality" );
+				}
+			};
+
+			cache.put( "a", curve );
+
+			assertNull( cache.get( "b" ) );
+			assertNull( cache.get( "a" ) );
+
+			cache.put( "b", curve );
+
+			assertArrayEquals( curve, cache.get( "b" ), 0 );
+		}
+		finally
+		{
+			delete( directory );
+		}
+	}
+
+	@Test
+	public void testEviction() throws IOException
+	{
+		final File directory = Files.createTempDirectory( "qualitycache" ).toFile();
+
+		try
+		{
+			final QualityCache cache = new QualityCache( directory, 1 << 20 );
+			final String[] keys = new String[] { "a", "b", "c", "d" };
+			final long now = System.currentTimeMillis();
+
+			// a is the oldest entry, d the newest
+			for ( int i = 0; i < keys.length; ++i )
+			{
+				cache.put( keys[ i ], curve );
+				assertTrue( cache.file( keys[ i ] ).setLastModified( now - 100000 * ( keys.length - i ) ) );
+			}
+
+			// all entries have the same size
+			final long entryBytes = cache.file( "a" ).length();
+
+			// a hit makes a the most recently used entry
+			assertArrayEquals( curve, cache.get( "a" ), 0 );
+
+			// one byte too many evicts b, the least recently used entry
+			new QualityCache( directory, keys.length * entryBytes - 1 ).evict();
+
+			assertNull( cache.get( "b" ) );
+			assertTrue( cache.file( "c" ).exists() );
+
+			// room for two entries evicts c
+			new QualityCache( directory, 2 * entryBytes ).evict();
+
+			assertFalse( cache.file( "c" ).exists() );
+			assertTrue( cache.file( "d" ).exists() );
+			assertTrue( cache.file( "a" ).exists() );
+
+			// put() evicts as well, d and a are older than the new entry
+			assertTrue( cache.file( "d" ).setLastModified( now - 20000 ) );
+			assertTrue( cache.file( "a" ).setLastModified( now - 10000 ) );
+			new QualityCache( directory, entryBytes ).put( "e", curve );
+
+			assertFalse( cache.file( "a" ).exists() );
+			assertFalse( cache.file( "d" ).exists() );
+			assertArrayEquals( curve, cache.get( "e" ), 0 );
+		}
+		finally
+		{
+			delete( directory );
+		}
+	}
+
+	protected static void delete( final File file )
+	{
+		final File[] children = file.listFiles();
+
+		if ( children != null )
+			for ( final File child : children )
+				delete( child );
+
+		file.delete();
+	}
+}
@@ -0,0 +1,112 @@
+package net.preibisch.qualityest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+
+/**
+ * Checks that the planes QualityBatch.shardPlanes() loads for a shard keep the evaluated planes of rFRC on the lattice
+ * of the whole stack, and that the rFRC tables of the shards (as QualityBatch.process() cuts them and
+ * QualityCoordinator.merge() concatenates them) are identical to the one of the whole stack.
+ */
+public class QualityShardTest
+{
+	// depth, zStepSize, rFRCDist, number of shards
+	private static final int[][] configurations = new int[][]
+	{
+		{ 100, 1, 10, 4 },
+		{ 100, 3, 10, 4 },
+		{ 101, 7, 5, 3 },
+		{ 64, 4, 2, 16 },
+		{ 50, 10, 3, 7 },
+		{ 23, 5, 10, 2 },
+		{ 21, 1, 10, 21 },
+		{ 200, 16, 1, 9 } };
+
+	@Test
+	public void testLattice()
+	{
+		for ( final int[] c : configurations )
+		{
+			final int depth = c[ 0 ], zStepSize = c[ 1 ], rFRCDist = c[ 2 ], k = c[ 3 ];
+
+			// the evaluated planes of the whole stack
+			final long first = rFRCDist;
+			final long last = first + ( Estimate_Quality.numFRCPlanes( interval( 0, depth - 1 ), zStepSize, rFRCDist ) - 1 ) * zStepSize;
+
+			for ( int s = 0; s < k; ++s )
+			{
+				final long zMin = (long)depth * s / k;
+				final long zMax = (long)depth * ( s + 1 ) / k - 1;
+				final String name = Arrays.toString( c ) + ", shard " + zMin + "-" + zMax;
+
+				final long[] planes = QualityBatch.shardPlanes( zMin, zMax, depth, zStepSize, rFRCDist );
+
+				assertTrue( name, planes[ 0 ] >= 0 && planes[ 0 ] <= zMin );
+				assertTrue( name, planes[ 1 ] >= zMax && planes[ 1 ] < depth );
+				assertEquals( name, 0, planes[ 0 ] % zStepSize );
+
+				// the evaluated planes of the shard
+				final long shardFirst = planes[ 0 ] + rFRCDist;
+				final long numSamples = Estimate_Quality.numFRCPlanes( interval( planes[ 0 ], planes[ 1 ] ), zStepSize, rFRCDist );
+				final long shardLast = shardFirst + ( numSamples - 1 ) * zStepSize;
+
+				assertTrue( name, numSamples > 0 );
+				assertTrue( name, shardFirst <= zMin || shardFirst == first );
+				assertTrue( name, shardLast > zMax || shardLast == last );
+			}
+		}
+	}
+
+	@Test
+	public void testStitching()
+	{
+		for ( final int[] c : configurations )
+		{
+			final int depth = c[ 0 ], zStepSize = c[ 1 ], rFRCDist = c[ 2 ], k = c[ 3 ];
+
+			final Interval whole = interval( 0, depth - 1 );
+			final double[] samples = new double[ (int)Estimate_Quality.numFRCPlanes( whole, zStepSize, rFRCDist ) ];
+
+			for ( int i = 0; i < samples.length; ++i )
+				samples[ i ] = Math.sin( i ) + i;
+
+			final double[] expected = Estimate_Quality.planesFromSamples( samples, whole, rFRCDist, zStepSize );
+			final double[] merged = new double[ depth ];
+
+			for ( int s = 0; s < k; ++s )
+			{
+				final long zMin = (long)depth * s / k;
+				final long zMax = (long)depth * ( s + 1 ) / k - 1;
+
+				final long[] planes = QualityBatch.shardPlanes( zMin, zMax, depth, zStepSize, rFRCDist );
+				final Interval input = interval( planes[ 0 ], planes[ 1 ] );
+				final long shardFirst = planes[ 0 ] + rFRCDist;
+
+				// the shard computes the same blocks on the evaluated planes it has
+				final double[] shardSamples = new double[ (int)Estimate_Quality.numFRCPlanes( input, zStepSize, rFRCDist ) ];
+
+				for ( int i = 0; i < shardSamples.length; ++i )
+					shardSamples[ i ] = samples[ (int)( ( shardFirst - rFRCDist ) / zStepSize ) + i ];
+
+				final double[] medians = Estimate_Quality.planesFromSamples( shardSamples, input, shardFirst, zStepSize );
+
+				System.arraycopy( medians, (int)( zMin - planes[ 0 ] ), merged, (int)zMin, (int)( zMax - zMin + 1 ) );
+			}
+
+			assertArrayEquals( Arrays.toString( c ), expected, merged, 0 );
+		}
+	}
+
+	protected static Interval interval( final long zMin, final long zMax )
+	{
+		return new FinalInterval( new long[] { 0, 0, zMin }, new long[] { 63, 63, zMax } );
+	}
+}